@@ -3,6 +3,8 @@ package simpledb;
 import java.io.*;
 import java.util.*;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
 
 import simpledb.Predicate.Op;
 
@@ -25,6 +27,9 @@ public class BTreeFile implements DbFile {
     private final TupleDesc td;
     private final int tableid;
     private int keyField;
+    private final PageStore store;
+
+    private final AtomicLong restarts = new AtomicLong(0);
 
     /**
      * Constructs a B+ tree file backed by the specified file.
@@ -39,6 +44,7 @@ public class BTreeFile implements DbFile {
         this.tableid = f.getAbsoluteFile().hashCode();
         this.keyField = key;
         this.td = td;
+        this.store = new PageStore(f);
     }
 
     /**
@@ -79,13 +85,11 @@ public class BTreeFile implements DbFile {
      */
     public Page readPage(PageId pid) {
         BTreePageId id = (BTreePageId) pid;
-        BufferedInputStream bis = null;
 
         try {
-            bis = new BufferedInputStream(new FileInputStream(f));
             if (id.pgcateg() == BTreePageId.ROOT_PTR) {
                 byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
+                int retval = store.read(0, pageBuf);
                 if (retval == -1) {
                     throw new IllegalArgumentException("Read past end of table");
                 }
@@ -98,12 +102,7 @@ public class BTreeFile implements DbFile {
                 return p;
             } else {
                 byte pageBuf[] = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.pageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (id.pageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
+                int retval = store.read(pageOffset(id.pageNumber()), pageBuf);
                 if (retval == -1) {
                     throw new IllegalArgumentException("Read past end of table");
                 }
@@ -125,17 +124,16 @@ public class BTreeFile implements DbFile {
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
-        } finally {
-            // Close the file on success or error
-            try {
-                if (bis != null)
-                    bis.close();
-            } catch (IOException ioe) {
-                // Ignore failures closing the file
-            }
         }
     }
 
+    /**
+     * @return the offset of a non-root-pointer page in the file
+     */
+    private static long pageOffset(int pageNo) {
+        return BTreeRootPtrPage.getPageSize() + (long) (pageNo - 1) * BufferPool.getPageSize();
+    }
+
     /**
      * Write a page to disk.  This should not be called directly but should
      * be called from the BufferPool when pages are flushed to disk
@@ -146,14 +144,10 @@ public class BTreeFile implements DbFile {
         BTreePageId id = (BTreePageId) page.getId();
 
         byte[] data = page.getPageData();
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
         if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-            rf.write(data);
-            rf.close();
+            store.write(0, data);
         } else {
-            rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().pageNumber() - 1) * BufferPool.getPageSize());
-            rf.write(data);
-            rf.close();
+            store.write(pageOffset(page.getId().pageNumber()), data);
         }
     }
 
@@ -173,15 +167,196 @@ public class BTreeFile implements DbFile {
     }
 
     /**
-     * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-     * the left-most page possibly containing the key field f. It locks all internal
-     * nodes along the path to the leaf node with READ_ONLY permission, and locks the
-     * leaf node with permission perm.
+     * @return the number of times a search read a page again because it or the page the
+     * search came from changed while it was read
+     */
+    public long getRestartCount() {
+        return restarts.get();
+    }
+
+    /**
+     * Finds and locks the leaf page in the B+ tree corresponding to the left-most page
+     * possibly containing the key field f, and locks it with permission perm.
+     * <p>
+     * The transaction takes no locks or latches on the pages above the leaf. It reads them
+     * optimistically instead (see {@link BufferPool#getLatch}): it notes the version of a
+     * page before it reads it, and checks afterwards that neither that page nor the one it
+     * came from changed meanwhile. If one did, it reads the highest page on its way that
+     * changed again, rather than starting over from the root. It checks the parent of the
+     * leaf once more after it got the lock on the leaf. If the leaf is locked by another
+     * transaction, it waits for the lock before it checks the way to it again.
+     * <p>
+     * Splits and merges change the internal pages all at once (see {@link #getPage}). A
+     * split internal page is changed before its parent, and links to the page that took
+     * over its upper entries until the parent has an entry for that, so searches that get
+     * to it meanwhile go on to the right page (see {@link BTreeInternalPage#getRightLink}).
+     * <p>
+     * Transactions that read snapshots or run optimistically do not lock pages, and read
+     * the tree as the buffer pool shows it to them.
      * <p>
      * If f is null, it finds the left-most leaf page -- used for the iterator
      *
      * @param tid        - the transaction id
      * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     * @param perm       - the permissions with which to lock the leaf page
+     * @param f          - the field to search for
+     * @param locked     - gets the id of the leaf page found if it was locked by the search,
+     *                   rather than locked by the transaction already
+     * @return the left-most leaf page possibly containing the key field f, or null if
+     * the tree has no root yet
+     */
+    private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, Permissions perm,
+                                       Field f, HashSet<BTreePageId> locked)
+            throws DbException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+        if (!bp.locksPages(tid)) {
+            BTreePageId rootId = ((BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_ONLY)).getRootId();
+            return rootId == null ? null : findLeafPage(tid, dirtypages, rootId, perm, f);
+        }
+
+        // the pages read on the way down, and the versions they were read at
+        ArrayList<BTreePageId> path = new ArrayList<BTreePageId>();
+        ArrayList<Long> versions = new ArrayList<Long>();
+        // leaves locked on the way; shared locks are let go of again unless on the one found
+        locked.clear();
+        BTreePageId pid = rootPtrId;
+        BTreeLeafPage leaf = null;
+        while (true) {
+            if (pid.pgcateg() == BTreePageId.LEAF) {
+                leaf = (BTreeLeafPage) dirtypages.get(pid);
+                if (leaf == null) {
+                    boolean held = bp.holdsLock(tid, pid);
+                    leaf = (BTreeLeafPage) bp.tryGetPage(tid, pid, perm);
+                    if (leaf == null) {
+                        bp.getPage(tid, pid, perm);
+                    }
+                    if (!held) {
+                        locked.add(pid);
+                    }
+                }
+                if (leaf != null && isCurrent(bp, path, versions)) {
+                    if (perm == Permissions.READ_WRITE) {
+                        dirtypages.put(pid, leaf);
+                    }
+                    break;
+                }
+                leaf = null;
+                pid = retry(bp, pid, path, versions);
+                continue;
+            }
+
+            StampedLock latch = bp.getLatch(pid);
+            long version = latch.tryOptimisticRead();
+            BTreePageId next = null;
+            RuntimeException torn = null;
+            if (version != 0) {
+                try {
+                    next = nextPage(getLatchedPage(dirtypages, pid), f);
+                } catch (RuntimeException e) {
+                    // the page may have been changed while it was read
+                    torn = e;
+                }
+            }
+            if (version == 0 || !latch.validate(version) || !isCurrent(bp, path, versions)) {
+                restarts.incrementAndGet();
+                Thread.yield();
+                pid = retry(bp, pid, path, versions);
+                continue;
+            }
+            if (torn != null) {
+                throw torn;
+            }
+            if (next == null) {
+                // no root yet
+                break;
+            }
+            path.add(pid);
+            versions.add(version);
+            pid = next;
+        }
+
+        for (BTreePageId other : locked) {
+            if (leaf == null || !other.equals(leaf.getId())) {
+                bp.getLockManager().releaseSharedPage(tid, other);
+            }
+        }
+        locked.retainAll(leaf == null ? Collections.<BTreePageId>emptySet() : Collections.singleton(leaf.getId()));
+        return leaf;
+    }
+
+    /**
+     * @return whether the last page read on the way to a leaf did not change since
+     */
+    private static boolean isCurrent(BufferPool bp, ArrayList<BTreePageId> path, ArrayList<Long> versions) {
+        int last = path.size() - 1;
+        return last < 0 || bp.getLatch(path.get(last)).validate(versions.get(last));
+    }
+
+    /**
+     * Goes back up the way to a leaf to the highest page that changed since it was read.
+     *
+     * @return the page to read again, or pid if none of the pages above it changed
+     */
+    private static BTreePageId retry(BufferPool bp, BTreePageId pid, ArrayList<BTreePageId> path,
+                                     ArrayList<Long> versions) {
+        while (!isCurrent(bp, path, versions)) {
+            pid = path.remove(path.size() - 1);
+            versions.remove(versions.size() - 1);
+        }
+        return pid;
+    }
+
+    /**
+     * Reads a page of the path to a leaf without locking it; pages the transaction
+     * is changing come from its own dirtypages.
+     */
+    private Page getLatchedPage(HashMap<PageId, Page> dirtypages, BTreePageId pid) throws DbException {
+        Page p = dirtypages.get(pid);
+        return p != null ? p : Database.getBufferPool().getLatchedPage(pid);
+    }
+
+    /**
+     * @return the page after the root pointer page or an internal page on the way to the
+     * left-most leaf page possibly containing the key field f: the root, the page to the
+     * right the internal page links to if f is above its high key, or its child
+     */
+    private static BTreePageId nextPage(Page page, Field f) {
+        if (page instanceof BTreeRootPtrPage) {
+            return ((BTreeRootPtrPage) page).getRootId();
+        }
+        BTreeInternalPage internal = (BTreeInternalPage) page;
+        BTreePageId right = internal.getRightLink();
+        if (right != null && f != null && f.compare(Op.GREATER_THAN, internal.getHighKey())) {
+            return right;
+        }
+        return childFor(internal, f);
+    }
+
+    /**
+     * @return the child of the internal page the left-most leaf page possibly containing
+     * the key field f is under, or the left-most child if f is null
+     */
+    private static BTreePageId childFor(BTreeInternalPage page, Field f) {
+        Iterator<BTreeEntry> iter = page.iterator();
+        BTreeEntry entry = null;
+        while (iter.hasNext()) {
+            entry = iter.next();
+            if (f == null || f.compare(Op.LESS_THAN_OR_EQ, entry.getKey())) {
+                return entry.getLeftChild();
+            }
+        }
+        return entry == null ? null : entry.getRightChild();
+    }
+
+    /**
+     * Recursive function which finds the leaf page in the B+ tree corresponding to the
+     * left-most page possibly containing the key field f, for transactions that do not
+     * lock pages. It reads all internal nodes along the path to the leaf node with
+     * READ_ONLY permission, and the leaf node with permission perm.
+     *
+     * @param tid        - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
      * @param pid        - the current page being searched
      * @param perm       - the permissions with which to lock the leaf page
      * @param f          - the field to search for
@@ -190,29 +365,11 @@ public class BTreeFile implements DbFile {
     private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
                                        Field f)
             throws DbException, TransactionAbortedException {
-        // some code goes here
-        // TODO: need update dirty pages!!
         if (pid.pgcateg() == BTreePageId.LEAF) {
             return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
-        } else {
-            BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-            Iterator<BTreeEntry> iter = page.iterator();
-            BTreePageId childpid = null;
-            BTreeEntry entry = null;
-
-            while (iter.hasNext()) {
-                entry = iter.next();
-                if (f == null || f.compare(Op.LESS_THAN_OR_EQ, entry.getKey())) {
-                    childpid = entry.getLeftChild();
-                    break;
-                }
-            }
-
-            if (entry != null && childpid == null) {
-                childpid = entry.getRightChild();
-            }
-            return findLeafPage(tid, dirtypages, childpid, perm, f);
         }
+        BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+        return findLeafPage(tid, dirtypages, childFor(page, f), perm, f);
     }
 
     /**
@@ -220,16 +377,32 @@ public class BTreeFile implements DbFile {
      * Used by the BTreeFile iterator.
      *
      * @param tid  - the transaction id
-     * @param pid  - the current page being searched
      * @param perm - the permissions with which to lock the leaf page
      * @param f    - the field to search for
-     * @return the left-most leaf page possibly containing the key field f
-     * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
+     * @return the left-most leaf page possibly containing the key field f, or null if
+     * the tree has no root yet
+     * @see #findLeafPage(TransactionId, HashMap, Permissions, Field, HashSet)
      */
-    BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
-                               Field f)
+    BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f)
             throws DbException, TransactionAbortedException {
-        return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+        return findLeafPage(tid, perm, f, new HashSet<BTreePageId>());
+    }
+
+    /**
+     * Convenience method to find a leaf page when there is no dirtypages HashMap, which
+     * also tells whether the leaf page was locked by the search. Used by the range scans.
+     *
+     * @param tid    - the transaction id
+     * @param perm   - the permissions with which to lock the leaf page
+     * @param f      - the field to search for
+     * @param locked - gets the id of the leaf page found if it was locked by the search
+     * @return the left-most leaf page possibly containing the key field f, or null if
+     * the tree has no root yet
+     * @see #findLeafPage(TransactionId, HashMap, Permissions, Field, HashSet)
+     */
+    BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f, HashSet<BTreePageId> locked)
+            throws DbException, TransactionAbortedException {
+        return findLeafPage(tid, new HashMap<PageId, Page>(), perm, f, locked);
     }
 
     /**
@@ -369,8 +542,12 @@ public class BTreeFile implements DbFile {
             }
         }
 
-        // find a valid parent page to insert middle key
+        // until the parent has an entry for the new page, searches that get here go on to it
         assert MiddleEntry != null;
+        newInternalPage.setRightLink(page.getRightLink(), page.getHighKey());
+        page.setRightLink(newInternalPage.getId(), MiddleEntry.getKey());
+
+        // find a valid parent page to insert middle key
         BTreeInternalPage ParentPage = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), MiddleEntry.getKey());
         // insert the middle key
         ParentPage.insertEntry(new BTreeEntry(MiddleEntry.getKey(), page.getId(), newInternalPage.getId()));
@@ -450,7 +627,7 @@ public class BTreeFile implements DbFile {
     private void updateParentPointer(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, BTreePageId child)
             throws DbException, IOException, TransactionAbortedException {
 
-        BTreePage p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_ONLY);
+        BTreePage p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_FOR_UPDATE);
 
         if (!p.getParentId().equals(pid)) {
             p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_WRITE);
@@ -493,6 +670,12 @@ public class BTreeFile implements DbFile {
      * <p>
      * This method is needed to ensure that page updates are not lost if the same pages are
      * accessed multiple times.
+     * <p>
+     * Other transactions read the internal pages and the root pointer page without locking
+     * them (see {@link #findLeafPage(TransactionId, HashMap, Permissions, Field, HashSet)}). When a
+     * transaction that locks pages gets one of these for writing, it therefore changes a
+     * private copy of it, and the changes are moved into the page when the insert or delete
+     * is done (see {@link #publish}).
      *
      * @param tid        - the transaction id
      * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -510,6 +693,11 @@ public class BTreeFile implements DbFile {
         } else {
             Page p = Database.getBufferPool().getPage(tid, pid, perm);
             if (perm == Permissions.READ_WRITE) {
+                if (pid.pgcateg() == BTreePageId.INTERNAL && Database.getBufferPool().locksPages(tid)) {
+                    p = ((BTreeInternalPage) p).copy();
+                } else if (pid.pgcateg() == BTreePageId.ROOT_PTR && Database.getBufferPool().locksPages(tid)) {
+                    p = ((BTreeRootPtrPage) p).copy();
+                }
                 dirtypages.put(pid, p);
             }
             return p;
@@ -530,31 +718,109 @@ public class BTreeFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
-        // get a read lock on the root pointer page and use it to locate the root page
-        BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-        BTreePageId rootId = rootPtr.getRootId();
-
-        if (rootId == null) { // the root has just been created, so set the root pointer to point to it
-            rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-            rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-            rootPtr.setRootId(rootId);
-        }
+        try {
+            createIfEmpty();
+
+            // find and lock the left-most leaf page corresponding to the key field,
+            // and split the leaf page if there are no more slots available
+            BTreeLeafPage leafPage;
+            HashSet<BTreePageId> locked = new HashSet<BTreePageId>();
+            do {
+                leafPage = findLeafPage(tid, dirtypages, Permissions.READ_WRITE, t.getField(keyField), locked);
+                if (leafPage == null) {
+                    BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
+                            BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+                    if (rootPtr.getRootId() == null) { // the root has just been created, so set the root pointer to point to it
+                        rootPtr.setRootId(new BTreePageId(tableid, numPages(), BTreePageId.LEAF));
+                    }
+                    leafPage = findLeafPage(tid, dirtypages, Permissions.READ_WRITE, t.getField(keyField), locked);
+                }
+            } while (!checkKey(tid, dirtypages, leafPage, locked.contains(leafPage.getId()),
+                    nextKey(tid, dirtypages, leafPage, t.getField(keyField))));
+            if (leafPage.getNumEmptySlots() == 0) {
+                leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
+            }
 
-        // find and lock the left-most leaf page corresponding to the key field,
-        // and split the leaf page if there are no more slots available
-        BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-        if (leafPage.getNumEmptySlots() == 0) {
-            leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
+            // insert the tuple into the leaf page
+            leafPage.insertTuple(t);
+        } catch (Exception e) {
+            markDirty(tid, dirtypages);
+            throw e;
         }
-
-        // insert the tuple into the leaf page
-        leafPage.insertTuple(t);
+        publish(tid, dirtypages);
 
         ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
         dirtyPagesArr.addAll(dirtypages.values());
         return dirtyPagesArr;
     }
 
+    /**
+     * Finds the key above the one being inserted, which stands for the gap the new key goes
+     * into: the first key above f in the leaf page, or else in the pages to its right, which
+     * are locked for reading just long enough to read it.
+     *
+     * @param tid        - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     * @param leafPage   - the leaf page the key is inserted into
+     * @param f          - the key being inserted
+     * @return the next key, or null for the end of the index
+     */
+    private Field nextKey(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage leafPage, Field f)
+            throws DbException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        BTreeLeafPage page = leafPage;
+        while (true) {
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext()) {
+                Field key = it.next().getField(keyField);
+                if (key.compare(Op.GREATER_THAN, f)) {
+                    return key;
+                }
+            }
+            BTreePageId rightId = page.getRightSiblingId();
+            if (rightId == null) {
+                return null;
+            }
+            boolean held = dirtypages.containsKey(rightId) || bp.holdsLock(tid, rightId);
+            page = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_ONLY);
+            if (!held) {
+                // only read once to the left of a key that is checked later on
+                bp.getLockManager().releaseSharedPage(tid, rightId);
+            }
+        }
+    }
+
+    /**
+     * Checks that no range scan of another transaction holds a key that is deleted, or
+     * inserted below, on the leaf page (see {@link BufferPool#checkKey}). If one does, and the
+     * leaf page was only locked for the change, the leaf page is let go of and put back in the
+     * buffer pool while waiting for the scan, so the scan can still read it; the caller has to
+     * find and lock the leaf page again then.
+     *
+     * @param tid        - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     * @param leafPage   - the leaf page the change goes to, locked exclusively
+     * @param locked     - whether the leaf page was locked for the change, rather than by the
+     *                   transaction before
+     * @param key        - the key to check, or null for the end of the index
+     * @return whether the change can go ahead on the leaf page
+     */
+    private boolean checkKey(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage leafPage,
+                             boolean locked, Field key)
+            throws TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        if (bp.checkKey(tid, tableid, key, false)) {
+            return true;
+        }
+        if (!locked) {
+            return bp.checkKey(tid, tableid, key, true);
+        }
+        dirtypages.remove(leafPage.getId());
+        bp.releasePage(tid, leafPage.getId());
+        bp.checkKey(tid, tableid, key, true);
+        return false;
+    }
+
     /**
      * Handle the case when a B+ tree page becomes less than half full due to deletions.
      * If one of its siblings has extra tuples/entries, redistribute those tuples/entries.
@@ -974,23 +1240,182 @@ public class BTreeFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
-        BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().pageNumber(),
-                BTreePageId.LEAF);
-        BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
-        page.deleteTuple(t);
-
-        // if the page is below minimum occupancy, get some tuples from its siblings
-        // or merge with one of the siblings
-        int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples() / 2; // ceiling
-        if (page.getNumEmptySlots() > maxEmptySlots) {
-            handleMinOccupancyPage(tid, dirtypages, page);
+        try {
+            BTreeLeafPage page;
+            HashSet<BTreePageId> locked = new HashSet<BTreePageId>();
+            do {
+                page = findTuple(tid, dirtypages, t, locked);
+            } while (!checkKey(tid, dirtypages, page, locked.contains(page.getId()), t.getField(keyField)));
+            page.deleteTuple(t);
+
+            // if the page is below minimum occupancy, get some tuples from its siblings
+            // or merge with one of the siblings
+            int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples() / 2; // ceiling
+            if (page.getNumEmptySlots() > maxEmptySlots) {
+                handleMinOccupancyPage(tid, dirtypages, page);
+            }
+        } catch (Exception e) {
+            markDirty(tid, dirtypages);
+            throw e;
         }
+        publish(tid, dirtypages);
 
         ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
         dirtyPagesArr.addAll(dirtypages.values());
         return dirtyPagesArr;
     }
 
+    /**
+     * Finds and locks the leaf page a tuple that is going to be deleted is on. The tuple was
+     * read from the page its record id points to, but range scans let go of the pages they
+     * have read (see {@link BTreeSearchIterator#open}), so inserts of others may have moved
+     * the tuple since, within the page or to a new page on a split. It is then looked for by
+     * its key, and its record id is set to where it is now.
+     *
+     * @param tid        - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     * @param t          - the tuple to delete
+     * @param locked     - gets the id of the leaf page found if it was locked by the search,
+     *                   rather than locked by the transaction already
+     * @return the leaf page the tuple is on, locked exclusively
+     * @throws DbException if the tuple is not in the index
+     */
+    private BTreeLeafPage findTuple(TransactionId tid, HashMap<PageId, Page> dirtypages, Tuple t,
+                                    HashSet<BTreePageId> locked)
+            throws DbException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        RecordId rid = t.getRecordId();
+        if (rid == null) {
+            throw new DbException("tried to delete tuple with null rid");
+        }
+        BTreePageId pid = new BTreePageId(tableid, rid.getPageId().pageNumber(), BTreePageId.LEAF);
+        locked.clear();
+        if (!dirtypages.containsKey(pid) && !bp.holdsLock(tid, pid)) {
+            locked.add(pid);
+        }
+        BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) {
+            Tuple u = it.next();
+            if (u.getRecordId().tupleno() == rid.tupleno()) {
+                if (u.equals(t)) {
+                    return page;
+                }
+                break;
+            }
+        }
+
+        Field key = t.getField(keyField);
+        page = findLeafPage(tid, dirtypages, Permissions.READ_WRITE, key, locked);
+        while (page != null) {
+            it = page.iterator();
+            while (it.hasNext()) {
+                Tuple u = it.next();
+                if (u.getField(keyField).compare(Op.GREATER_THAN, key)) {
+                    throw new DbException("tried to delete tuple that is not in the index");
+                }
+                if (u.equals(t)) {
+                    t.setRecordId(u.getRecordId());
+                    return page;
+                }
+            }
+            pid = page.getRightSiblingId();
+            if (pid == null) {
+                break;
+            }
+            locked.clear();
+            if (!dirtypages.containsKey(pid) && !bp.holdsLock(tid, pid)) {
+                locked.add(pid);
+            }
+            page = (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+        }
+        throw new DbException("tried to delete tuple that is not in the index");
+    }
+
+    /**
+     * Marks the pages an insert or delete got for writing dirty when it
+     * fails half way, e.g. because the transaction was aborted while waiting
+     * for a lock. The pages are never returned to the buffer pool then, and
+     * without this the abort would not roll back what was changed already.
+     * The changes made to copies of internal pages are dropped then, so other
+     * transactions do not see a half done split or merge.
+     */
+    private static void markDirty(TransactionId tid, HashMap<PageId, Page> dirtypages) {
+        for (Page p : dirtypages.values()) {
+            p.markDirty(true, tid);
+        }
+    }
+
+    /**
+     * Moves the changes made to the copies of the internal pages and the root pointer page
+     * of an insert or delete into the pages, and hands the pages back in their place.
+     * <p>
+     * Without splits of internal pages, all pages are changed at once. Otherwise the
+     * split pages and the pages to their right that took over their upper entries come
+     * first, with right links between them. The parents that take the new entries come
+     * after that, along with the root pointer page, and the right links go again.
+     *
+     * @see #getPage(TransactionId, HashMap, BTreePageId, Permissions)
+     */
+    private void publish(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException {
+        if (!Database.getBufferPool().locksPages(tid)) {
+            return;
+        }
+        ArrayList<Page> copies = new ArrayList<Page>();
+        ArrayList<BTreeInternalPage> split = new ArrayList<BTreeInternalPage>();
+        HashSet<PageId> splitIds = new HashSet<PageId>();
+        for (Page p : dirtypages.values()) {
+            int pgcateg = ((BTreePageId) p.getId()).pgcateg();
+            if (pgcateg == BTreePageId.INTERNAL || pgcateg == BTreePageId.ROOT_PTR) {
+                copies.add(p);
+            }
+            if (pgcateg == BTreePageId.INTERNAL && ((BTreeInternalPage) p).getRightLink() != null) {
+                split.add((BTreeInternalPage) p);
+                splitIds.add(p.getId());
+                splitIds.add(((BTreeInternalPage) p).getRightLink());
+            }
+        }
+        if (split.isEmpty()) {
+            install(tid, dirtypages, copies);
+            return;
+        }
+
+        HashSet<PageId> parents = new HashSet<PageId>();
+        parents.add(BTreeRootPtrPage.getId(tableid));
+        for (BTreeInternalPage p : split) {
+            if (!splitIds.contains(p.getParentId())) {
+                parents.add(p.getParentId());
+            }
+        }
+        ArrayList<Page> first = new ArrayList<Page>();
+        ArrayList<Page> last = new ArrayList<Page>(split);
+        for (Page p : copies) {
+            (parents.contains(p.getId()) ? last : first).add(p);
+        }
+        install(tid, dirtypages, first);
+        for (BTreeInternalPage p : split) {
+            p.setRightLink(null, null);
+        }
+        install(tid, dirtypages, last);
+    }
+
+    private static void install(TransactionId tid, HashMap<PageId, Page> dirtypages, List<Page> copies)
+            throws DbException {
+        if (copies.isEmpty()) {
+            return;
+        }
+        List<Page> pages = Database.getBufferPool().installPages(tid, copies, (copy, page) -> {
+            if (page instanceof BTreeInternalPage) {
+                ((BTreeInternalPage) page).copyFrom((BTreeInternalPage) copy);
+            } else {
+                ((BTreeRootPtrPage) page).copyFrom((BTreeRootPtrPage) copy);
+            }
+        });
+        for (Page p : pages) {
+            dirtypages.put(p.getId(), p);
+        }
+    }
+
     /**
      * Get a read lock on the root pointer page. Create the root pointer page and root page
      * if necessary.
@@ -1003,23 +1428,27 @@ public class BTreeFile implements DbFile {
      * @throws TransactionAbortedException
      */
     BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
-        synchronized (this) {
-            if (f.length() == 0) {
-                // create the root pointer page and the root page
-                BufferedOutputStream bw = new BufferedOutputStream(
-                        new FileOutputStream(f, true));
-                byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-                byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-                bw.write(emptyRootPtrData);
-                bw.write(emptyLeafData);
-                bw.close();
-            }
-        }
+        createIfEmpty();
 
         // get a read lock on the root pointer page
         return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
     }
 
+    /**
+     * Create the root pointer page and root page if this BTreeFile is still empty.
+     *
+     * @throws IOException
+     */
+    private synchronized void createIfEmpty() throws IOException {
+        if (f.length() == 0) {
+            // create the root pointer page and the root page
+            byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
+            byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
+            store.write(0, emptyRootPtrData);
+            store.write(emptyRootPtrData.length, emptyLeafData);
+        }
+    }
+
     /**
      * Get the page number of the first empty page in this BTreeFile.
      * Creates a new page if none of the existing pages are empty.
@@ -1038,14 +1467,22 @@ public class BTreeFile implements DbFile {
         BTreePageId headerId = rootPtr.getHeaderId();
         int emptyPageNo = 0;
 
+        // freed pages are wiped on disk when they are reused, which running
+        // snapshots might still need to read
+        if (Database.getBufferPool().getVersionStore().getSnapshotCount() > 0) {
+            headerId = null;
+        }
+
         if (headerId != null) {
-            BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+            // header pages are read for update, the one with an empty slot is
+            // written next
+            BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_FOR_UPDATE);
             int headerPageCount = 0;
             // try to find a header page with an empty slot
             while (headerPage != null && headerPage.getEmptySlot() == -1) {
                 headerId = headerPage.getNextPageId();
                 if (headerId != null) {
-                    headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+                    headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_FOR_UPDATE);
                     headerPageCount++;
                 } else {
                     headerPage = null;
@@ -1066,11 +1503,8 @@ public class BTreeFile implements DbFile {
         if (headerId == null) {
             synchronized (this) {
                 // create the new page
-                BufferedOutputStream bw = new BufferedOutputStream(
-                        new FileOutputStream(f, true));
                 byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-                bw.write(emptyData);
-                bw.close();
+                store.append(emptyData);
                 emptyPageNo = numPages();
             }
         }
@@ -1100,10 +1534,7 @@ public class BTreeFile implements DbFile {
         BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 
         // write empty page to disk
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
-        rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo - 1) * BufferPool.getPageSize());
-        rf.write(BTreePage.createEmptyPageData());
-        rf.close();
+        store.write(pageOffset(emptyPageNo), BTreePage.createEmptyPageData());
 
         // make sure the page is not in the buffer pool	or in the local cache
         Database.getBufferPool().discardPage(newPageId);
@@ -1232,6 +1663,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
     Iterator<Tuple> it = null;
     BTreeLeafPage curp = null;
+    BTreePageId pinned = null;
+    ReadAhead readAhead = null;
 
     TransactionId tid;
     BTreeFile f;
@@ -1251,11 +1684,49 @@ class BTreeFileIterator extends AbstractDbFileIterator {
      * Open this iterator by getting an iterator on the first leaf page
      */
     public void open() throws DbException, TransactionAbortedException {
-        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-                tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-        BTreePageId root = rootPtr.getRootId();
-        curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
-        it = curp.iterator();
+        readAhead = new ReadAhead(Database.getBufferPool());
+        setCurrentPage(pin(tid, f.findLeafPage(tid, Permissions.READ_ONLY, null)));
+        it = curp == null ? null : curp.iterator();
+    }
+
+    /**
+     * Looks up a leaf the scan has found and locked again, pinning it as it
+     * is looked up
+     *
+     * @return the pinned leaf, or null if p is null
+     */
+    static BTreeLeafPage pin(TransactionId tid, BTreeLeafPage p)
+            throws DbException, TransactionAbortedException {
+        if (p == null) {
+            return null;
+        }
+        return (BTreeLeafPage) Database.getBufferPool().getPinnedPage(tid, p.getId(),
+                Permissions.READ_ONLY);
+    }
+
+    /**
+     * Make p the current leaf page, keeping it pinned in the buffer pool
+     * while we iterate over it and releasing the pin on the previous one.
+     * p is locked and pinned before the previous page is left, so at READ
+     * COMMITTED the scan still holds a lock on a leaf when it follows its
+     * sibling pointer
+     */
+    private void setCurrentPage(BTreeLeafPage p) {
+        leaveCurrentPage();
+        curp = p;
+        if (curp != null) {
+            pinned = curp.getId();
+            readAhead.advance(curp);
+        }
+    }
+
+    // unpins the current leaf, and lets go of its lock at READ COMMITTED
+    private void leaveCurrentPage() {
+        if (pinned != null) {
+            Database.getBufferPool().unpinPage(tid, pinned);
+            Database.getBufferPool().leavePage(tid, pinned);
+            pinned = null;
+        }
     }
 
     /**
@@ -1272,10 +1743,10 @@ class BTreeFileIterator extends AbstractDbFileIterator {
         while (it == null && curp != null) {
             BTreePageId nextp = curp.getRightSiblingId();
             if (nextp == null) {
-                curp = null;
+                setCurrentPage(null);
             } else {
-                curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-                        nextp, Permissions.READ_ONLY);
+                setCurrentPage((BTreeLeafPage) Database.getBufferPool().getPinnedPage(tid,
+                        nextp, Permissions.READ_ONLY));
                 it = curp.iterator();
                 if (!it.hasNext())
                     it = null;
@@ -1301,7 +1772,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
     public void close() {
         super.close();
         it = null;
-        curp = null;
+        setCurrentPage(null);
     }
 }
 
@@ -1313,6 +1784,14 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
     Iterator<Tuple> it = null;
     BTreeLeafPage curp = null;
+    BTreePageId pinned = null;
+    // whether the scan locks the keys it reads, and locked the current page itself
+    boolean lockKeys = false;
+    boolean locked = false;
+    // leaves the scan locked itself and has moved past, but not yet locked a
+    // key to the right of
+    ArrayList<BTreePageId> behind = new ArrayList<BTreePageId>();
+    ReadAhead readAhead = null;
 
     TransactionId tid;
     BTreeFile f;
@@ -1334,18 +1813,87 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
     /**
      * Open this iterator by getting an iterator on the first leaf page applicable
      * for the given predicate operation
+     * <p>
+     * At SERIALIZABLE, the scan locks the keys it reads in the range, and the first
+     * key past it, and lets go of each leaf page behind it once it has locked a key
+     * to the right of it (see {@link BufferPool#lockKey}). Inserts and deletes outside the range go ahead
+     * while the transaction runs, those in the range wait for it.
      */
     public void open() throws DbException, TransactionAbortedException {
-        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-                tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-        BTreePageId root = rootPtr.getRootId();
+        // a scan that stops at a key would only read ahead pages it never gets to
+        boolean unbounded = ipred.getOp() == Op.GREATER_THAN
+                || ipred.getOp() == Op.GREATER_THAN_OR_EQ || ipred.getOp() == Op.NOT_EQUALS;
+        readAhead = unbounded ? new ReadAhead(Database.getBufferPool()) : null;
+        lockKeys = Database.getBufferPool().locksKeys(tid);
+        HashSet<BTreePageId> locked = new HashSet<BTreePageId>();
+        BTreeLeafPage first;
         if (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
                 || ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-            curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+            first = f.findLeafPage(tid, Permissions.READ_ONLY, ipred.getField(), locked);
         } else {
-            curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+            first = f.findLeafPage(tid, Permissions.READ_ONLY, null, locked);
+        }
+        setCurrentPage(BTreeFileIterator.pin(tid, first), !locked.isEmpty());
+        it = curp == null ? null : curp.iterator();
+    }
+
+    /**
+     * Make p the current leaf page, keeping it pinned in the buffer pool
+     * while we iterate over it and releasing the pin on the previous one.
+     * p is locked and pinned before the previous page is left, so at READ
+     * COMMITTED the scan still holds a lock on a leaf when it follows its
+     * sibling pointer
+     *
+     * @param locked whether the scan locked p, rather than finding it locked
+     *               by its transaction already
+     */
+    private void setCurrentPage(BTreeLeafPage p, boolean locked) {
+        if (pinned != null && lockKeys && this.locked && p != null) {
+            // an insert into the leaf checks the first key to its right,
+            // which the scan has not locked yet
+            Database.getBufferPool().unpinPage(tid, pinned);
+            behind.add(pinned);
+            pinned = null;
+        }
+        leaveCurrentPage();
+        curp = p;
+        this.locked = locked;
+        if (curp != null) {
+            pinned = curp.getId();
+            if (readAhead != null) {
+                readAhead.advance(curp);
+            }
+        }
+    }
+
+    // unpins the current leaf, and lets go of its lock at READ COMMITTED, or
+    // if the keys read from it are locked
+    private void leaveCurrentPage() {
+        if (pinned != null) {
+            Database.getBufferPool().unpinPage(tid, pinned);
+            if (lockKeys && locked) {
+                Database.getBufferPool().leaveKeyLockedPage(tid, pinned);
+            } else {
+                Database.getBufferPool().leavePage(tid, pinned);
+            }
+            pinned = null;
+        }
+    }
+
+    // locks a key the scan read, if it locks keys, and lets go of the leaves
+    // it moved past before reading it
+    private void lockKey(Field key) throws TransactionAbortedException {
+        if (lockKeys) {
+            Database.getBufferPool().lockKey(tid, f.getId(), key);
+            leaveBehind();
+        }
+    }
+
+    private void leaveBehind() {
+        for (BTreePageId pid : behind) {
+            Database.getBufferPool().leaveKeyLockedPage(tid, pid);
         }
-        it = curp.iterator();
+        behind.clear();
     }
 
     /**
@@ -1361,27 +1909,40 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
             while (it.hasNext()) {
                 Tuple t = it.next();
-                if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+                Field key = t.getField(f.keyField());
+                if (key.compare(ipred.getOp(), ipred.getField())) {
+                    lockKey(key);
                     return t;
                 } else if (ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
                     // if the predicate was not satisfied and the operation is less than, we have
-                    // hit the end
+                    // hit the end. The key closes the range, so it is locked as well
+                    lockKey(key);
+                    leaveCurrentPage();
                     return null;
                 } else if (ipred.getOp() == Op.EQUALS &&
-                        t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
+                        key.compare(Op.GREATER_THAN, ipred.getField())) {
                     // if the tuple is now greater than the field passed in and the operation
                     // is equals, we have reached the end
+                    lockKey(key);
+                    leaveCurrentPage();
                     return null;
+                } else if (ipred.getOp() != Op.GREATER_THAN && ipred.getOp() != Op.GREATER_THAN_OR_EQ
+                        && ipred.getOp() != Op.EQUALS) {
+                    // the gap below a key skipped in the middle of the range is part of it
+                    lockKey(key);
                 }
             }
 
             BTreePageId nextp = curp.getRightSiblingId();
             // if there are no more pages to the right, end the iteration
             if (nextp == null) {
+                lockKey(null);
+                leaveCurrentPage();
                 return null;
             } else {
-                curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-                        nextp, Permissions.READ_ONLY);
+                boolean held = Database.getBufferPool().holdsLock(tid, nextp);
+                setCurrentPage((BTreeLeafPage) Database.getBufferPool().getPinnedPage(tid,
+                        nextp, Permissions.READ_ONLY), !held);
                 it = curp.iterator();
             }
         }
@@ -1403,5 +1964,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
     public void close() {
         super.close();
         it = null;
+        leaveCurrentPage();
+        leaveBehind();
     }
 }
@@ -20,6 +20,11 @@ public class BTreeInternalPage extends BTreePage {
 
     private int childCategory; // either leaf or internal
 
+    // while a split of this page is being published: the page that took over
+    // the entries above highKey. Kept in memory only, see BTreeFile.publish
+    private BTreePageId rightLink = null;
+    private Field highKey = null;
+
     public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
         Field prev = lowerBound;
         assert (this.getId().pgcateg() == BTreePageId.INTERNAL);
@@ -156,6 +161,39 @@ public class BTreeInternalPage extends BTreePage {
         return null;
     }
 
+    /**
+     * Return a private copy of this page with the same before image, for a
+     * transaction to change while others still read this one
+     */
+    BTreeInternalPage copy() {
+        try {
+            BTreeInternalPage page = new BTreeInternalPage(pid, getPageData(), keyField);
+            synchronized (oldDataLock) {
+                page.oldData = oldData;
+            }
+            return page;
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    /**
+     * Take over the entries and pointers of a copy of this page; the before image
+     * stays as it is
+     */
+    void copyFrom(BTreeInternalPage page) {
+        System.arraycopy(page.header, 0, header, 0, header.length);
+        System.arraycopy(page.keys, 0, keys, 0, keys.length);
+        System.arraycopy(page.children, 0, children, 0, children.length);
+        parent = page.parent;
+        childCategory = page.childCategory;
+        rightLink = page.rightLink;
+        highKey = page.highKey;
+    }
+
     public void setBeforeImage() {
         synchronized (oldDataLock) {
             oldData = getPageData().clone();
@@ -603,6 +641,35 @@ public class BTreeInternalPage extends BTreePage {
             header[headerbyte] &= (0xFF ^ (1 << headerbit));
     }
 
+    /**
+     * Link this page to the page to its right that took over its entries with
+     * keys above highKey when it was split, for searches that get to this page
+     * before its parent has an entry for the new page. Not written to disk.
+     *
+     * @param rightLink - the id of the right page, or null once the parent has
+     *                  an entry for it
+     * @param highKey   - the largest key a search may still find on this page
+     */
+    public void setRightLink(BTreePageId rightLink, Field highKey) {
+        this.rightLink = rightLink;
+        this.highKey = highKey;
+    }
+
+    /**
+     * @return the id of the page to the right of this one searches for keys above
+     * {@link #getHighKey} go on to, or null if there is none
+     */
+    public BTreePageId getRightLink() {
+        return rightLink;
+    }
+
+    /**
+     * @return the largest key a search may find on this page, if it has a right link
+     */
+    public Field getHighKey() {
+        return highKey;
+    }
+
     /**
      * @return an iterator over all entries on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return entries in empty slots!)
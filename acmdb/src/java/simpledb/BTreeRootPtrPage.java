@@ -151,6 +151,29 @@ public class BTreeRootPtrPage implements Page {
 		return null;
 	}
 
+	/** Return a private copy of this page with the same before image, for a
+        transaction to change while others still read this one */
+	BTreeRootPtrPage copy(){
+		try {
+			BTreeRootPtrPage page = new BTreeRootPtrPage(pid,getPageData());
+			page.oldData = oldData;
+			return page;
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	/** Take over the pointers of a copy of this page; the before image stays
+        as it is */
+	void copyFrom(BTreeRootPtrPage page){
+		root = page.root;
+		rootCategory = page.rootCategory;
+		header = page.header;
+	}
+
 	/**
 	 * Get the id of the root page in this B+ tree
 	 * @return the id of the root page
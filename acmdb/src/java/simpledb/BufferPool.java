@@ -2,8 +2,17 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -13,6 +22,29 @@ import java.util.concurrent.ConcurrentLinkedDeque;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * With record locking turned on, heap files lock the single records they
+ * insert or delete instead of whole pages, so that transactions can change
+ * the same page at once. A page is then only held in an intention mode,
+ * and changed with its monitor held as a short latch. The pool remembers
+ * the slots each transaction changed and what they held before, to roll
+ * back just those slots on abort and to write pages without the changes
+ * of transactions that are still running on commit.
+ * <p>
+ * Read-only transactions can read from a snapshot instead of locking: see
+ * {@link #beginSnapshot}. The pool keeps the old versions of pages these
+ * transactions still need in its {@link VersionStore}.
+ * <p>
+ * Transactions can also run optimistically, see {@link #beginOptimistic}:
+ * they take no locks and work on private copies of pages, and are
+ * validated when they commit.
+ * <p>
+ * Access methods may also read pages without locking them, optimistically:
+ * the pool keeps a latch with a version for each such page, see
+ * {@link #getLatch}, and readers check that the version did not change
+ * while they read. B+ trees read their internal pages this way. Whenever
+ * the pool changes such a page or replaces it with another version, it
+ * holds the page's latch exclusively.
  *
  * @Threadsafe, all fields are final
  */
@@ -32,8 +64,91 @@ public class BufferPool {
      */
     public static final int DEFAULT_PAGES = 50;
 
-    private int num_pages;
-    private ConcurrentHashMap<PageId, Page> pid2page;
+    /**
+     * Replacement policy used when the caller does not pick one.
+     */
+    public static final ReplacementPolicy.Type DEFAULT_POLICY = ReplacementPolicy.Type.TWO_Q;
+
+    /**
+     * Scans of tables with more pages than this fraction of the pool read
+     * through a {@link BufferRing} instead of the shared pool.
+     */
+    public static final double DEFAULT_BULK_READ_FRACTION = 0.75;
+
+    /**
+     * A pool is only split into more shards if every shard still gets at
+     * least this many frames; small pools keep a single shard so that
+     * eviction never fails on one shard while another one has room.
+     */
+    private static final int MIN_PAGES_PER_SHARD = 128;
+
+    /**
+     * One independently locked partition of the pool. All fields are
+     * guarded by the shard's monitor.
+     */
+    private static class Shard {
+        final int capacity;
+        final HashMap<PageId, Page> pages;
+        final ReplacementPolicy policy;
+        // pages that are being read from disk right now; whoever misses on
+        // one of them waits for that read instead of issuing its own
+        final HashMap<PageId, CompletableFuture<Page>> loading;
+        // pin counts per page and transaction; pinned pages are never evicted
+        final HashMap<PageId, HashMap<TransactionId, Integer>> pins;
+
+        Shard(int capacity, ReplacementPolicy.Type policyType) {
+            this.capacity = capacity;
+            this.pages = new HashMap<>(capacity * 2);
+            this.policy = policyType.create(capacity);
+            this.loading = new HashMap<>();
+            this.pins = new HashMap<>();
+        }
+    }
+
+    /**
+     * Background threads that read pages ahead of sequential scans, shared
+     * by all pools.
+     */
+    private static final ExecutorService prefetcher = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "simpledb-prefetch");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** How long to wait for a page latch before backing off */
+    private static final long LATCH_WAIT_MICROS = 1000;
+
+    /** Weight of the newest sample in the read latency average */
+    private static final double LATENCY_SMOOTHING = 0.2;
+
+    private final int num_pages;
+    private final Shard[] shards;
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong dedupedReads = new AtomicLong(0);
+    private final AtomicLong bulkReads = new AtomicLong(0);
+    private final AtomicLong prefetchReads = new AtomicLong(0);
+    private final AtomicLong createdPages = new AtomicLong(0);
+    // moving average of the time a disk read takes; updates may race, which
+    // only makes the average slightly less exact
+    private volatile double avgReadNanos = -1;
+
+    private volatile double bulkReadFraction = DEFAULT_BULK_READ_FRACTION;
+
+    private volatile boolean recordLocking = false;
+    // record locking only: the slots each transaction has changed, by page,
+    // and the tuple each slot held before (null if it was empty). The map
+    // of a page is guarded by the page's latch.
+    private final ConcurrentHashMap<TransactionId, ConcurrentHashMap<PageId, HashMap<Integer, Tuple>>> slotChanges
+            = new ConcurrentHashMap<>();
+
+    private final VersionStore versions = new VersionStore();
+
+    private final OptimisticConcurrency optimistic = new OptimisticConcurrency();
+
+    // page latches, see getLatch; an entry is kept for good once created
+    private final ConcurrentHashMap<PageId, StampedLock> latches = new ConcurrentHashMap<>();
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -41,11 +156,203 @@ public class BufferPool {
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, DEFAULT_POLICY);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and picks
+     * eviction victims with the given replacement policy.
+     *
+     * @param numPages   maximum number of pages in this buffer pool.
+     * @param policyType the page replacement policy to use
+     */
+    public BufferPool(int numPages, ReplacementPolicy.Type policyType) {
+        this(numPages, defaultShardCount(numPages), policyType);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages split over
+     * numShards shards. Pages are assigned to shards by PageId hash; each
+     * shard has its own lock, its own share of the capacity and its own
+     * replacement policy instance.
+     *
+     * @param numPages   maximum number of pages in this buffer pool.
+     * @param numShards  number of independently locked partitions
+     * @param policyType the page replacement policy to use
+     */
+    public BufferPool(int numPages, int numShards, ReplacementPolicy.Type policyType) {
+        if (numShards < 1 || numShards > numPages) {
+            throw new IllegalArgumentException("invalid number of shards: " + numShards);
+        }
         num_pages = numPages;
-        pid2page = new ConcurrentHashMap<>(numPages);
+        shards = new Shard[numShards];
+        for (int i = 0; i < numShards; i++) {
+            // spread the remainder so the capacities add up to numPages
+            int capacity = numPages / numShards + (i < numPages % numShards ? 1 : 0);
+            shards[i] = new Shard(capacity, policyType);
+        }
         lockManager = LockManager.GetLockManager();
     }
 
+    private static int defaultShardCount(int numPages) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(cores, numPages / MIN_PAGES_PER_SHARD));
+    }
+
+    private Shard shardOf(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return shards[Math.floorMod(h, shards.length)];
+    }
+
+    /**
+     * @return the lock manager of this pool, e.g. to configure how it deals
+     * with deadlocks
+     */
+    public LockManager getLockManager() {
+        return lockManager;
+    }
+
+    /**
+     * @return the old page versions kept for snapshot transactions
+     */
+    public VersionStore getVersionStore() {
+        return versions;
+    }
+
+    /**
+     * Makes a transaction that has not read anything yet read from a
+     * snapshot of the database as of now. It takes no locks and is never
+     * blocked by writers, nor blocks them, but it must not write: asking for
+     * a page with any permissions other than READ_ONLY fails. The snapshot
+     * ends when the transaction completes.
+     *
+     * @param tid the ID of the read-only transaction
+     */
+    public void beginSnapshot(TransactionId tid) {
+        versions.beginSnapshot(tid);
+    }
+
+    /**
+     * @return the state of the transactions running optimistically
+     */
+    public OptimisticConcurrency getOptimisticConcurrency() {
+        return optimistic;
+    }
+
+    /**
+     * Makes a transaction that has not read anything yet run optimistically.
+     * It takes no locks: every page it asks for is a private copy of the
+     * page's committed state, and its changes stay in these copies until it
+     * commits. It is validated then, see {@link #validate}.
+     *
+     * @param tid the ID of the transaction
+     */
+    public void beginOptimistic(TransactionId tid) {
+        optimistic.begin(tid);
+    }
+
+    /**
+     * Validates an optimistic transaction that is about to commit: if a
+     * transaction that committed since it started wrote a page it read, it
+     * fails. Otherwise the pages the transaction changed replace the ones in
+     * the pool, as its dirty pages, and the transaction goes on to commit
+     * like any other. Does nothing for transactions that do not run
+     * optimistically, or are validated already.
+     *
+     * @param tid the ID of the transaction
+     * @throws TransactionAbortedException if validation fails, or another
+     *                                     transaction holds a lock on a page it changed; it has to abort
+     * @throws DbException                 if the pool has no room for the changed pages
+     */
+    public void validate(TransactionId tid) throws TransactionAbortedException, DbException {
+        OptimisticConcurrency.Workspace workspace = optimistic.workspace(tid);
+        if (workspace == null || workspace.validated) {
+            return;
+        }
+        synchronized (optimistic) {
+            optimistic.validate(workspace);
+            // locks without waiting keep out the transactions that lock
+            // pages, which may be reading or changing them right now
+            for (PageId pid : workspace.writes.keySet()) {
+                if (!lockManager.tryAcquireLock(tid, pid, Permissions.READ_WRITE)) {
+                    throw new TransactionAbortedException(TransactionAbortedException.Reason.VALIDATION);
+                }
+            }
+            List<Lock> held = latchExclusively(workspace.writes.keySet());
+            try {
+                for (Page page : workspace.writes.values()) {
+                    page.markDirty(true, tid);
+                    insertPageToBufferPool(page);
+                }
+            } finally {
+                unlatch(held);
+            }
+            optimistic.validated(workspace);
+        }
+    }
+
+    /**
+     * @return the page as the optimistic transaction sees it
+     */
+    private Page getOptimisticPage(OptimisticConcurrency.Workspace workspace, PageId pid, Permissions perm)
+            throws DbException {
+        Page page = workspace.writes.get(pid);
+        if (page != null) {
+            return page;
+        }
+        page = workspace.reads.get(pid);
+        if (page == null) {
+            page = fetchPage(pid, false).getBeforeImage();
+            workspace.reads.put(pid, page);
+        }
+        // pages read for update are written only if they are changed, and
+        // handed back by the file then
+        if (perm == Permissions.READ_WRITE) {
+            workspace.writes.put(pid, page);
+        }
+        return page;
+    }
+
+    /**
+     * Turns record locking for heap files on or off. Must not be changed
+     * while transactions are running.
+     */
+    public void setRecordLocking(boolean on) {
+        recordLocking = on;
+    }
+
+    public boolean isRecordLocking() {
+        return recordLocking;
+    }
+
+    /**
+     * @return the maximum number of pages this pool caches
+     */
+    public int getNumPages() {
+        return num_pages;
+    }
+
+    /**
+     * @return the number of pages currently resident in this pool
+     */
+    public int getNumCachedPages() {
+        int n = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                n += shard.pages.size();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return the number of independently locked shards of this pool
+     */
+    public int getNumShards() {
+        return shards.length;
+    }
+
     public static int getPageSize() {
         return pageSize;
     }
@@ -77,23 +384,815 @@ public class BufferPool {
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, false);
+    }
+
+    // pin: whether to pin the page for the transaction as it is looked up
+    private Page getPage(TransactionId tid, PageId pid, Permissions perm, boolean pin)
+            throws TransactionAbortedException, DbException {
 
         if (pid == null) {
             throw new DbException("NULL PageId!");
         }
 
+        if (versions.isSnapshot(tid)) {
+            checkReadOnly(tid, perm);
+            Page page = fetchPage(pid, false, pin ? tid : null);
+            return versions.read(tid, pid, page::getBeforeImage);
+        }
+        OptimisticConcurrency.Workspace workspace = optimistic.workspace(tid);
+        if (workspace != null) {
+            Page page = getOptimisticPage(workspace, pid, perm);
+            if (pin) {
+                pinPage(tid, pid);
+            }
+            return page;
+        }
+
         lockManager.acquireLock(tid, pid, perm);
 
-        if (pid2page.containsKey(pid)) {
-            return pid2page.get(pid);
-        } else {
-            Page page = getPageFile(pid).readPage(pid);
-            if (pid2page.size() == num_pages) {
-                evictPage();
+        return fetchPage(pid, false, pin ? tid : null);
+    }
+
+    /**
+     * Retrieves a page like getPage, but only if the lock on it can be
+     * granted without waiting. For transactions that lock pages only, see
+     * {@link #locksPages}.
+     *
+     * @return the page, or null if the transaction has to wait for the lock
+     */
+    public Page tryGetPage(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        if (!lockManager.tryAcquireLock(tid, pid, perm)) {
+            return null;
+        }
+        return fetchPage(pid, false);
+    }
+
+    /**
+     * Retrieves a page without locking it. The caller must validate what it
+     * reads from the page against the version of its latch, see
+     * {@link #getLatch}.
+     */
+    Page getLatchedPage(PageId pid) throws DbException {
+        return fetchPage(pid, false);
+    }
+
+    /**
+     * @return whether the transaction locks the pages it reads, i.e. neither
+     * reads a snapshot nor runs optimistically
+     */
+    public boolean locksPages(TransactionId tid) {
+        return !versions.isSnapshot(tid) && !optimistic.isOptimistic(tid);
+    }
+
+    /**
+     * @return whether the range scans of the transaction lock the keys of the
+     * B+ tree indexes they read, i.e. it locks pages and runs at SERIALIZABLE
+     */
+    public boolean locksKeys(TransactionId tid) {
+        return locksPages(tid) && tid.getIsolationLevel() == IsolationLevel.SERIALIZABLE;
+    }
+
+    /**
+     * Locks a key of a B+ tree index shared until the transaction completes,
+     * along with the gap below it. Range scans lock the keys they read and
+     * the first key past their range, or the end of the index, so no other
+     * transaction can insert into or delete from the range while they run.
+     * The scan must hold the page the key is on when it locks it, and every
+     * leaf it moved past since it locked the previous key: an insert into
+     * one of those leaves checks this key, so the scan must not let go of
+     * them before the key is locked.
+     *
+     * @param tid     the ID of the scanning transaction
+     * @param tableId the index
+     * @param key     the key, or null for the end of the index
+     */
+    public void lockKey(TransactionId tid, int tableId, Field key)
+            throws TransactionAbortedException {
+        if (locksKeys(tid)) {
+            lockManager.acquireKeyLock(tid, tableId, key, Permissions.READ_ONLY);
+        }
+    }
+
+    /**
+     * Checks that no range scan of another transaction holds a key of a B+
+     * tree index that is going to be deleted, or that a key is going to be
+     * inserted below, and waits for the scans that do if asked to. No lock
+     * on the key is kept. The page the change goes to must be locked
+     * exclusively before the key is checked without waiting, and only then
+     * changed; a writer should not wait for a key holding that page, as the
+     * scan holding the key may need it.
+     *
+     * @param tid     the ID of the writing transaction
+     * @param tableId the index
+     * @param key     the key, or null for the end of the index
+     * @param wait    whether to wait for the scans holding the key
+     * @return whether no other transaction holds the key
+     * @see LockManager#acquireInstantKeyLock
+     */
+    public boolean checkKey(TransactionId tid, int tableId, Field key, boolean wait)
+            throws TransactionAbortedException {
+        return !locksPages(tid) || lockManager.acquireInstantKeyLock(tid, tableId, key, wait);
+    }
+
+    /**
+     * Returns the latch of a page, for access methods that read the page
+     * without locking it. Readers do not take the latch: they get its
+     * version with tryOptimisticRead before they read the page, and
+     * validate it afterwards, reading the page again if it changed. The
+     * pool takes the latch exclusively, which moves the version on, while
+     * it changes the page or puts another version of it in place, and never
+     * holds it while waiting for a lock.
+     * <p>
+     * The version belongs to the page rather than to the object the pool
+     * holds for it, so it also covers pages that are evicted and read
+     * again, or replaced when a transaction aborts.
+     */
+    StampedLock getLatch(PageId pid) {
+        StampedLock latch = latches.get(pid);
+        return latch != null ? latch : latches.computeIfAbsent(pid, k -> new StampedLock());
+    }
+
+    /**
+     * Puts new versions of pages a transaction changed into the pool, as its
+     * dirty pages. Readers that validate the versions of the pages'
+     * latches see either all of them or none. The contents of each new version are moved into the page the
+     * pool holds, so that those holding on to that page see them as well.
+     * The transaction must hold exclusive locks on the pages.
+     *
+     * @param tid   the ID of the transaction that changed the pages
+     * @param pages the new versions of the pages
+     * @param move  moves the contents of a new version, its first argument,
+     *              into the cached page, its second one
+     * @return the cached pages, in the order of the new versions
+     * @throws DbException if the pool has no room for the pages; none of
+     *                     them are changed then
+     */
+    List<Page> installPages(TransactionId tid, List<Page> pages, BiConsumer<Page, Page> move)
+            throws DbException {
+        ArrayList<PageId> pids = new ArrayList<>();
+        for (Page page : pages) {
+            pids.add(page.getId());
+        }
+        List<Lock> held = latchExclusively(pids);
+        try {
+            // pinned, the cached pages stay in the pool until they are dirty
+            for (PageId pid : pids) {
+                pinPage(tid, pid);
+            }
+            ArrayList<Page> cached = new ArrayList<>();
+            for (PageId pid : pids) {
+                cached.add(fetchPage(pid, false));
+            }
+            for (int i = 0; i < pages.size(); i++) {
+                move.accept(pages.get(i), cached.get(i));
+                cached.get(i).markDirty(true, tid);
+            }
+            return cached;
+        } finally {
+            for (PageId pid : pids) {
+                unpinPage(tid, pid);
+            }
+            unlatch(held);
+        }
+    }
+
+    /**
+     * Latches the pages exclusively. Those latched already are given up and
+     * taken again when one of the others is not free in time, so that two
+     * threads latching overlapping pages in another order cannot deadlock.
+     */
+    private List<Lock> latchExclusively(Collection<PageId> pids) {
+        ArrayList<Lock> held = new ArrayList<>();
+        boolean interrupted = false;
+        while (true) {
+            for (PageId pid : pids) {
+                Lock latch = getLatch(pid).asWriteLock();
+                boolean locked;
+                try {
+                    locked = latch.tryLock(LATCH_WAIT_MICROS, TimeUnit.MICROSECONDS);
+                } catch (InterruptedException e) {
+                    // a latch is held too briefly to give up on
+                    interrupted = true;
+                    locked = false;
+                }
+                if (!locked) {
+                    break;
+                }
+                held.add(latch);
+            }
+            if (held.size() == pids.size()) {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                return held;
+            }
+            unlatch(held);
+            held.clear();
+            Thread.yield();
+        }
+    }
+
+    private static void unlatch(List<Lock> held) {
+        for (Lock latch : held) {
+            latch.unlock();
+        }
+    }
+
+    private void checkReadOnly(TransactionId tid, Permissions perm) throws DbException {
+        if (perm != Permissions.READ_ONLY && versions.isSnapshot(tid)) {
+            throw new DbException("transaction " + tid.getId() + " reads from a snapshot and must not write");
+        }
+    }
+
+    /**
+     * Retrieve the specified page to lock and change single records of it.
+     * Only intention locks are taken on the page and its table; the records
+     * are locked with {@link #lockRecord} or {@link #tryLockRecord}, and the
+     * page must only be read or changed with its monitor held.
+     *
+     * @param tid  the ID of the transaction requesting the page
+     * @param pid  the ID of the requested page
+     * @param perm the permissions needed on the records of the page
+     */
+    public Page getPageForRecords(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        if (pid == null) {
+            throw new DbException("NULL PageId!");
+        }
+
+        checkReadOnly(tid, perm);
+        OptimisticConcurrency.Workspace workspace = optimistic.workspace(tid);
+        if (workspace != null) {
+            return getOptimisticPage(workspace, pid, perm);
+        }
+        lockManager.acquirePageIntention(tid, pid, perm);
+
+        return fetchPage(pid, false);
+    }
+
+    /**
+     * Locks a record, and the page and table it is on in an intention
+     * mode. May block if the lock is held by another transaction.
+     *
+     * @param tid  the ID of the transaction requesting the lock
+     * @param rid  the record to lock
+     * @param perm the requested permissions on the record
+     */
+    public void lockRecord(TransactionId tid, RecordId rid, Permissions perm)
+            throws TransactionAbortedException {
+        if (optimistic.isOptimistic(tid)) {
+            return;
+        }
+        lockManager.acquireRecordLock(tid, rid, perm);
+    }
+
+    /**
+     * Locks a record exclusively if that is possible without waiting. The
+     * page must have been retrieved with getPageForRecords and READ_WRITE
+     * permissions; the page latch may be held.
+     *
+     * @return whether the transaction holds the record exclusively now
+     */
+    public boolean tryLockRecord(TransactionId tid, RecordId rid)
+            throws TransactionAbortedException {
+        return optimistic.isOptimistic(tid) || lockManager.tryRecordLock(tid, rid);
+    }
+
+    /**
+     * Remembers what a slot held before the transaction changed it for the
+     * first time, so the change can be rolled back alone. Callers hold the
+     * page latch.
+     *
+     * @param tid    the transaction changing the slot
+     * @param pid    the page the slot is on
+     * @param slot   the slot being changed
+     * @param before the tuple in the slot, or null if it is empty
+     */
+    void recordSlotChange(TransactionId tid, PageId pid, int slot, Tuple before) {
+        if (optimistic.isOptimistic(tid)) {
+            // its pages are private copies
+            return;
+        }
+        slotChanges.computeIfAbsent(tid, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(pid, k -> new HashMap<>())
+                .putIfAbsent(slot, before);
+    }
+
+    /**
+     * Adds a page the caller has just created to the pool, as if it had been
+     * retrieved with getPage and READ_WRITE permissions (getPageForRecords
+     * for heap pages when record locking is on), but without reading
+     * it from disk. The on-disk version of the page must be equivalent to
+     * the given one, e.g. zeroed space the file was extended with, so that
+     * dropping the page on abort leaves the database consistent.
+     * <p>
+     * If the page is cached already, the cached version is returned instead.
+     *
+     * @param tid  the ID of the transaction creating the page
+     * @param page the new page
+     * @return the page as cached in the pool
+     */
+    public Page newPage(TransactionId tid, Page page)
+            throws TransactionAbortedException, DbException {
+        PageId pid = page.getId();
+        checkReadOnly(tid, Permissions.READ_WRITE);
+        OptimisticConcurrency.Workspace workspace = optimistic.workspace(tid);
+        if (workspace != null) {
+            Page cached = workspace.writes.putIfAbsent(pid, page);
+            if (cached != null) {
+                return cached;
             }
-            pid2page.put(pid, page);
+            workspace.reads.put(pid, page);
             return page;
         }
+        if (recordLocking && page instanceof HeapPage) {
+            lockManager.acquirePageIntention(tid, pid, Permissions.READ_WRITE);
+        } else {
+            lockManager.acquireLock(tid, pid, Permissions.READ_WRITE);
+        }
+
+        Shard shard = shardOf(pid);
+        synchronized (shard) {
+            Page cached = shard.pages.get(pid);
+            if (cached != null) {
+                shard.policy.pageAccessed(pid);
+                return cached;
+            }
+            if (shard.pages.size() >= shard.capacity) {
+                evictPage(shard);
+            }
+            shard.pages.put(pid, page);
+            shard.policy.pageAdded(pid);
+        }
+        createdPages.incrementAndGet();
+        return page;
+    }
+
+    /**
+     * Locks a whole table for a transaction that is going to read (or read
+     * and write) most of it, e.g. for a full scan. The table lock covers the
+     * table's pages, so getPage takes no page locks for them afterwards.
+     * Transactions at READ COMMITTED take no table locks for reading: they
+     * lock the pages as they read them, see {@link #leavePage}.
+     *
+     * @param tid     the ID of the transaction requesting the lock
+     * @param tableId the table to lock
+     * @param perm    the requested permissions on the table
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+            throws TransactionAbortedException {
+        if (versions.isSnapshot(tid) || optimistic.isOptimistic(tid)) {
+            // neither takes locks
+            return;
+        }
+        if (perm == Permissions.READ_ONLY && tid.getIsolationLevel() == IsolationLevel.READ_COMMITTED) {
+            // the pages are locked one at a time instead, and let go of early
+            return;
+        }
+        lockManager.acquireTableLock(tid, tableId, perm);
+    }
+
+    /**
+     * Starts reading a page into the pool in the background, unless it is
+     * cached or being read already. No lock is taken: the page is only
+     * cached here, a transaction still has to lock it through getPage.
+     *
+     * @param pid the ID of the page that is going to be requested soon
+     */
+    public void prefetchPage(PageId pid) {
+        prefetcher.execute(() -> prefetch(pid));
+    }
+
+    /**
+     * Reads up to depth pages ahead in the background, starting at first and
+     * following the links next returns until it returns null. Used for page
+     * sequences whose next page is only known from the previous one, like
+     * the leaves of a B+ tree.
+     *
+     * @param first the ID of the first page to read
+     * @param depth the maximum number of pages to read
+     * @param next  returns the ID of the page that follows the given one
+     */
+    public void prefetchChain(PageId first, int depth, Function<Page, PageId> next) {
+        prefetcher.execute(() -> {
+            PageId pid = first;
+            for (int i = 0; i < depth && pid != null; i++) {
+                Page page = prefetch(pid);
+                pid = page == null ? null : next.apply(page);
+            }
+        });
+    }
+
+    /**
+     * @return the page, or null if it could not be read; failures are
+     * ignored since the scan will read the page itself anyway
+     */
+    private Page prefetch(PageId pid) {
+        try {
+            return fetchPage(pid, true);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the average time in nanoseconds a page read from disk took,
+     * or -1 if no page has been read yet
+     */
+    public double getAverageReadNanos() {
+        return avgReadNanos;
+    }
+
+    /**
+     * Sets the size, as a fraction of this pool, above which sequential
+     * scans switch to a private buffer ring.
+     *
+     * @param fraction the new threshold; a value of 1 or more only sends
+     *                 tables that do not fit into the pool to a ring
+     */
+    public void setBulkReadFraction(double fraction) {
+        if (fraction <= 0) {
+            throw new IllegalArgumentException("invalid bulk read fraction: " + fraction);
+        }
+        bulkReadFraction = fraction;
+    }
+
+    public double getBulkReadFraction() {
+        return bulkReadFraction;
+    }
+
+    /**
+     * @param numPages the number of pages a sequential scan is going to read
+     * @return whether the scan should read through a {@link BufferRing}
+     */
+    public boolean useBulkRead(int numPages) {
+        return ringSize() > 0 && numPages > num_pages * bulkReadFraction;
+    }
+
+    /**
+     * A ring gets at most an eighth of the pool's size, so pools of fewer
+     * than 8 pages have no rings at all.
+     */
+    private int ringSize() {
+        return Math.min(BufferRing.DEFAULT_SIZE, num_pages / 8);
+    }
+
+    /**
+     * @return a new buffer ring reading through this pool
+     */
+    public BufferRing newBufferRing() {
+        return new BufferRing(this, Math.max(1, ringSize()));
+    }
+
+    /**
+     * Read path of {@link BufferRing#getPage}. The shared pool is consulted
+     * first, since it holds the latest version of any page that is not on
+     * disk; other pages are read into the ring and never enter the pool.
+     */
+    Page getBulkReadPage(TransactionId tid, PageId pid, BufferRing ring)
+            throws TransactionAbortedException, DbException {
+        if (pid == null) {
+            throw new DbException("NULL PageId!");
+        }
+
+        if (optimistic.isOptimistic(tid)) {
+            // its reads are private copies anyway
+            return getPage(tid, pid, Permissions.READ_ONLY);
+        }
+        boolean snapshot = versions.isSnapshot(tid);
+        if (!snapshot) {
+            lockManager.acquireLock(tid, pid, Permissions.READ_ONLY);
+        }
+
+        Shard shard = shardOf(pid);
+        synchronized (shard) {
+            Page cached = shard.pages.get(pid);
+            if (cached != null) {
+                // deliberately not reported to the policy, a scan says
+                // nothing about how hot a page is
+                hits.incrementAndGet();
+                return snapshot ? versions.read(tid, pid, cached::getBeforeImage) : cached;
+            }
+        }
+        Page page = ring.lookup(pid);
+        if (page == null) {
+            bulkReads.incrementAndGet();
+            page = getPageFile(pid).readPage(pid);
+            ring.add(page);
+        }
+        if (snapshot) {
+            // pages on disk hold committed changes, or changes whose old
+            // version is kept until they are
+            Page read = page;
+            return versions.read(tid, pid, () -> read);
+        }
+        return page;
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage} and pin it, so that
+     * it stays in the pool until it is unpinned again. Every call must be
+     * matched by a call to {@link #unpinPage}; pins the transaction still
+     * holds when it completes are released then.
+     * <p>
+     * The page is pinned as it is looked up, so it cannot be evicted between
+     * being returned and being pinned.
+     *
+     * @param tid  the ID of the transaction requesting the page
+     * @param pid  the ID of the requested page
+     * @param perm the requested permissions on the page
+     */
+    public Page getPinnedPage(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, true);
+    }
+
+    /**
+     * Pins a page on behalf of a transaction. Pins are counted, a page is
+     * evictable again once every pin on it has been released.
+     *
+     * @param tid the ID of the transaction pinning the page
+     * @param pid the ID of the page to pin
+     */
+    public void pinPage(TransactionId tid, PageId pid) {
+        Shard shard = shardOf(pid);
+        synchronized (shard) {
+            pin(shard, pid, tid);
+        }
+    }
+
+    // callers hold the shard's lock
+    private static void pin(Shard shard, PageId pid, TransactionId tid) {
+        shard.pins.computeIfAbsent(pid, p -> new HashMap<>()).merge(tid, 1, Integer::sum);
+    }
+
+    /**
+     * Releases one pin the transaction holds on a page. Does nothing if the
+     * transaction does not have the page pinned.
+     *
+     * @param tid the ID of the transaction that pinned the page
+     * @param pid the ID of the page to unpin
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+        Shard shard = shardOf(pid);
+        synchronized (shard) {
+            unpin(shard, pid, tid);
+        }
+    }
+
+    // callers hold the shard's lock
+    private static void unpin(Shard shard, PageId pid, TransactionId tid) {
+        HashMap<TransactionId, Integer> holders = shard.pins.get(pid);
+        if (holders == null) {
+            return;
+        }
+        Integer count = holders.get(tid);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            holders.put(tid, count - 1);
+        } else {
+            holders.remove(tid);
+            if (holders.isEmpty()) {
+                shard.pins.remove(pid);
+            }
+        }
+    }
+
+    /**
+     * @return the number of pins currently held on the page, by all transactions
+     */
+    public int getPinCount(PageId pid) {
+        Shard shard = shardOf(pid);
+        synchronized (shard) {
+            HashMap<TransactionId, Integer> holders = shard.pins.get(pid);
+            int n = 0;
+            if (holders != null) {
+                for (int count : holders.values()) {
+                    n += count;
+                }
+            }
+            return n;
+        }
+    }
+
+    /**
+     * @return the number of pages that are pinned at least once
+     */
+    public int getPinnedPageCount() {
+        int n = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                n += shard.pins.size();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Releases all pins the transaction still holds, e.g. those of iterators
+     * that were never closed.
+     */
+    private void unpinAll(TransactionId tid) {
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                Iterator<HashMap<TransactionId, Integer>> it = shard.pins.values().iterator();
+                while (it.hasNext()) {
+                    HashMap<TransactionId, Integer> holders = it.next();
+                    if (holders.remove(tid) != null && holders.isEmpty()) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Look the page up in its shard and load it on a miss. At most one
+     * thread reads a given page from disk at a time: concurrent misses on
+     * the same page wait for that read and share its result, so a page can
+     * never be cached twice and no thread's modifications get overwritten
+     * by a second copy.
+     * <p>
+     * Prefetches are not counted as hits or misses and do not wait for a
+     * read another thread is doing; in that case they return null.
+     */
+    private Page fetchPage(PageId pid, boolean prefetch) throws DbException {
+        return fetchPage(pid, prefetch, null);
+    }
+
+    /**
+     * Fetches a page like {@link #fetchPage(PageId, boolean)}, and pins it
+     * for a transaction in the same critical section of the shard that
+     * finds or adds it, so the page is never evictable in between.
+     *
+     * @param pinner the transaction to pin the page for, or null to not pin it
+     */
+    private Page fetchPage(PageId pid, boolean prefetch, TransactionId pinner) throws DbException {
+        Shard shard = shardOf(pid);
+        CompletableFuture<Page> load;
+        boolean owner = false;
+        synchronized (shard) {
+            Page cached = shard.pages.get(pid);
+            if (cached != null) {
+                if (!prefetch) {
+                    hits.incrementAndGet();
+                    shard.policy.pageAccessed(pid);
+                }
+                if (pinner != null) {
+                    pin(shard, pid, pinner);
+                }
+                return cached;
+            }
+            load = shard.loading.get(pid);
+            if (load != null && prefetch) {
+                return null;
+            }
+            if (load == null) {
+                load = new CompletableFuture<>();
+                shard.loading.put(pid, load);
+                owner = true;
+            }
+        }
+        if (!owner) {
+            // somebody else is reading this page already, wait for that read
+            hits.incrementAndGet();
+            dedupedReads.incrementAndGet();
+            Page page = awaitLoad(load);
+            if (pinner == null) {
+                return page;
+            }
+            synchronized (shard) {
+                // pinned before the page is looked up again, it cannot be
+                // evicted any more once it is found
+                pin(shard, pid, pinner);
+                Page cached = shard.pages.get(pid);
+                if (cached != null) {
+                    return cached;
+                }
+                unpin(shard, pid, pinner);
+            }
+            // evicted before we got to pin it, read it again
+            return fetchPage(pid, false, pinner);
+        }
+
+        if (prefetch) {
+            prefetchReads.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        Page page;
+        try {
+            // read outside the shard lock so other pages of the shard stay available
+            long start = System.nanoTime();
+            page = getPageFile(pid).readPage(pid);
+            recordReadTime(System.nanoTime() - start);
+            synchronized (shard) {
+                Page cached = shard.pages.get(pid);
+                if (cached != null) {
+                    // a newer version was installed while we were reading
+                    page = cached;
+                    shard.policy.pageAccessed(pid);
+                } else if (shard.loading.get(pid) == load) {
+                    if (shard.pages.size() >= shard.capacity) {
+                        evictPage(shard);
+                    }
+                    shard.pages.put(pid, page);
+                    shard.policy.pageAdded(pid);
+                }
+                if (pinner != null) {
+                    pin(shard, pid, pinner);
+                }
+                shard.loading.remove(pid, load);
+            }
+        } catch (Throwable e) {
+            // never leave the waiters hanging, whatever went wrong
+            synchronized (shard) {
+                shard.loading.remove(pid, load);
+            }
+            load.completeExceptionally(e);
+            throw e;
+        }
+        load.complete(page);
+        return page;
+    }
+
+    private void recordReadTime(long nanos) {
+        double avg = avgReadNanos;
+        avgReadNanos = avg < 0 ? nanos : avg + LATENCY_SMOOTHING * (nanos - avg);
+    }
+
+    private static Page awaitLoad(CompletableFuture<Page> load) throws DbException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return load.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof DbException) {
+                        throw (DbException) cause;
+                    }
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new DbException("page load failed: " + cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return the number of getPage calls served from the cache
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of getPage calls that had to read the page from disk
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of disk reads saved because the page was already
+     * being read by another thread; these calls are also counted as hits
+     */
+    public long getDeduplicatedReadCount() {
+        return dedupedReads.get();
+    }
+
+    /**
+     * @return the number of pages read from disk into a buffer ring rather
+     * than into this pool; these reads are not counted as misses
+     */
+    public long getBulkReadCount() {
+        return bulkReads.get();
+    }
+
+    /**
+     * @return the number of pages read into this pool ahead of a scan
+     */
+    public long getPrefetchCount() {
+        return prefetchReads.get();
+    }
+
+    /**
+     * @return the number of pages added to this pool with newPage
+     */
+    public long getCreatedPageCount() {
+        return createdPages.get();
     }
 
     private DbFile getPageFile(PageId pid) {
@@ -115,6 +1214,36 @@ public class BufferPool {
         lockManager.releasePage(tid, pid);
     }
 
+    /**
+     * Tells the pool a scan of a transaction has moved past a page and will
+     * not read it again. At READ COMMITTED, the transaction's lock on the
+     * page is released then if it only read the page; at SERIALIZABLE it is
+     * kept until the transaction completes.
+     *
+     * @param tid the ID of the scanning transaction
+     * @param pid the ID of the page it is done with
+     */
+    public void leavePage(TransactionId tid, PageId pid) {
+        if (tid != null && tid.getIsolationLevel() == IsolationLevel.READ_COMMITTED) {
+            lockManager.releaseSharedPage(tid, pid);
+        }
+    }
+
+    /**
+     * Tells the pool a range scan has moved past a leaf of a B+ tree whose
+     * keys it locked with {@link #lockKey}, up to a key to the right of the
+     * leaf. The key locks keep the scanned range as it was, so the
+     * transaction's lock on the page is released if it only read the page,
+     * at any isolation level. The scan must have locked the page itself, not
+     * found it locked by its transaction already.
+     *
+     * @param tid the ID of the scanning transaction
+     * @param pid the ID of the leaf it is done with
+     */
+    public void leaveKeyLockedPage(TransactionId tid, PageId pid) {
+        lockManager.releaseSharedPage(tid, pid);
+    }
+
     /**
      * Release all locks associated with a given transaction.
      *
@@ -146,33 +1275,183 @@ public class BufferPool {
             throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        ConcurrentHashMap<TransactionId, ConcurrentLinkedDeque<PageId>> tid2dirtypageIds
-                = lockManager.getTransactionDirtiedPages();
+        OptimisticConcurrency.Workspace workspace = optimistic.workspace(tid);
+        if (workspace != null && commit && !workspace.validated) {
+            try {
+                validate(tid);
+            } catch (TransactionAbortedException | DbException e) {
+                transactionComplete(tid, false);
+                throw new IOException("transaction " + tid.getId() + " could not commit", e);
+            }
+        }
+
+        List<PageId> dirtypageIds = dirtiedPages(tid);
+        ConcurrentHashMap<PageId, HashMap<Integer, Tuple>> changes = slotChanges.remove(tid);
+        if (changes != null) {
+            completeSlotChanges(tid, changes, commit);
+            dirtypageIds.removeAll(changes.keySet());
+        }
+
+        if (workspace != null && !commit) {
+            // the pages it changed never made it into the pool
+            for (PageId pid : workspace.writes.keySet()) {
+                updateFreeSpace(pid);
+            }
+        }
 
-        if (tid2dirtypageIds.containsKey(tid)) {
-            for (PageId pid : tid2dirtypageIds.get(tid)) {
+        if (!dirtypageIds.isEmpty()) {
+            for (PageId pid : dirtypageIds) {
                 if (commit) {
                     flushPage(pid);
                     try {
                         this.getPage(tid, pid, Permissions.READ_WRITE);
                     } catch (Exception e) {
                     }
+                    updateFreeSpace(pid);
                 } else {
                     int tableId = pid.getTableId();
                     Page page = getDbFileFromDisc(tableId).readPage(pid);
-                    pid2page.replace(pid, page);
+                    Shard shard = shardOf(pid);
+                    List<Lock> held = latchExclusively(Collections.singletonList(pid));
+                    try {
+                        synchronized (shard) {
+                            shard.pages.replace(pid, page);
+                        }
+                    } finally {
+                        unlatch(held);
+                    }
                     page.markDirty(false, null);
+                    updateFreeSpace(page);
                 }
             }
         }
+        if (commit && workspace == null && optimistic.hasRunning()) {
+            // optimistic transactions are validated against this commit
+            HashSet<PageId> written = new HashSet<>(lockManager.getExclusivelyLockedPages(tid));
+            if (changes != null) {
+                written.addAll(changes.keySet());
+            }
+            optimistic.logCommit(written, lockManager.getExclusivelyLockedTables(tid));
+        }
+        unpinAll(tid);
+        optimistic.complete(tid);
+        versions.complete(tid);
         lockManager.releasePages(tid);
     }
 
+    /**
+     * Writes or rolls back the records a transaction changed with record
+     * locking. On commit, a copy of each page without the changes of the
+     * transactions still running on it is written; on abort, the slots the
+     * transaction changed are restored. A page stays dirty as long as some
+     * running transaction has changed it.
+     */
+    private void completeSlotChanges(TransactionId tid, ConcurrentHashMap<PageId, HashMap<Integer, Tuple>> changes,
+                                     boolean commit)
+            throws IOException {
+        for (Map.Entry<PageId, HashMap<Integer, Tuple>> entry : changes.entrySet()) {
+            PageId pid = entry.getKey();
+            HeapPage page;
+            Shard shard = shardOf(pid);
+            synchronized (shard) {
+                // dirty pages are never evicted
+                page = (HeapPage) shard.pages.get(pid);
+            }
+            if (page == null) {
+                continue;
+            }
+            synchronized (page) {
+                HeapPage image = commit ? new HeapPage((HeapPageId) pid, page.getPageData()) : page;
+                if (!commit) {
+                    restoreSlots(page, entry.getValue());
+                }
+                TransactionId other = null;
+                for (Map.Entry<TransactionId, ConcurrentHashMap<PageId, HashMap<Integer, Tuple>>> running
+                        : slotChanges.entrySet()) {
+                    HashMap<Integer, Tuple> slots = running.getValue().get(pid);
+                    if (slots != null) {
+                        other = running.getKey();
+                        if (commit) {
+                            restoreSlots(image, slots);
+                        }
+                    }
+                }
+                if (commit) {
+                    versions.install(tid, page);
+                    getPageFile(pid).writePage(image);
+                    page.setBeforeImage(image.getPageData());
+                } else if (other == null) {
+                    page.setBeforeImage();
+                }
+                page.markDirty(other != null, other);
+                updateFreeSpace(page);
+            }
+        }
+    }
+
+    /**
+     * Records the room a heap page has once a transaction that changed it
+     * has completed. Inserts record the room they leave before their
+     * transaction commits, so an insert that is rolled back, or never
+     * gets into the pool, would leave its page looking fuller than it is.
+     */
+    private void updateFreeSpace(Page page) throws IOException {
+        DbFile file = getPageFile(page.getId());
+        if (file instanceof HeapFile && page instanceof HeapPage) {
+            ((HeapFile) file).updateFreeSpace((HeapPage) page);
+        }
+    }
+
+    // looks the page up first, if it is a heap page
+    private void updateFreeSpace(PageId pid) throws IOException {
+        if (getPageFile(pid) instanceof HeapFile) {
+            try {
+                updateFreeSpace(fetchPage(pid, false));
+            } catch (DbException e) {
+                throw new IOException("could not read back page " + pid, e);
+            }
+        }
+    }
+
+    private static void restoreSlots(HeapPage page, HashMap<Integer, Tuple> slots) {
+        for (Map.Entry<Integer, Tuple> slot : slots.entrySet()) {
+            page.restoreSlot(slot.getKey(), slot.getValue());
+        }
+    }
+
+    /**
+     * @return the pages in the pool the transaction has dirtied; with NO
+     * STEAL these are all the pages it dirtied
+     */
+    private List<PageId> dirtiedPages(TransactionId tid) {
+        ArrayList<PageId> pids = new ArrayList<>();
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                for (Page page : shard.pages.values()) {
+                    if (tid.equals(page.isDirty())) {
+                        pids.add(page.getId());
+                    }
+                }
+            }
+        }
+        return pids;
+    }
+
     private void insertPageToBufferPool(Page page) throws DbException {
-        if (pid2page.size() == num_pages) {
-            evictPage();
+        PageId pid = page.getId();
+        Shard shard = shardOf(pid);
+        synchronized (shard) {
+            if (shard.pages.containsKey(pid)) {
+                shard.pages.put(pid, page);
+                shard.policy.pageAccessed(pid);
+                return;
+            }
+            if (shard.pages.size() >= shard.capacity) {
+                evictPage(shard);
+            }
+            shard.pages.put(pid, page);
+            shard.policy.pageAdded(pid);
         }
-        pid2page.put(page.getId(), page);
     }
 
     private DbFile getDbFileFromDisc(int tableId) {
@@ -201,9 +1480,11 @@ public class BufferPool {
         DbFile dbFile = getDbFileFromDisc(tableId);
 
         ArrayList<Page> dirtyPages = dbFile.insertTuple(tid, t);
+        if (keepPrivate(tid, dirtyPages)) {
+            return;
+        }
         for (Page dirtyPage : dirtyPages) {
             dirtyPage.markDirty(true, tid);
-            discardPage(dirtyPage.getId());
             insertPageToBufferPool(dirtyPage);
         }
     }
@@ -229,22 +1510,47 @@ public class BufferPool {
         DbFile dbFile = getDbFileFromDisc(tableId);
 
         ArrayList<Page> dirtyPages = dbFile.deleteTuple(tid, t);
+        if (keepPrivate(tid, dirtyPages)) {
+            return;
+        }
         for (Page dirtyPage : dirtyPages) {
             dirtyPage.markDirty(true, tid);
             insertPageToBufferPool(dirtyPage);
         }
     }
 
+    /**
+     * Keeps the pages an optimistic transaction changed in its write set,
+     * out of the pool until it is validated.
+     *
+     * @return whether the transaction runs optimistically
+     */
+    private boolean keepPrivate(TransactionId tid, ArrayList<Page> dirtyPages) {
+        OptimisticConcurrency.Workspace workspace = optimistic.workspace(tid);
+        if (workspace == null) {
+            return false;
+        }
+        for (Page dirtyPage : dirtyPages) {
+            workspace.writes.put(dirtyPage.getId(), dirtyPage);
+            workspace.reads.put(dirtyPage.getId(), dirtyPage);
+        }
+        return true;
+    }
+
     /**
      * Flush all dirty pages to disk.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      * break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for (PageId pid : pid2page.keySet()) {
-            flushPage(pid);
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                for (Page page : shard.pages.values()) {
+                    flushPage(page);
+                }
+            }
         }
     }
 
@@ -260,7 +1566,14 @@ public class BufferPool {
     public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        pid2page.remove(pid);
+        Shard shard = shardOf(pid);
+        synchronized (shard) {
+            if (shard.pages.remove(pid) != null) {
+                shard.policy.pageRemoved(pid);
+            }
+            // an in-flight read of this page must not re-install the old copy
+            shard.loading.remove(pid);
+        }
     }
 
     /**
@@ -268,63 +1581,75 @@ public class BufferPool {
      *
      * @param pid an ID indicating the page to flush
      */
-    private synchronized void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        if (pid2page.containsKey(pid)) {
-            Page evict_page = pid2page.get(pid);
-            if (evict_page.isDirty() != null) {
-                getPageFile(pid).writePage(evict_page);
-                evict_page.markDirty(false, null);
-                evict_page.setBeforeImage();
+        Shard shard = shardOf(pid);
+        synchronized (shard) {
+            Page page = shard.pages.get(pid);
+            if (page != null) {
+                flushPage(page);
+            }
+        }
+    }
+
+    /**
+     * Writes a resident page to disk if it is dirty. Callers hold the lock
+     * of the shard the page belongs to.
+     */
+    private void flushPage(Page page) throws IOException {
+        synchronized (page) {
+            TransactionId dirtier = page.isDirty();
+            if (dirtier != null) {
+                versions.install(dirtier, page);
+                getPageFile(page.getId()).writePage(page);
+                page.markDirty(false, null);
+                page.setBeforeImage();
             }
         }
     }
 
     /**
-     * Write all pages of the specified transaction to disk.
+     * Write all pages of the specified transaction to disk. Pages it changed
+     * with record locking are left to transactionComplete, which leaves out
+     * the changes of other transactions.
      */
-    public synchronized void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        for (PageId pid : pid2page.keySet()) {
-            HeapPage heapPage = (HeapPage) pid2page.get(pid);
-
-            if (tid.equals(heapPage.isDirty())) {
-                flushPage(pid);
+        Map<PageId, HashMap<Integer, Tuple>> changes = slotChanges.getOrDefault(tid, new ConcurrentHashMap<>());
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                for (Page page : shard.pages.values()) {
+                    if (tid.equals(page.isDirty()) && !changes.containsKey(page.getId())) {
+                        flushPage(page);
+                    }
+                }
             }
         }
     }
 
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Discards a page from the given shard to make room for a new one.
+     * Callers hold the shard's lock; only that shard is affected.
      */
-    private synchronized void evictPage() throws DbException {
+    private void evictPage(Shard shard) throws DbException {
         // some code goes here
         // not necessary for lab1
-        if (pid2page.size() == 0)
+        if (shard.pages.size() == 0)
             throw new DbException("Evicting page in Empty buffer!");
 
-        PageId evict_pid = null;
-        for (PageId pid : pid2page.keySet()) {
-            Page page = pid2page.get(pid);
-            if (page != null && page.isDirty() == null) {
-                evict_pid = pid;
-                break;
-            }
-        }
+        // NO STEAL: only clean pages may leave the pool, and never pinned ones
+        PageId evict_pid = shard.policy.chooseVictim(pid -> {
+            Page page = shard.pages.get(pid);
+            return page != null && page.isDirty() == null && !shard.pins.containsKey(pid);
+        });
 
         if (evict_pid == null)
-            throw new DbException("All pages are dirty, No valid page to evict!");
+            throw new DbException("All pages are dirty or pinned, No valid page to evict!");
 
-        try {
-            flushPage(evict_pid);
-            discardPage(evict_pid);
-        } catch (IOException ioe) {
-            ioe.printStackTrace();
-        }
+        shard.pages.remove(evict_pid);
+        shard.policy.pageRemoved(evict_pid);
     }
 
 }
-
@@ -0,0 +1,74 @@
+package simpledb;
+
+/**
+ * A small private set of frames used by large sequential scans ("bulk
+ * reads"). Pages the scan finds in the shared BufferPool are used from
+ * there; all other pages are read into the ring, which recycles its frames
+ * round-robin. A scan over a table much larger than the pool therefore no
+ * longer evicts the working set of other transactions.
+ * <p>
+ * A ring belongs to a single iterator and is not thread-safe.
+ *
+ * @see BufferPool#useBulkRead
+ */
+public class BufferRing {
+
+    /**
+     * Largest number of frames of a ring created by
+     * {@link BufferPool#newBufferRing()}; a ring never gets more than an
+     * eighth of the pool's size
+     */
+    public static final int DEFAULT_SIZE = 16;
+
+    private final BufferPool pool;
+    private final Page[] frames;
+    private int next;
+
+    BufferRing(BufferPool pool, int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("ring needs at least one frame");
+        }
+        this.pool = pool;
+        this.frames = new Page[size];
+        this.next = 0;
+    }
+
+    /**
+     * Retrieve a page for reading. Acquires a shared lock on the page just
+     * like {@link BufferPool#getPage} does.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     */
+    public Page getPage(TransactionId tid, PageId pid)
+            throws TransactionAbortedException, DbException {
+        return pool.getBulkReadPage(tid, pid, this);
+    }
+
+    /**
+     * @return the ring's copy of the page, or null if it has none
+     */
+    Page lookup(PageId pid) {
+        for (Page page : frames) {
+            if (page != null && page.getId().equals(pid)) {
+                return page;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Put a page into the next frame, replacing whatever was there.
+     */
+    void add(Page page) {
+        frames[next] = page;
+        next = (next + 1) % frames.length;
+    }
+
+    /**
+     * @return the number of frames of this ring
+     */
+    public int size() {
+        return frames.length;
+    }
+}
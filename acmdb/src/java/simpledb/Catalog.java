@@ -152,6 +152,9 @@ public class Catalog {
 
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line describes one table as <tt>name (field type [pk], ...) [options]</tt>;
+     * the only option is <tt>mapped</tt>, which makes the table read its
+     * pages through a memory mapping (see {@link HeapFile#HeapFile(File, TupleDesc, boolean)}).
      *
      * @param catalogFile
      */
@@ -190,10 +193,22 @@ public class Catalog {
                         }
                     }
                 }
+                // table options follow the field list
+                boolean mapped = false;
+                for (String option : line.substring(line.indexOf(")") + 1).trim().split("\\s+")) {
+                    if (option.isEmpty())
+                        continue;
+                    if (option.toLowerCase().equals("mapped"))
+                        mapped = true;
+                    else {
+                        System.out.println("Unknown table option " + option);
+                        System.exit(0);
+                    }
+                }
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder + "/" + name + ".dat"), t);
+                HeapFile tabHf = new HeapFile(new File(baseFolder + "/" + name + ".dat"), t, mapped);
                 addTable(tabHf, name, primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
@@ -0,0 +1,98 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.Predicate;
+
+/**
+ * Second-chance CLOCK replacement. Every resident page owns a slot on a
+ * circular array together with a reference bit that is set on each hit. The
+ * hand sweeps the array, clearing reference bits, and stops at the first
+ * evictable page whose bit is already clear.
+ *
+ * @see ReplacementPolicy
+ */
+public class ClockReplacementPolicy implements ReplacementPolicy {
+
+    private PageId[] slots;
+    private boolean[] referenced;
+    private final HashMap<PageId, Integer> slotOf;
+    private final ArrayDeque<Integer> freeSlots;
+    private int used;
+    private int hand;
+
+    public ClockReplacementPolicy(int capacity) {
+        int n = Math.max(1, capacity);
+        slots = new PageId[n];
+        referenced = new boolean[n];
+        slotOf = new HashMap<>(n * 2);
+        freeSlots = new ArrayDeque<>();
+        used = 0;
+        hand = 0;
+    }
+
+    public void pageAdded(PageId pid) {
+        Integer slot = slotOf.get(pid);
+        if (slot != null) {
+            referenced[slot] = true;
+            return;
+        }
+        if (!freeSlots.isEmpty()) {
+            slot = freeSlots.pop();
+        } else {
+            if (used == slots.length) {
+                slots = Arrays.copyOf(slots, slots.length * 2);
+                referenced = Arrays.copyOf(referenced, referenced.length * 2);
+            }
+            slot = used++;
+        }
+        slots[slot] = pid;
+        // a freshly loaded page gets no second chance until it is hit again
+        referenced[slot] = false;
+        slotOf.put(pid, slot);
+    }
+
+    public void pageAccessed(PageId pid) {
+        Integer slot = slotOf.get(pid);
+        if (slot != null) {
+            referenced[slot] = true;
+        }
+    }
+
+    public void pageRemoved(PageId pid) {
+        Integer slot = slotOf.remove(pid);
+        if (slot != null) {
+            slots[slot] = null;
+            referenced[slot] = false;
+            freeSlots.push(slot);
+        }
+    }
+
+    public PageId chooseVictim(Predicate<PageId> evictable) {
+        if (slotOf.isEmpty()) {
+            return null;
+        }
+        // two full sweeps: the first one may only clear reference bits
+        for (int step = 0; step < 2 * used; step++) {
+            int cur = hand;
+            hand = (hand + 1) % used;
+            PageId pid = slots[cur];
+            if (pid == null) {
+                continue;
+            }
+            if (referenced[cur]) {
+                referenced[cur] = false;
+                continue;
+            }
+            if (evictable.test(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return slotOf.size();
+    }
+}
@@ -61,11 +61,19 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return setBufferPool(new BufferPool(pages));
+    }
+
+    /**
+     * Method used for testing -- make the given buffer pool the one of this
+     * database, e.g. one that watches how it is used, and return it
+     */
+    static BufferPool setBufferPool(BufferPool pool) {
         java.lang.reflect.Field bufferPoolF = null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), pool);
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
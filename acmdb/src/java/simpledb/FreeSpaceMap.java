@@ -0,0 +1,187 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Free-space map of a HeapFile: records for every page of the file roughly
+ * how much room it has left, so inserts can go straight to a page with a
+ * free slot instead of checking every page.
+ * <p>
+ * The map is kept in its own file next to the heap file (the heap file
+ * name plus ".fsm"), so the heap file format is unchanged. It consists of
+ * fixed size pages: the first holds a magic number and the number of heap
+ * pages the map covers, the following ones one byte per heap page with its
+ * free-space category, 0 meaning full and {@link #CATEGORIES} - 1 empty.
+ * Entries are written through when their category changes.
+ * <p>
+ * The map is only a hint. Callers must check the page itself and report
+ * what they found with {@link #update}. Pages the map does not cover yet,
+ * e.g. because the heap file was written by somebody else, are assumed to
+ * have room.
+ * <p>
+ * Inserts and deletes record the room they leave as they go, before their
+ * transaction commits. The BufferPool records it again from the committed
+ * or rolled back page when the transaction completes, so a page an
+ * aborted insert filled does not stay marked full.
+ * <p>
+ * The map of a heap file in the temporary directory is deleted on exit,
+ * like temporary heap files are.
+ *
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+
+    /** Number of distinct free-space levels recorded per page */
+    public static final int CATEGORIES = 16;
+
+    private static final int MAP_PAGE_SIZE = 4096;
+    private static final int MAGIC = 0x46534d31; // "FSM1"
+
+    private final HeapFile heapFile;
+    private final PageStore store;
+    private byte[] categories = new byte[0];
+    // pages with a category above 0, or not covered by the map
+    private final BitSet hasRoom = new BitSet();
+    private int covered = 0;
+    private boolean loaded = false;
+
+    /**
+     * @param heapFile the heap file this map describes
+     */
+    public FreeSpaceMap(HeapFile heapFile) {
+        this.heapFile = heapFile;
+        File file = new File(heapFile.getFile().getPath() + ".fsm");
+        if (isTemporary(heapFile.getFile())) {
+            file.deleteOnExit();
+        }
+        this.store = new PageStore(file);
+    }
+
+    // whether the file lives in the directory temporary files are created in
+    private static boolean isTemporary(File file) {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir == null) {
+            return false;
+        }
+        try {
+            File tmp = new File(System.getProperty("java.io.tmpdir"));
+            return dir.getCanonicalFile().equals(tmp.getCanonicalFile());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the file the map is stored in
+     */
+    public File getFile() {
+        return store.getFile();
+    }
+
+    /**
+     * @return the category of a page with the given number of free slots
+     */
+    public static int category(int freeSlots, int numSlots) {
+        if (freeSlots <= 0 || numSlots <= 0) {
+            return 0;
+        }
+        // round up, so that only full pages get category 0
+        return (int) Math.min(CATEGORIES - 1,
+                ((long) freeSlots * (CATEGORIES - 1) + numSlots - 1) / numSlots);
+    }
+
+    private void load() throws IOException {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        int heapPages = heapFile.numPages();
+        byte[] header = new byte[8];
+        if (store.getFile().exists() && store.read(0, header) == header.length) {
+            ByteBuffer bb = ByteBuffer.wrap(header);
+            int magic = bb.getInt();
+            int pages = bb.getInt();
+            // a map that covers more pages than the file has belongs to an
+            // older incarnation of the file
+            if (magic == MAGIC && pages >= 0 && pages <= heapPages) {
+                categories = new byte[pages];
+                int n = store.read(MAP_PAGE_SIZE, categories);
+                covered = Math.max(0, n);
+                for (int i = 0; i < covered; i++) {
+                    if (categories[i] != 0) {
+                        hasRoom.set(i);
+                    }
+                }
+            }
+        }
+        hasRoom.set(covered, Math.max(covered, heapPages));
+    }
+
+    /**
+     * Finds a page that may have a free slot.
+     *
+     * @param from      the page number to start looking at
+     * @param heapPages the number of pages the heap file has
+     * @return the number of the first page at or after from that may have
+     * room, or -1 if there is none
+     */
+    public synchronized int nextPageWithRoom(int from, int heapPages) throws IOException {
+        load();
+        if (heapPages > covered) {
+            // pages appended behind our back
+            hasRoom.set(Math.max(from, covered), heapPages);
+        }
+        int next = hasRoom.nextSetBit(from);
+        return next >= 0 && next < heapPages ? next : -1;
+    }
+
+    /**
+     * Records how much room a page has.
+     *
+     * @param pageNo    the page number in the heap file
+     * @param freeSlots the number of free slots on the page
+     * @param numSlots  the number of slots a page has
+     */
+    public synchronized void update(int pageNo, int freeSlots, int numSlots) throws IOException {
+        load();
+        int category = category(freeSlots, numSlots);
+        hasRoom.set(pageNo, category > 0);
+        if (pageNo < covered && categories[pageNo] == category) {
+            return;
+        }
+        if (pageNo >= categories.length) {
+            categories = Arrays.copyOf(categories, Math.max(pageNo + 1, 2 * categories.length));
+        }
+        categories[pageNo] = (byte) category;
+        if (pageNo >= covered) {
+            // pages in between that were never recorded stay "has room"
+            for (int i = covered; i < pageNo; i++) {
+                categories[i] = (byte) (CATEGORIES - 1);
+            }
+            store.write(MAP_PAGE_SIZE + covered, Arrays.copyOfRange(categories, covered, pageNo + 1));
+            covered = pageNo + 1;
+            writeHeader();
+        } else {
+            store.write(MAP_PAGE_SIZE + pageNo, new byte[]{(byte) category});
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(8);
+        bb.putInt(MAGIC);
+        bb.putInt(covered);
+        store.write(0, bb.array());
+    }
+
+    /**
+     * @return the recorded category of a page, or -1 if the map does not
+     * cover it
+     */
+    public synchronized int getCategory(int pageNo) {
+        return pageNo < covered ? categories[pageNo] : -1;
+    }
+}
@@ -1,6 +1,8 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.util.*;
 
 /**
@@ -17,6 +19,33 @@ public class HeapFile implements DbFile {
 
     private File file;
     private TupleDesc tuple_desc;
+    private final PageStore store;
+
+    /**
+     * Largest region of the file mapped at once in mapped mode; a
+     * MappedByteBuffer cannot exceed 2 GB.
+     */
+    private static final int MAX_SEGMENT_BYTES = 1 << 30;
+
+    /**
+     * Number of pages the file grows by when inserts run out of room,
+     * unless changed with {@link #setExtentPages}.
+     */
+    public static final int DEFAULT_EXTENT_PAGES = 8;
+
+    private final boolean mapped;
+    private final FreeSpaceMap free_space;
+
+    // page allocation, guarded by this: pages [next_page, extent_end) have
+    // been preallocated on disk but not handed out yet; extent_end is -1
+    // until the file size has been looked at
+    private int extent_pages = DEFAULT_EXTENT_PAGES;
+    private int next_page = 0;
+    private int extent_end = -1;
+    // mapped mode only: the mapped segments of the file, by segment number,
+    // and the segment size they were mapped with
+    private final HashMap<Integer, MappedByteBuffer> segments = new HashMap<>();
+    private long segment_bytes = 0;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -25,9 +54,50 @@ public class HeapFile implements DbFile {
      *          file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, optionally in
+     * mapped mode. In mapped mode pages are parsed straight out of a
+     * read-only memory mapping of the file instead of being read into a
+     * fresh array; this suits large tables that are mostly read. Writes go
+     * to the file as usual and are seen through the mapping.
+     *
+     * @param f      the file that stores the on-disk backing store for this heap
+     *               file.
+     * @param mapped whether to read pages through a memory mapping
+     */
+    public HeapFile(File f, TupleDesc td, boolean mapped) {
         this.file = f;
         this.tuple_desc = td;
+        this.store = new PageStore(f);
+        this.mapped = mapped;
+        this.free_space = new FreeSpaceMap(this);
+    }
+
+    /**
+     * @return the map this file uses to find pages with room for inserts
+     */
+    public FreeSpaceMap getFreeSpaceMap() {
+        return free_space;
+    }
+
+    /**
+     * Records the room a page has in the free-space map, once the
+     * transaction that changed it has committed or rolled back.
+     *
+     * @param page the page as it is after the transaction completed
+     */
+    void updateFreeSpace(HeapPage page) throws IOException {
+        free_space.update(page.getId().pageNumber(), page.getNumEmptySlots(), page.numSlots);
+    }
 
+    /**
+     * @return whether this file reads its pages through a memory mapping
+     */
+    public boolean isMapped() {
+        return mapped;
     }
 
     /**
@@ -64,14 +134,16 @@ public class HeapFile implements DbFile {
 
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
-        int offset = BufferPool.getPageSize() * pid.pageNumber();
-        byte[] data = new byte[BufferPool.getPageSize()];
+        long offset = (long) BufferPool.getPageSize() * pid.pageNumber();
         try {
-            // TODO: some problem in reading chunks
-            RandomAccessFile reader = new RandomAccessFile(file, "r");
-            reader.seek(offset);
-            reader.read(data);
-            reader.close();
+            if (mapped) {
+                Page page = readMappedPage((HeapPageId) pid);
+                if (page != null) {
+                    return page;
+                }
+            }
+            byte[] data = new byte[BufferPool.getPageSize()];
+            store.read(offset, data);
             return new HeapPage((HeapPageId) pid, data);
         } catch (IOException e) {
             System.err.println("Fail when reading dbfiles");
@@ -79,23 +151,135 @@ public class HeapFile implements DbFile {
         return null;
     }
 
+    /**
+     * @return the page sliced out of the mapping, or null if it does not
+     * lie within the file
+     */
+    private Page readMappedPage(HeapPageId pid) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        // a page never straddles two segments
+        long segmentBytes = (long) (MAX_SEGMENT_BYTES / pageSize) * pageSize;
+        long offset = (long) pageSize * pid.pageNumber();
+        int segmentNo = (int) (offset / segmentBytes);
+        int start = (int) (offset % segmentBytes);
+
+        MappedByteBuffer segment = getSegment(segmentNo, segmentBytes, start + pageSize);
+        if (segment == null) {
+            return null;
+        }
+        ByteBuffer page = segment.duplicate();
+        page.position(start);
+        page.limit(start + pageSize);
+        return new HeapPage(pid, page.slice());
+    }
+
+    /**
+     * Returns the given segment mapped at least up to the given length,
+     * mapping it again if the file has grown since.
+     */
+    private synchronized MappedByteBuffer getSegment(int segmentNo, long segmentBytes, int minLength)
+            throws IOException {
+        if (segment_bytes != segmentBytes) {
+            // the page size changed
+            segments.clear();
+            segment_bytes = segmentBytes;
+        }
+        MappedByteBuffer segment = segments.get(segmentNo);
+        if (segment != null && segment.capacity() >= minLength) {
+            return segment;
+        }
+        long start = segmentNo * segmentBytes;
+        long length = Math.min(segmentBytes, store.size() - start);
+        if (length < minLength) {
+            return null;
+        }
+        segment = store.map(start, length);
+        segments.put(segmentNo, segment);
+        return segment;
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
         int pagesize = BufferPool.getPageSize();
-        int offset = pagesize * page.getId().pageNumber();
-        RandomAccessFile writer = new RandomAccessFile(file, "rw");
-        writer.seek(offset);
-        writer.write(page.getPageData());
-        writer.close();
+        long offset = (long) pagesize * page.getId().pageNumber();
+        store.write(offset, page.getPageData());
     }
 
     /**
      * Returns the number of pages in this HeapFile.
      */
-    public int numPages() {
-        return (int) Math.ceil(file.length() * 1.0 / BufferPool.getPageSize());
+    public synchronized int numPages() {
+        int onDisk = (int) Math.ceil(file.length() * 1.0 / BufferPool.getPageSize());
+        if (onDisk != extent_end) {
+            // first call, or the file was changed behind our back: every page
+            // it has now counts
+            next_page = onDisk;
+            extent_end = onDisk;
+        }
+        // preallocated pages that were not handed out yet do not count
+        return next_page;
+    }
+
+    /**
+     * Sets the number of pages the file grows by at once when an insert
+     * finds no page with room.
+     *
+     * @param pages the extent size in pages, at least 1
+     */
+    public synchronized void setExtentPages(int pages) {
+        if (pages < 1) {
+            throw new IllegalArgumentException("invalid extent size: " + pages);
+        }
+        extent_pages = pages;
+    }
+
+    /**
+     * @return the number of pages the file grows by at once
+     */
+    public synchronized int getExtentPages() {
+        return extent_pages;
+    }
+
+    /**
+     * Record locking: puts the tuple into the first empty slot of the page
+     * that no other transaction holds a lock on. A slot another transaction
+     * emptied is still locked by it, since that transaction might roll the
+     * delete back.
+     *
+     * @return whether a slot was found
+     */
+    private boolean insertIntoFreeSlot(TransactionId tid, HeapPage page, Tuple t)
+            throws DbException, TransactionAbortedException {
+        BufferPool bufferPool = Database.getBufferPool();
+        synchronized (page) {
+            for (int slot = 0; slot < page.numSlots; slot++) {
+                if (!page.isSlotUsed(slot) && bufferPool.tryLockRecord(tid, new RecordId(page.getId(), slot))) {
+                    page.insertTuple(t, slot);
+                    bufferPool.recordSlotChange(tid, page.getId(), slot, null);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hands out the next unused page number. The file is grown by a whole
+     * extent of empty pages when the preallocated ones run out, so the page
+     * is always backed by zeroed space on disk, which reads as an empty
+     * HeapPage.
+     */
+    private synchronized int allocatePage() throws IOException {
+        int pageNo = numPages();
+        if (pageNo >= extent_end) {
+            int pageSize = BufferPool.getPageSize();
+            store.write((long) pageSize * extent_end, new byte[pageSize * extent_pages]);
+            extent_end += extent_pages;
+        }
+        next_page = pageNo + 1;
+        return pageNo;
     }
 
     // see DbFile.java for javadocs
@@ -103,41 +287,62 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         ArrayList<Page> dirtyPages = new ArrayList<>();
+        BufferPool bufferPool = Database.getBufferPool();
 
-        int i = 0;
-        while (i < numPages()){
+        // only visit the pages the free-space map says have room
+        int num_pages = numPages();
+        int i = free_space.nextPageWithRoom(0, num_pages);
+        while (i >= 0){
             PageId pageId = new HeapPageId(getId(), i);
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY);
+            if (bufferPool.isRecordLocking()) {
+                HeapPage page = (HeapPage) bufferPool.getPageForRecords(tid, pageId, Permissions.READ_WRITE);
+                if (insertIntoFreeSlot(tid, page, t)) {
+                    dirtyPages.add(page);
+                    free_space.update(i, page.getNumEmptySlots(), page.numSlots);
+                    return dirtyPages;
+                }
+                if (page.getNumEmptySlots() == 0) {
+                    free_space.update(i, 0, page.numSlots);
+                }
+                i = free_space.nextPageWithRoom(i + 1, num_pages);
+                continue;
+            }
+            // an update lock, so that two inserters looking at the same page
+            // do not both wait for the other to let go of it to upgrade
+            boolean locked = bufferPool.holdsLock(tid, pageId);
+            HeapPage page = (HeapPage) bufferPool.getPage(tid, pageId, Permissions.READ_FOR_UPDATE);
             if (page.getNumEmptySlots() > 0){
-                page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
+                page = (HeapPage) bufferPool.getPage(tid, pageId, Permissions.READ_WRITE);
                 try{
                     page.insertTuple(t);
                     dirtyPages.add(page);
-                    return dirtyPages;
                 }catch (Exception e){
                     throw new DbException("Insertion Error");
                 }
+                free_space.update(i, page.getNumEmptySlots(), page.numSlots);
+                return dirtyPages;
             } else{
-                Database.getBufferPool().releasePage(tid, pageId);
+                // the map was out of date
+                free_space.update(i, 0, page.numSlots);
+                if (!locked) {
+                    bufferPool.releasePage(tid, pageId);
+                }
             }
-            i++;
+            i = free_space.nextPageWithRoom(i + 1, num_pages);
         }
 
-
-        HeapPageId heapPageId = new HeapPageId(getId(), numPages());
-        HeapPage newpage = new HeapPage(heapPageId, HeapPage.createEmptyPageData());
-        // TODO: This write might be illegal, cannot directly write page !!!
-//      newpage.insertTuple(t);
-//      this.writePage(newpage);
-//      dirtyPages.add(newpage);
-
-        //----new-----
-
-        this.writePage(newpage);
-        HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid, heapPageId, Permissions.READ_WRITE);
-        heapPage.insertTuple(t);
+        // no room anywhere: take a fresh page; it is empty on disk already,
+        // so it is created in the buffer pool instead of being read
+        HeapPageId heapPageId = new HeapPageId(getId(), allocatePage());
+        HeapPage heapPage = (HeapPage) bufferPool.newPage(tid,
+                new HeapPage(heapPageId, HeapPage.createEmptyPageData()));
+        if (!bufferPool.isRecordLocking()) {
+            heapPage.insertTuple(t);
+        } else if (!insertIntoFreeSlot(tid, heapPage, t)) {
+            throw new DbException("No free slot on new page " + heapPageId.pageNumber());
+        }
         dirtyPages.add(heapPage);
-        //----end-----
+        free_space.update(heapPageId.pageNumber(), heapPage.getNumEmptySlots(), heapPage.numSlots);
 
         return dirtyPages;
     }
@@ -150,8 +355,29 @@ public class HeapFile implements DbFile {
         if (getId() != pageId.getTableId())
             throw new DbException("Deletion on Wrong Table");
 
-        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
-        page.deleteTuple(t);
+        BufferPool bufferPool = Database.getBufferPool();
+        HeapPage page;
+        if (bufferPool.isRecordLocking()) {
+            RecordId rid = t.getRecordId();
+            bufferPool.lockRecord(tid, rid, Permissions.READ_WRITE);
+            page = (HeapPage) bufferPool.getPageForRecords(tid, pageId, Permissions.READ_WRITE);
+            synchronized (page) {
+                int slot = rid.tupleno();
+                Tuple before = page.isSlotUsed(slot) ? page.tuples[slot] : null;
+                page.deleteTuple(t);
+                bufferPool.recordSlotChange(tid, pageId, slot, before);
+            }
+        } else {
+            page = (HeapPage) bufferPool.getPage(tid, pageId, Permissions.READ_WRITE);
+            page.deleteTuple(t);
+        }
+        try {
+            free_space.update(pageId.pageNumber(), page.getNumEmptySlots(), page.numSlots);
+        } catch (IOException e) {
+            // the map is brought up to date again from the page when the
+            // transaction completes
+            System.err.println("Fail when updating free-space map");
+        }
         ArrayList<Page> dirtyPages = new ArrayList<>();
         dirtyPages.add(page);
         return dirtyPages;
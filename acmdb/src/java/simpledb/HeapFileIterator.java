@@ -9,6 +9,14 @@ public class HeapFileIterator implements DbFileIterator {
     private int max_pages;
     private TransactionId tid;
     private BufferPool buffer_pool;
+    // the page cur_tuple_iter runs over; it stays pinned until we move on
+    private HeapPageId pinned_page = null;
+    // the page cur_tuple_iter runs over, whether pinned or read into the ring
+    private HeapPageId cur_page = null;
+    // private frames for scans of tables too large for the pool, see BufferRing
+    private BufferRing ring = null;
+    // reads the following pages into the pool while we work on this one
+    private ReadAhead read_ahead = null;
 
     // 这里一开始以为要用page iterator,但其实我们要遍历的是table上的tuple
     // page只是tuple存储时的数据结构；而且page.iterator返回的就是Tuple类型的iterator
@@ -33,16 +41,45 @@ public class HeapFileIterator implements DbFileIterator {
 //            isEmpty = (page.numSlots == page.getNumEmptySlots());
 //            page_id = new HeapPageId(page_id.getTableId(), page_id.pageNumber() + 1);
 //        }while(isEmpty && page_id.pageNumber() < max_pages);
-        HeapPage page = (HeapPage) buffer_pool.getPage(tid, page_id, Permissions.READ_ONLY);
+        leaveCurrentPage();
+        HeapPage page;
+        if (ring != null) {
+            page = (HeapPage) ring.getPage(tid, page_id);
+        } else {
+            page = (HeapPage) buffer_pool.getPinnedPage(tid, page_id, Permissions.READ_ONLY);
+            pinned_page = page_id;
+            read_ahead.advance(table_id, page_id.pageNumber(), max_pages);
+        }
+        cur_page = page_id;
 
         return page.iterator();
     }
 
+    // unpins the current page, and lets go of its lock at READ COMMITTED
+    private void leaveCurrentPage() {
+        if (pinned_page != null) {
+            buffer_pool.unpinPage(tid, pinned_page);
+            pinned_page = null;
+        }
+        if (cur_page != null) {
+            buffer_pool.leavePage(tid, cur_page);
+            cur_page = null;
+        }
+    }
+
     @Override
     public void open() throws DbException, TransactionAbortedException {
         if (this.cur_tuple_iter != null){
             throw new DbException("already opened");
         }
+        // one table lock instead of a lock on every page, except at READ
+        // COMMITTED, where the page locks are let go of as the scan moves on
+        buffer_pool.lockTable(tid, table_id, Permissions.READ_ONLY);
+        if (ring == null && buffer_pool.useBulkRead(max_pages)) {
+            ring = buffer_pool.newBufferRing();
+        }
+        // prefetched pages would go into the pool, which a ring scan avoids
+        read_ahead = ring == null ? new ReadAhead(buffer_pool) : null;
         this.cur_tuple_iter = GetTupleIterator(new HeapPageId(table_id, page_id));
     }
 
@@ -60,6 +97,7 @@ public class HeapFileIterator implements DbFileIterator {
             // TODO: Problem!! large data replacement but iterator has no next!
 //            System.err.println("full page " + page_id + " " + max_pages);
 //            throw new DbException("Page exceed max-page-size");
+            leaveCurrentPage();
             return false;
         }
         // ptr at the last tuple of current page, but still there are non-empty pages.
@@ -84,6 +122,7 @@ public class HeapFileIterator implements DbFileIterator {
 
     @Override
     public void close() {
+        leaveCurrentPage();
         cur_tuple_iter = null;
         page_id = 0;
     }
@@ -2,6 +2,8 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
@@ -18,7 +20,11 @@ public class HeapPage implements Page {
     final Tuple tuples[];
     final int numSlots;
 
-    byte[] oldData;
+    // the bytes of the before image: those the page was read from, or those
+    // it was written out with last. A slice of a mapped file is kept as it
+    // is, its region only changes when the page is flushed, and flushing a
+    // page sets its before image anew
+    private ByteBuffer oldData;
     private final Byte oldDataLock = new Byte((byte) 0);
 
     private TransactionId dirty_transaction;
@@ -41,18 +47,48 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage straight from a buffer holding the page, such as a
+     * slice of a memory mapped file, without copying it into an array
+     * first. Reads the buffer from its position to its limit, and keeps
+     * those bytes as the before image of the page.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, final ByteBuffer data) throws IOException {
         this.dirty_transaction = null;
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this.oldData = data.slice().asReadOnlyBuffer();
 
         // allocate and read the header slots of this page
+        // TODO: When convert, the jar package presume pagesize=4096,
+        //  which might cause err if we change pagesize by ourseld.
         header = new byte[getHeaderSize()];
-        for (int i = 0; i < header.length; i++)
-            // TODO: When convert, the jar package presume pagesize=4096,
-            //  which might cause err if we change pagesize by ourseld.
-            header[i] = dis.readByte();
+        try {
+            data.get(header);
+        } catch (BufferUnderflowException e) {
+            throw new EOFException();
+        }
+        // the fields parse themselves from a stream, read straight off the buffer
+        DataInputStream dis = new DataInputStream(new InputStream() {
+            public int read() {
+                return data.hasRemaining() ? data.get() & 0xff : -1;
+            }
+
+            public int read(byte[] b, int off, int len) {
+                if (!data.hasRemaining()) {
+                    return len == 0 ? 0 : -1;
+                }
+                int n = Math.min(len, data.remaining());
+                data.get(b, off, n);
+                return n;
+            }
+        });
         tuples = new Tuple[numSlots];
         try {
             // allocate and read the actual records of this page
@@ -62,7 +98,6 @@ public class HeapPage implements Page {
             e.printStackTrace();
         }
         dis.close();
-        setBeforeImage();
     }
 
     /**
@@ -91,9 +126,9 @@ public class HeapPage implements Page {
      */
     public HeapPage getBeforeImage() {
         try {
-            byte[] oldDataRef = null;
+            ByteBuffer oldDataRef = null;
             synchronized (oldDataLock) {
-                oldDataRef = oldData;
+                oldDataRef = oldData.duplicate();
             }
             return new HeapPage(pid, oldDataRef);
         } catch (IOException e) {
@@ -105,8 +140,20 @@ public class HeapPage implements Page {
     }
 
     public void setBeforeImage() {
+        // getPageData serialises the page into a new array already
+        byte[] data = getPageData();
+        synchronized (oldDataLock) {
+            oldData = ByteBuffer.wrap(data).asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * Makes the given data the before image, for a page whose committed
+     * state is not what it holds right now.
+     */
+    void setBeforeImage(byte[] data) {
         synchronized (oldDataLock) {
-            oldData = getPageData().clone();
+            oldData = ByteBuffer.wrap(data).asReadOnlyBuffer();
         }
     }
 
@@ -295,6 +342,47 @@ public class HeapPage implements Page {
         }
     }
 
+    /**
+     * Adds the specified tuple to the given slot of the page, which must be
+     * empty. The tuple's recordId is updated to reflect that it is now
+     * stored on this page. Used with record-level locking, where a slot is
+     * locked before it is filled.
+     *
+     * @param t    The tuple to add.
+     * @param slot The empty slot to put it in.
+     * @throws DbException if the slot is in use or tupledesc is mismatch.
+     */
+    void insertTuple(Tuple t, int slot) throws DbException {
+        if (t == null)
+            throw new DbException("Tuple is null");
+        if (slot < 0 || slot >= numSlots || isSlotUsed(slot))
+            throw new DbException("Slot " + slot + " is not free");
+        if (!td.equals(t.getTupleDesc()))
+            throw new DbException("Tuples not in the same schema");
+
+        t.setRecordId(new RecordId(pid, slot));
+        tuples[slot] = t;
+        markSlotUsed(slot, true);
+    }
+
+    /**
+     * Puts a slot back into an earlier state, to roll back the changes one
+     * transaction made to a page other transactions have changed too.
+     *
+     * @param slot   the slot to restore
+     * @param before the tuple the slot held, or null if it was empty
+     */
+    void restoreSlot(int slot, Tuple before) {
+        if (before == null) {
+            tuples[slot] = null;
+            markSlotUsed(slot, false);
+        } else {
+            before.setRecordId(new RecordId(pid, slot));
+            tuples[slot] = before;
+            markSlotUsed(slot, true);
+        }
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -32,14 +32,18 @@ public class HeapPageId implements PageId {
         return page_number;
     }
 
+    public String toString() {
+        return "(tableId: " + table_id + ", pgNo: " + page_number + ")";
+    }
+
     /**
-     * @return a hash code for this page, represented by the concatenation of
-     *   the table number and the page number (needed if a PageId is used as a
-     *   key in a hash table in the BufferPool, for example.)
+     * @return a hash code for this page, combined from the table number and
+     *   the page number (needed if a PageId is used as a key in a hash table
+     *   in the BufferPool, for example.)
      * @see BufferPool
      */
     public int hashCode() {
-        return (String.valueOf(table_id) + String.valueOf(page_number)).hashCode();
+        return 31 * table_id + page_number;
     }
 
     /**
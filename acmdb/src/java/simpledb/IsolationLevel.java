@@ -0,0 +1,19 @@
+package simpledb;
+
+/**
+ * How much of the changes of concurrent transactions a transaction may see.
+ */
+public enum IsolationLevel {
+    /**
+     * Strict two-phase locking: every lock is held until the transaction
+     * completes. This is the default.
+     */
+    SERIALIZABLE,
+    /**
+     * Only committed changes are read, but scans release the shared lock on
+     * each page once they have moved past it, so a page read twice may have
+     * changed in between. Locks on pages the transaction changed, or read
+     * for update, are still held until it completes.
+     */
+    READ_COMMITTED
+}
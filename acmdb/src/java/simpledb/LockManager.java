@@ -1,196 +1,1283 @@
 package simpledb;
 
-import com.sun.tools.javac.util.List;
-
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * LockManager keeps the locks of all transactions of a BufferPool.
+ * <p>
+ * Locks are taken at two granularities, tables and pages. A transaction
+ * that locks a page first takes an intention lock (IS for reading, IX for
+ * writing) on its table; a transaction that reads or writes a whole table
+ * takes one S or X lock on the table instead of locking its pages, which
+ * the table lock then covers. Shared table locks are upgraded to SIX when
+ * the transaction also writes some pages.
+ * <p>
+ * Pages that are read to decide whether to write them are locked in
+ * UPDATE mode: it lets readers in, but no other updaters or writers, so
+ * two transactions never both hold a page shared and wait for each other
+ * to upgrade.
+ * <p>
+ * Single records can be locked too, for transactions that change a few
+ * tuples of a page others are changing at the same time: the record's page
+ * and table are then only locked in an intention mode, and a record lock
+ * is covered by a lock on its page or table.
+ * <p>
+ * The keys of a B+ tree index can be locked as well, for range scans that
+ * must not see phantoms. A lock on a key stands for the key and the gap
+ * below it, down to the next lower key in the index, so a scan that locks
+ * the keys it reads and the next key above its range keeps others from
+ * inserting into the range. Writers only check that no other transaction
+ * holds the key they delete or insert below, without keeping a lock on it;
+ * see {@link #acquireInstantKeyLock}.
+ * <p>
+ * A transaction that piles up more than {@link #DEFAULT_ESCALATION_THRESHOLD}
+ * page locks on one table has them replaced by a single S or X lock on the
+ * table, as soon as that lock can be granted without waiting.
+ * <p>
+ * Every locked table, page or record has a request queue: the group of transactions the lock
+ * is granted to, and the requests waiting for it in FIFO order. A request
+ * that cannot be granted parks its thread on the queue until a release (or
+ * a waiter giving up) grants it. Requests are granted in order, so a new
+ * shared request does not overtake a waiting exclusive one. Lock upgrades
+ * (S or U to X by a transaction already holding S or U) go ahead of the other
+ * waiters.
+ * <p>
+ * Deadlocks are handled according to the {@link DeadlockPolicy}. By default
+ * a background thread looks for cycles in the waits-for graph every
+ * {@link #DEFAULT_DETECTION_INTERVAL_MS} ms while there are waiters, and
+ * aborts the youngest transaction of each cycle it finds. A waiter that is
+ * aborted gets a TransactionAbortedException from acquireLock.
+ * <p>
+ * Lock waits can be bounded by a lock timeout, for all transactions or for
+ * single ones, and a transaction can be given a deadline. A transaction
+ * that waits past either, or asks for a lock after its deadline, aborts
+ * with {@link TransactionAbortedException.Reason#LOCK_TIMEOUT} or
+ * {@link TransactionAbortedException.Reason#DEADLINE}.
+ * <p>
+ * What the lock manager knows about a transaction, the locks it holds and
+ * its lock timeout and deadline, is kept together and cached on its
+ * TransactionId. Asking again for a lock the transaction holds already,
+ * as every scan of a page it has read before does, then costs one lookup
+ * in a map only that transaction adds to, and touches no shared state.
+ * <p>
+ * The requests that have to wait are recorded in the {@link LockMetrics}
+ * of the lock manager; see {@link LockMetrics#registerMBean} to watch them
+ * over JMX.
+ *
+ * @Threadsafe
+ */
 public class LockManager {
-    private final ConcurrentHashMap<PageId, Object> locks;
-    private final ConcurrentHashMap<PageId, TransactionId> exclusiveLocks;
-    private final ConcurrentHashMap<PageId, ConcurrentLinkedDeque<TransactionId>> sharedLocks;
-    private final ConcurrentHashMap<TransactionId, ConcurrentLinkedDeque<PageId>> transactionHoldLocks;
-    // transaction holds XLock == this page is dirtied by the transaction
-    private final ConcurrentHashMap<TransactionId, ConcurrentLinkedDeque<PageId>> transactionHoldXLocks;
-    private final ConcurrentHashMap<TransactionId, ConcurrentLinkedDeque<TransactionId>> dependencyGraph;
+
+    /**
+     * The modes a table, page or record can be locked in. Records are only
+     * locked SHARED, UPDATE or EXCLUSIVE, and so are pages unless their
+     * records are locked.
+     */
+    public enum LockMode {
+        INTENTION_SHARED, INTENTION_EXCLUSIVE, SHARED, UPDATE, SHARED_INTENTION_EXCLUSIVE, EXCLUSIVE;
+
+        // COMPATIBLE[a][b]: a may be held by one transaction while b is held by another
+        private static final boolean[][] COMPATIBLE = {
+                // IS   IX     S      U      SIX    X
+                {true,  true,  true,  true,  true,  false}, // IS
+                {true,  true,  false, false, false, false}, // IX
+                {true,  false, true,  true,  false, false}, // S
+                {true,  false, true,  false, false, false}, // U
+                {true,  false, false, false, false, false}, // SIX
+                {false, false, false, false, false, false}, // X
+        };
+
+        // COVERS[a][b]: holding a implies holding b
+        private static final boolean[][] COVERS = {
+                // IS   IX     S      U      SIX    X
+                {true,  false, false, false, false, false}, // IS
+                {true,  true,  false, false, false, false}, // IX
+                {true,  false, true,  false, false, false}, // S
+                {true,  false, true,  true,  false, false}, // U
+                {true,  true,  true,  true,  true,  false}, // SIX
+                {true,  true,  true,  true,  true,  true}, // X
+        };
+
+        /**
+         * @return whether two transactions may hold the same lock in this
+         * mode and the other one at the same time
+         */
+        public boolean compatibleWith(LockMode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /**
+         * @return whether holding this mode implies holding the other one
+         */
+        public boolean covers(LockMode other) {
+            return COVERS[ordinal()][other.ordinal()];
+        }
+
+        /**
+         * @return the weakest mode that covers both this one and the other
+         */
+        public LockMode combine(LockMode other) {
+            if (covers(other)) {
+                return this;
+            }
+            if (other.covers(this)) {
+                return other;
+            }
+            // S or U and IX are the only modes neither of which covers the other
+            return SHARED_INTENTION_EXCLUSIVE;
+        }
+
+        /**
+         * @return the intention mode to hold on a table to take this mode on
+         * one of its pages, or on a page to take it on one of its records
+         */
+        public LockMode intention() {
+            return this == SHARED || this == INTENTION_SHARED ? INTENTION_SHARED : INTENTION_EXCLUSIVE;
+        }
+
+        public static LockMode of(Permissions perm) {
+            if (perm == Permissions.READ_WRITE) {
+                return EXCLUSIVE;
+            }
+            return perm == Permissions.READ_FOR_UPDATE ? UPDATE : SHARED;
+        }
+    }
+
+    /**
+     * Identifies the lock on a whole table in the lock table.
+     */
+    private static final class TableLock {
+        final int tableId;
+
+        TableLock(int tableId) {
+            this.tableId = tableId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TableLock && ((TableLock) o).tableId == tableId;
+        }
+
+        @Override
+        public int hashCode() {
+            return tableId;
+        }
+    }
+
+    /**
+     * Identifies the lock on a key of a B+ tree index, and the gap below it,
+     * in the lock table. A null key stands for the end of the index, the gap
+     * above its largest key.
+     */
+    private static final class KeyLock {
+        final int tableId;
+        final Field key;
+
+        KeyLock(int tableId, Field key) {
+            this.tableId = tableId;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof KeyLock) || ((KeyLock) o).tableId != tableId) {
+                return false;
+            }
+            Field other = ((KeyLock) o).key;
+            return key == null ? other == null : other != null && key.equals(other);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * tableId + (key == null ? 0 : key.hashCode());
+        }
+    }
+
+    /**
+     * The locks of one transaction, and its settings.
+     */
+    static final class TransactionLocks {
+        // the lock manager this belongs to
+        final LockManager owner;
+        // the tables, pages and records the transaction holds a lock on, and the mode
+        final ConcurrentHashMap<Object, LockMode> held = new ConcurrentHashMap<>();
+        // the number of page locks the transaction holds, by table
+        final ConcurrentHashMap<Integer, Integer> pageCounts = new ConcurrentHashMap<>();
+        // lock timeout in ms, or -1 to use the default
+        volatile long lockTimeout = -1;
+        // deadline as a System.nanoTime() value, if hasDeadline
+        volatile long deadline;
+        volatile boolean hasDeadline = false;
+        // set once the transaction has released its locks; a later request
+        // starts over with a new TransactionLocks
+        volatile boolean released = false;
+
+        TransactionLocks(LockManager owner) {
+            this.owner = owner;
+        }
+
+        LockMode get(Object resource) {
+            return held.get(resource);
+        }
+
+        boolean holds(Object resource, LockMode mode) {
+            LockMode current = held.get(resource);
+            return current != null && current.covers(mode);
+        }
+    }
+
+    /**
+     * How deadlocks are dealt with.
+     */
+    public enum DeadlockPolicy {
+        /**
+         * Let transactions wait for each other and break the cycles a
+         * background detector finds by aborting their youngest transaction.
+         */
+        DETECT,
+        /**
+         * Prevention: an older transaction may wait for a younger one, a
+         * younger one that would have to wait for an older one aborts.
+         */
+        WAIT_DIE,
+        /**
+         * Prevention: an older transaction that would have to wait for a
+         * younger one aborts ("wounds") it instead, a younger one waits.
+         * A wounded transaction that is not waiting aborts the next time it
+         * asks for a lock.
+         */
+        WOUND_WAIT
+    }
+
+    /**
+     * Time between two searches of the waits-for graph under the DETECT
+     * policy, unless changed with {@link #setDetectionInterval}.
+     */
+    public static final long DEFAULT_DETECTION_INTERVAL_MS = 50;
+
+    /**
+     * Number of page locks a transaction may hold on one table before they
+     * are escalated to a table lock, unless changed with
+     * {@link #setEscalationThreshold}.
+     */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 5000;
+
+    /**
+     * Background thread that searches the waits-for graphs for cycles,
+     * shared by all lock managers. It only has work while some lock manager
+     * has waiters.
+     */
+    private static final ScheduledExecutorService detector = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "simpledb-deadlock-detector");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * A transaction's request for a lock, waiting in a queue until granted.
+     */
+    private static class Request {
+        final TransactionId tid;
+        final LockMode mode;
+        final boolean upgrade;
+        boolean granted = false;
+        // set when the transaction was chosen to abort while waiting
+        boolean aborted = false;
+
+        Request(TransactionId tid, LockMode mode, boolean upgrade) {
+            this.tid = tid;
+            this.mode = mode;
+            this.upgrade = upgrade;
+        }
+    }
+
+    /**
+     * The granted group and the waiters of one table, page or record. All fields are guarded
+     * by the queue's monitor, which is also what waiters wait on.
+     */
+    private static class LockQueue {
+        final LinkedHashMap<TransactionId, LockMode> granted = new LinkedHashMap<>();
+        final LinkedList<Request> waiting = new LinkedList<>();
+        // set once the queue has been dropped from the lock table; it must
+        // not be used any more then
+        boolean removed = false;
+    }
+
+    // lock queues by PageId, RecordId, TableLock or KeyLock
+    private final ConcurrentHashMap<Object, LockQueue> lockTable;
+    // the locks and settings of each transaction that holds or asked for locks
+    private final ConcurrentHashMap<TransactionId, TransactionLocks> transactions;
+    // the requests that are waiting right now, and the queue they wait in
+    private final ConcurrentHashMap<Request, LockQueue> waiting;
+    // WOUND_WAIT only: transactions that have to abort
+    private final Set<TransactionId> wounded;
+    private final AtomicBoolean detectionScheduled;
+    private final AtomicLong deadlockVictims;
+    private final AtomicLong escalations;
+    private final AtomicLong timeouts;
+    private final LockMetrics metrics;
+
+    private volatile DeadlockPolicy policy = DeadlockPolicy.DETECT;
+    private volatile long detectionInterval = DEFAULT_DETECTION_INTERVAL_MS;
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+    // 0 waits as long as it takes
+    private volatile long defaultLockTimeout = 0;
 
     private LockManager() {
-        locks = new ConcurrentHashMap<>();
-        sharedLocks = new ConcurrentHashMap<>();
-        exclusiveLocks = new ConcurrentHashMap<>();
-        transactionHoldLocks = new ConcurrentHashMap<>();
-        transactionHoldXLocks = new ConcurrentHashMap<>();
-        dependencyGraph = new ConcurrentHashMap<>();
+        lockTable = new ConcurrentHashMap<>();
+        transactions = new ConcurrentHashMap<>();
+        waiting = new ConcurrentHashMap<>();
+        wounded = ConcurrentHashMap.newKeySet();
+        detectionScheduled = new AtomicBoolean(false);
+        deadlockVictims = new AtomicLong(0);
+        escalations = new AtomicLong(0);
+        timeouts = new AtomicLong(0);
+        metrics = new LockMetrics();
     }
 
     public static LockManager GetLockManager() {
         return new LockManager();
     }
 
+    public void setDeadlockPolicy(DeadlockPolicy policy) {
+        this.policy = policy;
+    }
 
-    private boolean hasLock(TransactionId tid, PageId pid, boolean isReadOnly) {
-        if (exclusiveLocks.containsKey(pid) && tid.equals(exclusiveLocks.get(pid))) {
-            return true;
+    public DeadlockPolicy getDeadlockPolicy() {
+        return policy;
+    }
+
+    /**
+     * Sets how often the waits-for graph is searched under the DETECT
+     * policy.
+     *
+     * @param millis the time between two searches, at least 1
+     */
+    public void setDetectionInterval(long millis) {
+        if (millis < 1) {
+            throw new IllegalArgumentException("invalid detection interval: " + millis);
+        }
+        detectionInterval = millis;
+    }
+
+    public long getDetectionInterval() {
+        return detectionInterval;
+    }
+
+    /**
+     * Sets the number of page locks a transaction may hold on one table
+     * before they are escalated to a table lock.
+     *
+     * @param pages the threshold, at least 1
+     */
+    public void setEscalationThreshold(int pages) {
+        if (pages < 1) {
+            throw new IllegalArgumentException("invalid escalation threshold: " + pages);
+        }
+        escalationThreshold = pages;
+    }
+
+    public int getEscalationThreshold() {
+        return escalationThreshold;
+    }
+
+    /**
+     * @return the number of times page locks were escalated to a table lock
+     */
+    public long getEscalationCount() {
+        return escalations.get();
+    }
+
+    /**
+     * Sets how long transactions wait for a lock before they abort, unless
+     * they have a lock timeout of their own.
+     *
+     * @param millis the timeout, or 0 to wait as long as it takes
+     */
+    public void setDefaultLockTimeout(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("invalid lock timeout: " + millis);
+        }
+        defaultLockTimeout = millis;
+    }
+
+    public long getDefaultLockTimeout() {
+        return defaultLockTimeout;
+    }
+
+    /**
+     * Sets how long a transaction waits for any one lock before it aborts,
+     * instead of the default. Applies until the transaction releases its
+     * locks.
+     *
+     * @param tid    the transaction
+     * @param millis the timeout, or 0 to wait as long as it takes
+     */
+    public void setLockTimeout(TransactionId tid, long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("invalid lock timeout: " + millis);
+        }
+        locksOf(tid).lockTimeout = millis;
+    }
+
+    /**
+     * Gives a transaction a deadline. Once it has passed, the transaction
+     * aborts when it asks for a lock or is still waiting for one.
+     *
+     * @param tid           the transaction
+     * @param deadlineNanos the deadline, as a System.nanoTime() value
+     */
+    public void setDeadline(TransactionId tid, long deadlineNanos) {
+        TransactionLocks locks = locksOf(tid);
+        locks.deadline = deadlineNanos;
+        locks.hasDeadline = true;
+    }
+
+    /**
+     * @return the number of times a transaction was aborted because a lock
+     * wait timed out or its deadline had passed
+     */
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    /**
+     * @return the locks of the transaction, created if it has none yet
+     */
+    private TransactionLocks locksOf(TransactionId tid) {
+        TransactionLocks locks = tid.locks;
+        if (locks != null && locks.owner == this && !locks.released) {
+            return locks;
+        }
+        while (true) {
+            locks = transactions.computeIfAbsent(tid, k -> new TransactionLocks(this));
+            if (!locks.released) {
+                tid.locks = locks;
+                return locks;
+            }
+            // being released right now; start over
+            transactions.remove(tid, locks);
+        }
+    }
+
+    /**
+     * @return the locks of the transaction, or null if it has none
+     */
+    private TransactionLocks peekLocks(TransactionId tid) {
+        TransactionLocks locks = tid.locks;
+        if (locks != null && locks.owner == this && !locks.released) {
+            return locks;
+        }
+        return transactions.get(tid);
+    }
+
+    private void checkDeadline(TransactionLocks locks) throws TransactionAbortedException {
+        if (locks.hasDeadline && System.nanoTime() - locks.deadline >= 0) {
+            timeouts.incrementAndGet();
+            throw new TransactionAbortedException(TransactionAbortedException.Reason.DEADLINE);
         }
-        return isReadOnly && sharedLocks.containsKey(pid) && sharedLocks.get(pid).contains(tid);
     }
 
-    private Object getLock(PageId pid) {
-        locks.putIfAbsent(pid, new Object());
-        return locks.get(pid);
+    /**
+     * @return the wait time and contention statistics of this lock manager
+     */
+    public LockMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the number of transactions aborted to break or prevent a
+     * deadlock
+     */
+    public long getDeadlockVictimCount() {
+        return deadlockVictims.get();
     }
 
+    /**
+     * Acquires a lock on a page, waiting for conflicting locks to be
+     * released first. Takes the matching intention lock on the page's table
+     * first, unless the transaction holds a table lock that covers the page
+     * lock already; no page lock is taken then.
+     *
+     * @param tid  the transaction acquiring the lock
+     * @param pid  the page to lock
+     * @param perm READ_ONLY for a shared lock, READ_FOR_UPDATE for an update
+     *             lock, READ_WRITE for an exclusive one
+     * @throws TransactionAbortedException if the transaction was chosen to
+     *                                     abort to break or prevent a deadlock, waited too long or
+     *                                     the thread was interrupted while waiting
+     */
     public boolean acquireLock(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException {
-        if (perm == Permissions.READ_ONLY) {
-            if (hasLock(tid, pid, true)) return true;
-            acquireSLock(tid, pid);
-        } else if (perm == Permissions.READ_WRITE) {
-            if (hasLock(tid, pid, false)) return true;
-            acquireXLock(tid, pid);
-        }
-        updateTransactionLocks(tid, pid);
+        TransactionLocks locks = locksOf(tid);
+        checkDeadline(locks);
+        LockMode mode = LockMode.of(perm);
+        if (locks.holds(pid, mode)) {
+            return true;
+        }
+        TableLock table = new TableLock(pid.getTableId());
+        if (locks.holds(table, mode)) {
+            return true;
+        }
+        acquire(tid, table, mode.intention(), true);
+        acquire(tid, pid, mode, true);
+        if (countPageLocks(locks, pid.getTableId()) > escalationThreshold) {
+            escalate(tid, table);
+        }
         return true;
     }
 
-    private void acquireSLock(TransactionId tid, PageId pid) throws TransactionAbortedException {
-        Object lock = getLock(pid);
+    private static int countPageLocks(TransactionLocks locks, int tableId) {
+        Integer n = locks.pageCounts.get(tableId);
+        return n == null ? 0 : n;
+    }
 
-        while (true) {
-            synchronized (lock) {
-                TransactionId holder = exclusiveLocks.get(pid);
-                boolean notBlocked = (holder == null || holder.equals(tid));
+    private static void countPageLock(TransactionLocks locks, Object resource, int delta) {
+        if (resource instanceof PageId) {
+            int tableId = ((PageId) resource).getTableId();
+            locks.pageCounts.merge(tableId, delta, (a, b) -> a + b == 0 ? null : a + b);
+        }
+    }
 
-                if (notBlocked) {
-                    removeDependency(tid);
-                    addSTransaction(pid, tid);
-                    return;
-                }
-                ArrayList<TransactionId> holders = new ArrayList<>();
-                holders.add(holder);
-                updateDependency(tid, holders);
+    /**
+     * Replaces the page locks a transaction holds on a table with one table
+     * lock: X if it has been writing pages of the table (it holds IX on it),
+     * S otherwise. Gives up if the table lock cannot be granted right away;
+     * the next page lock tries again.
+     */
+    private void escalate(TransactionId tid, TableLock table) throws TransactionAbortedException {
+        LockMode intention = getTableLockMode(tid, table.tableId);
+        LockMode mode = intention != null && intention.covers(LockMode.INTENTION_EXCLUSIVE)
+                ? LockMode.EXCLUSIVE : LockMode.SHARED;
+        if (!acquire(tid, table, mode, false)) {
+            return;
+        }
+        for (Object resource : new ArrayList<>(locksOf(tid).held.keySet())) {
+            if (resource instanceof PageId && ((PageId) resource).getTableId() == table.tableId) {
+                release(tid, resource);
             }
         }
+        escalations.incrementAndGet();
+    }
+
+    /**
+     * Acquires a lock on a page like {@link #acquireLock}, but only if it can
+     * be granted without waiting.
+     *
+     * @return whether the transaction holds the lock now
+     */
+    public boolean tryAcquireLock(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        TransactionLocks locks = locksOf(tid);
+        LockMode mode = LockMode.of(perm);
+        TableLock table = new TableLock(pid.getTableId());
+        if (locks.holds(pid, mode) || locks.holds(table, mode)) {
+            return true;
+        }
+        return acquire(tid, table, mode.intention(), false) && acquire(tid, pid, mode, false);
+    }
+
+    /**
+     * Acquires a lock on a record, waiting for conflicting locks to be
+     * released first. Takes the matching intention locks on the record's
+     * page and table first, unless the transaction holds a page or table
+     * lock that covers the record lock already; no record lock is taken
+     * then.
+     *
+     * @param tid  the transaction acquiring the lock
+     * @param rid  the record to lock
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for an exclusive one
+     * @throws TransactionAbortedException if the transaction was chosen to
+     *                                     abort to break or prevent a deadlock, waited too long or
+     *                                     the thread was interrupted while waiting
+     */
+    public void acquireRecordLock(TransactionId tid, RecordId rid, Permissions perm)
+            throws TransactionAbortedException {
+        LockMode mode = LockMode.of(perm);
+        if (locksOf(tid).holds(rid, mode)) {
+            return;
+        }
+        if (acquireIntention(tid, rid.getPageId(), mode)) {
+            acquire(tid, rid, mode, true);
+        }
+    }
+
+    /**
+     * Takes an exclusive lock on a record if it can be granted without
+     * waiting. The transaction must hold the intention locks for it already
+     * (see {@link #acquirePageIntention}), so this never blocks and may be
+     * called with a page latch held.
+     *
+     * @return whether the transaction holds the record exclusively now
+     */
+    public boolean tryRecordLock(TransactionId tid, RecordId rid) throws TransactionAbortedException {
+        PageId pid = rid.getPageId();
+        TransactionLocks locks = locksOf(tid);
+        if (locks.holds(pid, LockMode.EXCLUSIVE) || locks.holds(new TableLock(pid.getTableId()), LockMode.EXCLUSIVE)) {
+            return true;
+        }
+        return acquire(tid, rid, LockMode.EXCLUSIVE, false);
+    }
+
+    /**
+     * Acquires the intention locks on a page and its table that are needed
+     * to lock records of the page, waiting for conflicting locks to be
+     * released first.
+     *
+     * @param tid  the transaction acquiring the lock
+     * @param pid  the page whose records are going to be locked
+     * @param perm READ_ONLY for IS, READ_WRITE for IX
+     * @throws TransactionAbortedException if the transaction was chosen to
+     *                                     abort to break or prevent a deadlock, waited too long or
+     *                                     the thread was interrupted while waiting
+     */
+    public void acquirePageIntention(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        acquireIntention(tid, pid, LockMode.of(perm));
+    }
+
+    /**
+     * @return whether the records of the page still have to be locked in
+     * the given mode, i.e. no page or table lock covers them
+     */
+    private boolean acquireIntention(TransactionId tid, PageId pid, LockMode mode)
+            throws TransactionAbortedException {
+        TransactionLocks locks = locksOf(tid);
+        TableLock table = new TableLock(pid.getTableId());
+        if (locks.holds(pid, mode) || locks.holds(table, mode)) {
+            return false;
+        }
+        acquire(tid, table, mode.intention(), true);
+        acquire(tid, pid, mode.intention(), true);
+        if (countPageLocks(locks, pid.getTableId()) > escalationThreshold) {
+            escalate(tid, table);
+        }
+        return !locks.holds(table, mode);
+    }
+
+    /**
+     * @return whether the transaction holds the record exclusively, through
+     * a lock on the record, its page or its table
+     */
+    public boolean holdsRecordLock(TransactionId tid, RecordId rid) {
+        PageId pid = rid.getPageId();
+        return holds(tid, rid, LockMode.EXCLUSIVE) || holds(tid, pid, LockMode.EXCLUSIVE)
+                || holds(tid, new TableLock(pid.getTableId()), LockMode.EXCLUSIVE);
+    }
+
+    /**
+     * Acquires a lock on a whole table, which covers all its pages: a shared
+     * one to read the table, an exclusive one to read and write it. A
+     * transaction holding IX on the table gets SIX for READ_ONLY.
+     *
+     * @param tid     the transaction acquiring the lock
+     * @param tableId the table to lock
+     * @param perm    READ_ONLY for a shared lock, READ_WRITE for an exclusive one
+     * @throws TransactionAbortedException if the transaction was chosen to
+     *                                     abort to break or prevent a deadlock, waited too long or
+     *                                     the thread was interrupted while waiting
+     */
+    public void acquireTableLock(TransactionId tid, int tableId, Permissions perm)
+            throws TransactionAbortedException {
+        acquire(tid, new TableLock(tableId), LockMode.of(perm), true);
+    }
+
+    /**
+     * Acquires a lock on a key of a B+ tree index, and the gap below it,
+     * waiting for conflicting locks to be released first. Takes the matching
+     * intention lock on the index first, unless the transaction holds a
+     * lock on the whole index that covers the key lock already; no key lock
+     * is taken then.
+     *
+     * @param tid     the transaction acquiring the lock
+     * @param tableId the index
+     * @param key     the key to lock, or null for the end of the index
+     * @param perm    READ_ONLY for a shared lock, READ_WRITE for an exclusive one
+     * @throws TransactionAbortedException if the transaction was chosen to
+     *                                     abort to break or prevent a deadlock, waited too long or
+     *                                     the thread was interrupted while waiting
+     */
+    public void acquireKeyLock(TransactionId tid, int tableId, Field key, Permissions perm)
+            throws TransactionAbortedException {
+        TransactionLocks locks = locksOf(tid);
+        checkDeadline(locks);
+        LockMode mode = LockMode.of(perm);
+        KeyLock lock = new KeyLock(tableId, key);
+        TableLock table = new TableLock(tableId);
+        if (locks.holds(lock, mode) || locks.holds(table, mode)) {
+            return;
+        }
+        acquire(tid, table, mode.intention(), true);
+        acquire(tid, lock, mode, true);
+    }
+
+    /**
+     * Waits until a key of a B+ tree index could be locked exclusively, but
+     * does not keep the lock, unless the transaction held the key in another
+     * mode already. This is all a transaction deleting the key, or inserting
+     * a key into the gap below it, needs: the change is on a page it keeps
+     * locked exclusively until it completes, so transactions that scan the
+     * range later wait for it on the page, and the ones that scanned it
+     * before hold the key.
+     *
+     * @param tid     the transaction checking the key
+     * @param tableId the index
+     * @param key     the key, or null for the end of the index
+     * @param wait    whether to wait for conflicting locks, or give up
+     * @return whether the lock could be granted
+     * @throws TransactionAbortedException if the transaction was chosen to
+     *                                     abort to break or prevent a deadlock, waited too long or
+     *                                     the thread was interrupted while waiting
+     */
+    public boolean acquireInstantKeyLock(TransactionId tid, int tableId, Field key, boolean wait)
+            throws TransactionAbortedException {
+        TransactionLocks locks = locksOf(tid);
+        checkDeadline(locks);
+        KeyLock lock = new KeyLock(tableId, key);
+        TableLock table = new TableLock(tableId);
+        if (locks.holds(lock, LockMode.EXCLUSIVE) || locks.holds(table, LockMode.EXCLUSIVE)) {
+            return true;
+        }
+        boolean held = locks.get(lock) != null;
+        if (!acquire(tid, table, LockMode.INTENTION_EXCLUSIVE, wait) || !acquire(tid, lock, LockMode.EXCLUSIVE, wait)) {
+            return false;
+        }
+        if (!held) {
+            release(tid, lock);
+        }
+        return true;
     }
 
-    private void acquireXLock(TransactionId tid, PageId pid) throws TransactionAbortedException {
-        Object lock = getLock(pid);
+    /**
+     * @return the mode the transaction holds a key of a B+ tree index in, or
+     * null if it holds no lock on it
+     */
+    public LockMode getKeyLockMode(TransactionId tid, int tableId, Field key) {
+        TransactionLocks locks = peekLocks(tid);
+        return locks == null ? null : locks.get(new KeyLock(tableId, key));
+    }
 
+    /**
+     * Acquires a lock on a table, page, record or key.
+     *
+     * @param wait whether to wait for conflicting locks, or give up
+     * @return whether the lock was acquired
+     */
+    private boolean acquire(TransactionId tid, Object resource, LockMode mode, boolean wait)
+            throws TransactionAbortedException {
+        TransactionLocks locks = locksOf(tid);
+        if (locks.holds(resource, mode)) {
+            return true;
+        }
+        if (wounded.contains(tid)) {
+            throw new TransactionAbortedException(TransactionAbortedException.Reason.DEADLOCK);
+        }
+        checkDeadline(locks);
         while (true) {
-            synchronized (lock) {
-                ArrayList<TransactionId> holders = new ArrayList<>();
-                if (exclusiveLocks.containsKey(pid)) {
-                    holders.add(exclusiveLocks.get(pid));
+            LockQueue queue = lockTable.computeIfAbsent(resource, k -> new LockQueue());
+            synchronized (queue) {
+                if (queue.removed) {
+                    continue;
+                }
+                LockMode current = queue.granted.get(tid);
+                if (current != null && current.covers(mode)) {
+                    return true;
                 }
-                if (sharedLocks.containsKey(pid)) {
-                    holders.addAll(sharedLocks.get(pid));
+                Request request = new Request(tid, current == null ? mode : current.combine(mode), current != null);
+                if ((request.upgrade || queue.waiting.isEmpty()) && isCompatible(queue, request)) {
+                    grant(queue, resource, request);
+                    return true;
                 }
+                if (!wait) {
+                    return false;
+                }
+                enqueue(queue, request);
+                awaitGrant(queue, resource, request);
+                return true;
+            }
+        }
+    }
 
-                boolean notBlocked = holders.size() == 0 || (holders.size() == 1 && holders.get(0).equals(tid));
+    private static boolean isCompatible(LockQueue queue, Request request) {
+        for (Map.Entry<TransactionId, LockMode> holder : queue.granted.entrySet()) {
+            if (!holder.getKey().equals(request.tid) && !holder.getValue().compatibleWith(request.mode)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-                if (notBlocked) {
-                    removeDependency(tid);
-                    addXTransaction(pid, tid);
-                    return;
-                }
-                updateDependency(tid, holders);
+    private static void enqueue(LockQueue queue, Request request) {
+        if (!request.upgrade) {
+            queue.waiting.addLast(request);
+            return;
+        }
+        // upgrades go behind earlier upgrades but ahead of everybody else
+        ListIterator<Request> it = queue.waiting.listIterator();
+        while (it.hasNext()) {
+            if (!it.next().upgrade) {
+                it.previous();
+                break;
             }
         }
+        it.add(request);
+    }
+
+    private void grant(LockQueue queue, Object resource, Request request) {
+        request.granted = true;
+        TransactionLocks locks = locksOf(request.tid);
+        if (queue.granted.put(request.tid, request.mode) == null) {
+            countPageLock(locks, resource, 1);
+        }
+        locks.held.put(resource, request.mode);
     }
 
-    private void addSTransaction(PageId pid, TransactionId tid) {
-        sharedLocks.putIfAbsent(pid, new ConcurrentLinkedDeque<>());
-        sharedLocks.get(pid).add(tid);
+    /**
+     * Grants the waiters at the head of the queue as far as they are
+     * compatible with the granted group, and wakes them.
+     */
+    private void grantWaiters(LockQueue queue, Object resource) {
+        boolean granted = false;
+        Iterator<Request> it = queue.waiting.iterator();
+        while (it.hasNext()) {
+            Request request = it.next();
+            if (!isCompatible(queue, request)) {
+                break;
+            }
+            it.remove();
+            grant(queue, resource, request);
+            granted = true;
+        }
+        if (granted) {
+            queue.notifyAll();
+        }
     }
 
-    private void addXTransaction(PageId pid, TransactionId tid) {
-        exclusiveLocks.put(pid, tid);
-        transactionHoldXLocks.putIfAbsent(tid, new ConcurrentLinkedDeque<>());
-        transactionHoldXLocks.get(tid).add(pid);
+    /**
+     * The transactions a waiting request waits for: the incompatible holders
+     * and the incompatible requests queued ahead of it.
+     */
+    private static HashSet<TransactionId> blockersOf(LockQueue queue, Request request) {
+        HashSet<TransactionId> blockers = new HashSet<>();
+        for (Map.Entry<TransactionId, LockMode> holder : queue.granted.entrySet()) {
+            if (!holder.getValue().compatibleWith(request.mode)) {
+                blockers.add(holder.getKey());
+            }
+        }
+        for (Request ahead : queue.waiting) {
+            if (ahead == request) {
+                break;
+            }
+            if (!ahead.mode.compatibleWith(request.mode)) {
+                blockers.add(ahead.tid);
+            }
+        }
+        blockers.remove(request.tid);
+        return blockers;
     }
 
+    /**
+     * Parks the calling thread until the request is granted. Called with the
+     * queue's monitor held.
+     */
+    private void awaitGrant(LockQueue queue, Object resource, Request request) throws TransactionAbortedException {
+        // when to stop waiting, and why
+        TransactionAbortedException.Reason limit = null;
+        long limitAt = 0;
+        TransactionLocks locks = locksOf(request.tid);
+        long timeout = locks.lockTimeout < 0 ? defaultLockTimeout : locks.lockTimeout;
+        if (timeout > 0) {
+            limit = TransactionAbortedException.Reason.LOCK_TIMEOUT;
+            limitAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        }
+        if (locks.hasDeadline && (limit == null || locks.deadline - limitAt < 0)) {
+            limit = TransactionAbortedException.Reason.DEADLINE;
+            limitAt = locks.deadline;
+        }
 
-    private void removeDependency(TransactionId tid) {
-        synchronized (dependencyGraph) {
-            dependencyGraph.remove(tid);
-            for (TransactionId curtid : dependencyGraph.keySet()) {
-                dependencyGraph.get(curtid).remove(tid);
+        boolean done = false;
+        long start = System.nanoTime();
+        waiting.put(request, queue);
+        try {
+            while (!request.granted) {
+                if (request.aborted || wounded.contains(request.tid)) {
+                    throw new TransactionAbortedException(TransactionAbortedException.Reason.DEADLOCK);
+                }
+                if (policy == DeadlockPolicy.DETECT) {
+                    scheduleDetection();
+                } else {
+                    preventDeadlock(request, blockersOf(queue, request));
+                }
+                try {
+                    if (limit == null) {
+                        queue.wait();
+                    } else {
+                        long remaining = limitAt - System.nanoTime();
+                        if (remaining <= 0) {
+                            timeouts.incrementAndGet();
+                            throw new TransactionAbortedException(limit);
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(queue, remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new TransactionAbortedException(TransactionAbortedException.Reason.INTERRUPTED);
+                }
+            }
+            done = true;
+        } finally {
+            waiting.remove(request);
+            metrics.recordWait(request.mode, resource, System.nanoTime() - start);
+            if (!done) {
+                // giving up: leave nothing behind, and let those queued
+                // behind us move up
+                if (request.granted) {
+                    releaseLocked(queue, request.tid, resource);
+                } else {
+                    queue.waiting.remove(request);
+                    grantWaiters(queue, resource);
+                }
             }
         }
     }
 
-    private void updateDependency(TransactionId acquirer, ArrayList<TransactionId> holders)
+    /**
+     * Applies WAIT_DIE or WOUND_WAIT to a request that has to wait for the
+     * given transactions. Transactions are ordered by age through their
+     * ids, which are handed out in increasing order.
+     */
+    private void preventDeadlock(Request request, Set<TransactionId> blockers)
             throws TransactionAbortedException {
-        dependencyGraph.putIfAbsent(acquirer, new ConcurrentLinkedDeque<>());
-        boolean hasChange = false;
-        ConcurrentLinkedDeque<TransactionId> childs = dependencyGraph.get(acquirer);
-        for (TransactionId holder : holders) {
-            if (!childs.contains(holder) && !holder.equals(acquirer)) {
-                hasChange = true;
-                dependencyGraph.get(acquirer).add(holder);
+        long age = request.tid.getId();
+        for (TransactionId blocker : blockers) {
+            if (blocker.getId() > age) {
+                if (policy == DeadlockPolicy.WOUND_WAIT) {
+                    wound(blocker);
+                }
+            } else if (policy == DeadlockPolicy.WAIT_DIE) {
+                deadlockVictims.incrementAndGet();
+                throw new TransactionAbortedException(TransactionAbortedException.Reason.DEADLOCK);
             }
         }
-        if (hasChange) {
-            checkDeadLock(acquirer, new HashSet<>());
-        }
     }
 
+    private void wound(TransactionId tid) {
+        if (wounded.add(tid)) {
+            deadlockVictims.incrementAndGet();
+            // we hold a queue monitor and must not take another one here
+            detector.execute(() -> abortWaiters(tid));
+        }
+    }
 
-    private void checkDeadLock(TransactionId root, HashSet<TransactionId> visit) throws TransactionAbortedException {
-        // DFS Checking self-loop
-        if (!dependencyGraph.containsKey(root))
-            return;
-        for (TransactionId child : dependencyGraph.get(root)) {
-            if (visit.contains(child)) {
-                throw new TransactionAbortedException();
+    /**
+     * Makes the waiting requests of a transaction fail.
+     */
+    private void abortWaiters(TransactionId tid) {
+        for (Map.Entry<Request, LockQueue> entry : waiting.entrySet()) {
+            Request request = entry.getKey();
+            if (!request.tid.equals(tid)) {
+                continue;
+            }
+            LockQueue queue = entry.getValue();
+            synchronized (queue) {
+                if (!request.granted) {
+                    request.aborted = true;
+                    queue.notifyAll();
+                }
             }
-            visit.add(child);
-            checkDeadLock(child, visit);
-            visit.remove(child);
         }
     }
 
-    private void updateTransactionLocks(TransactionId tid, PageId pid) {
-        transactionHoldLocks.putIfAbsent(tid, new ConcurrentLinkedDeque<>());
-        transactionHoldLocks.get(tid).add(pid);
+    private void scheduleDetection() {
+        if (detectionScheduled.compareAndSet(false, true)) {
+            detector.schedule(this::detectDeadlocks, detectionInterval, TimeUnit.MILLISECONDS);
+        }
     }
 
+    /**
+     * Searches the waits-for graph for cycles and aborts the youngest
+     * transaction of each. Runs on the detector thread, and schedules itself
+     * again as long as there are waiters.
+     */
+    private void detectDeadlocks() {
+        try {
+            while (true) {
+                HashMap<TransactionId, HashSet<TransactionId>> graph = waitsForGraph();
+                List<TransactionId> cycle = findCycle(graph);
+                if (cycle == null) {
+                    break;
+                }
+                TransactionId victim = cycle.get(0);
+                for (TransactionId tid : cycle) {
+                    if (tid.getId() > victim.getId()) {
+                        victim = tid;
+                    }
+                }
+                deadlockVictims.incrementAndGet();
+                abortWaiters(victim);
+            }
+        } catch (Throwable e) {
+            e.printStackTrace();
+        } finally {
+            detectionScheduled.set(false);
+            if (!waiting.isEmpty() && policy == DeadlockPolicy.DETECT) {
+                scheduleDetection();
+            }
+        }
+    }
 
-    public void releasePage(TransactionId tid, PageId pid) {
-        //TODO: how to deal with dependency graph? when tid released pid
-        if (holdsLock(tid, pid)) {
-            Object lock = getLock(pid);
-            synchronized (lock) {
-                //TODO: when A is waiting for B, B finished and want to release lock, B blocks since A holds the lock
-                if (sharedLocks.containsKey(pid)) {
-                    sharedLocks.get(pid).remove(tid);
+    /**
+     * @return the edges from each waiting transaction to the transactions
+     * it waits for. Each queue is looked at on its own, so the graph is not
+     * an atomic snapshot; but the edges of a deadlock do not change until it
+     * is broken, so it is always found.
+     */
+    private HashMap<TransactionId, HashSet<TransactionId>> waitsForGraph() {
+        HashMap<TransactionId, HashSet<TransactionId>> graph = new HashMap<>();
+        for (Map.Entry<Request, LockQueue> entry : waiting.entrySet()) {
+            Request request = entry.getKey();
+            LockQueue queue = entry.getValue();
+            synchronized (queue) {
+                if (request.granted || request.aborted) {
+                    continue;
                 }
-                if (exclusiveLocks.containsKey(pid) && exclusiveLocks.get(pid).equals(tid)) {
-                    exclusiveLocks.remove(pid);
+                graph.computeIfAbsent(request.tid, k -> new HashSet<>()).addAll(blockersOf(queue, request));
+            }
+        }
+        return graph;
+    }
+
+    /**
+     * @return the transactions on some cycle of the graph, or null if it has
+     * none
+     */
+    private static List<TransactionId> findCycle(HashMap<TransactionId, HashSet<TransactionId>> graph) {
+        HashSet<TransactionId> done = new HashSet<>();
+        for (TransactionId start : graph.keySet()) {
+            if (done.contains(start)) {
+                continue;
+            }
+            // iterative DFS; path holds the transactions on the current path
+            ArrayList<TransactionId> path = new ArrayList<>();
+            HashSet<TransactionId> onPath = new HashSet<>();
+            ArrayList<Iterator<TransactionId>> edges = new ArrayList<>();
+            path.add(start);
+            onPath.add(start);
+            edges.add(graph.get(start).iterator());
+            while (!path.isEmpty()) {
+                Iterator<TransactionId> it = edges.get(edges.size() - 1);
+                if (!it.hasNext()) {
+                    TransactionId finished = path.remove(path.size() - 1);
+                    onPath.remove(finished);
+                    edges.remove(edges.size() - 1);
+                    done.add(finished);
+                    continue;
                 }
-                if (transactionHoldLocks.containsKey(tid)) {
-                    transactionHoldLocks.get(tid).remove(pid);
+                TransactionId next = it.next();
+                if (onPath.contains(next)) {
+                    return new ArrayList<>(path.subList(path.indexOf(next), path.size()));
                 }
-                if (transactionHoldXLocks.containsKey(tid)) {
-                    transactionHoldXLocks.get(tid).remove(pid);
+                HashSet<TransactionId> out = graph.get(next);
+                if (out != null && !done.contains(next)) {
+                    path.add(next);
+                    onPath.add(next);
+                    edges.add(out.iterator());
                 }
             }
         }
+        return null;
+    }
+
+    /**
+     * Releases a page lock and grants it on to the waiters it was blocking.
+     * Table locks are only released with releasePages.
+     */
+    public void releasePage(TransactionId tid, PageId pid) {
+        release(tid, pid);
+    }
+
+    /**
+     * Releases a page lock the transaction holds in shared mode only, and
+     * grants it on to the waiters it was blocking. A lock held in any other
+     * mode is kept.
+     *
+     * @return whether the lock was released
+     */
+    public boolean releaseSharedPage(TransactionId tid, PageId pid) {
+        TransactionLocks locks = peekLocks(tid);
+        if (locks == null || locks.get(pid) != LockMode.SHARED) {
+            return false;
+        }
+        LockQueue queue = lockTable.get(pid);
+        if (queue == null) {
+            return false;
+        }
+        synchronized (queue) {
+            if (queue.removed || locks.get(pid) != LockMode.SHARED) {
+                return false;
+            }
+            releaseLocked(queue, tid, pid);
+        }
+        return true;
+    }
+
+    private void release(TransactionId tid, Object resource) {
+        LockQueue queue = lockTable.get(resource);
+        if (queue == null) {
+            return;
+        }
+        synchronized (queue) {
+            if (!queue.removed) {
+                releaseLocked(queue, tid, resource);
+            }
+        }
+    }
+
+    private void releaseLocked(LockQueue queue, TransactionId tid, Object resource) {
+        if (queue.granted.remove(tid) == null) {
+            return;
+        }
+        TransactionLocks locks = peekLocks(tid);
+        if (locks != null) {
+            countPageLock(locks, resource, -1);
+            locks.held.remove(resource);
+        }
+        grantWaiters(queue, resource);
+        if (queue.granted.isEmpty() && queue.waiting.isEmpty()) {
+            queue.removed = true;
+            lockTable.remove(resource, queue);
+        }
     }
 
+    /**
+     * Releases all locks a transaction holds, on keys, records, pages and tables,
+     * and forgets its lock timeout and deadline.
+     */
     public void releasePages(TransactionId tid) {
-        if (transactionHoldLocks.containsKey(tid)) {
-            for (PageId pid : transactionHoldLocks.get(tid)) {
-                releasePage(tid, pid);
+        TransactionLocks locks = peekLocks(tid);
+        if (locks != null) {
+            for (Object resource : new ArrayList<>(locks.held.keySet())) {
+                release(tid, resource);
             }
+            locks.released = true;
+            transactions.remove(tid, locks);
         }
-        transactionHoldXLocks.remove(tid);
+        wounded.remove(tid);
+    }
+
+    private boolean holds(TransactionId tid, Object resource, LockMode mode) {
+        TransactionLocks locks = peekLocks(tid);
+        return locks != null && locks.holds(resource, mode);
     }
 
+    /**
+     * @return whether the transaction may read the page, through a lock on
+     * the page or on its table
+     */
     public boolean holdsLock(TransactionId tid, PageId pid) {
-        return hasLock(tid, pid, true) || hasLock(tid, pid, false);
+        return holds(tid, pid, LockMode.SHARED) || holds(tid, new TableLock(pid.getTableId()), LockMode.SHARED);
+    }
+
+    /**
+     * @return the mode the transaction holds the table in, or null if it
+     * holds no lock on it
+     */
+    public LockMode getTableLockMode(TransactionId tid, int tableId) {
+        TransactionLocks locks = peekLocks(tid);
+        return locks == null ? null : locks.get(new TableLock(tableId));
+    }
+
+    /**
+     * @return the pages the transaction holds an exclusive page lock on
+     */
+    public List<PageId> getExclusivelyLockedPages(TransactionId tid) {
+        ArrayList<PageId> pages = new ArrayList<>();
+        TransactionLocks locks = peekLocks(tid);
+        if (locks != null) {
+            for (Map.Entry<Object, LockMode> lock : locks.held.entrySet()) {
+                if (lock.getKey() instanceof PageId && lock.getValue() == LockMode.EXCLUSIVE) {
+                    pages.add((PageId) lock.getKey());
+                }
+            }
+        }
+        return pages;
+    }
+
+    /**
+     * @return the tables the transaction holds an exclusive table lock on
+     */
+    public List<Integer> getExclusivelyLockedTables(TransactionId tid) {
+        ArrayList<Integer> tables = new ArrayList<>();
+        TransactionLocks locks = peekLocks(tid);
+        if (locks != null) {
+            for (Map.Entry<Object, LockMode> lock : locks.held.entrySet()) {
+                if (lock.getKey() instanceof TableLock && lock.getValue() == LockMode.EXCLUSIVE) {
+                    tables.add(((TableLock) lock.getKey()).tableId);
+                }
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * @return the number of page locks the transaction holds
+     */
+    public int getPageLockCount(TransactionId tid) {
+        int n = 0;
+        TransactionLocks locks = peekLocks(tid);
+        if (locks != null) {
+            for (Object resource : locks.held.keySet()) {
+                if (resource instanceof PageId) {
+                    n++;
+                }
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return the number of requests waiting for a lock on the page
+     */
+    public int getQueueLength(PageId pid) {
+        return queueLength(pid);
+    }
+
+    /**
+     * @return the number of requests waiting for a lock on the table
+     */
+    public int getTableQueueLength(int tableId) {
+        return queueLength(new TableLock(tableId));
     }
 
-    public ConcurrentHashMap<TransactionId, ConcurrentLinkedDeque<PageId>> getTransactionDirtiedPages() {
-        return transactionHoldXLocks;
+    /**
+     * @return the number of requests waiting for a lock right now
+     */
+    public int getWaitingRequestCount() {
+        return waiting.size();
+    }
+
+    /**
+     * @return the length of the longest queue of waiting requests right now
+     */
+    public int getMaxQueueLength() {
+        int max = 0;
+        for (LockQueue queue : lockTable.values()) {
+            synchronized (queue) {
+                max = Math.max(max, queue.waiting.size());
+            }
+        }
+        return max;
+    }
+
+    private int queueLength(Object resource) {
+        LockQueue queue = lockTable.get(resource);
+        if (queue == null) {
+            return 0;
+        }
+        synchronized (queue) {
+            return queue.waiting.size();
+        }
     }
 }
@@ -0,0 +1,240 @@
+package simpledb;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Contention statistics of a LockManager: how long lock requests waited,
+ * by lock mode, and which pages they waited for most often. Only requests
+ * that have to wait are recorded, so locks granted right away cost
+ * nothing.
+ * <p>
+ * Wait times go into histograms with buckets of powers of two
+ * microseconds: bucket 0 counts waits under 1 us, bucket i > 0 those of
+ * [2^(i-1), 2^i) us, and the last bucket everything longer.
+ *
+ * @Threadsafe
+ */
+public class LockMetrics {
+
+    /**
+     * Number of buckets of each wait time histogram.
+     */
+    public static final int BUCKETS = 32;
+
+    /**
+     * Maximum number of pages whose waits are counted. When more pages have
+     * been waited for, all counts are halved and the pages left with none
+     * are forgotten, so the counts favour recent contention.
+     */
+    public static final int MAX_TRACKED_PAGES = 1024;
+
+    /**
+     * Name the MXBean of the current Database's lock manager is registered
+     * under by {@link #registerMBean}.
+     */
+    public static final String MBEAN_NAME = "simpledb:type=LockManager";
+
+    private static final int MODES = LockManager.LockMode.values().length;
+
+    private final AtomicLongArray histograms = new AtomicLongArray(MODES * BUCKETS);
+    private final AtomicLongArray waitNanos = new AtomicLongArray(MODES);
+    // waits by page; waits for records count for their page
+    private final ConcurrentHashMap<PageId, AtomicLong> pageWaits = new ConcurrentHashMap<>();
+
+    /**
+     * Records a lock request that waited, whether it got the lock or not.
+     *
+     * @param mode     the mode the request asked for
+     * @param resource the table, page or record it waited for
+     * @param nanos    how long it waited
+     */
+    void recordWait(LockManager.LockMode mode, Object resource, long nanos) {
+        int m = mode.ordinal();
+        histograms.incrementAndGet(m * BUCKETS + bucket(nanos));
+        waitNanos.addAndGet(m, nanos);
+
+        PageId pid = resource instanceof RecordId ? ((RecordId) resource).getPageId()
+                : resource instanceof PageId ? (PageId) resource : null;
+        if (pid != null) {
+            pageWaits.computeIfAbsent(pid, k -> new AtomicLong()).incrementAndGet();
+            if (pageWaits.size() > MAX_TRACKED_PAGES) {
+                decay();
+            }
+        }
+    }
+
+    static int bucket(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    private synchronized void decay() {
+        if (pageWaits.size() <= MAX_TRACKED_PAGES) {
+            return;
+        }
+        Iterator<AtomicLong> it = pageWaits.values().iterator();
+        while (it.hasNext()) {
+            AtomicLong count = it.next();
+            if (count.updateAndGet(n -> n / 2) == 0) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the number of waits for locks of the given mode in each
+     * bucket, see {@link LockMetrics}
+     */
+    public long[] getWaitHistogram(LockManager.LockMode mode) {
+        long[] histogram = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram[i] = histograms.get(mode.ordinal() * BUCKETS + i);
+        }
+        return histogram;
+    }
+
+    /**
+     * @return the number of requests for the given mode that had to wait
+     */
+    public long getWaitCount(LockManager.LockMode mode) {
+        long n = 0;
+        for (long count : getWaitHistogram(mode)) {
+            n += count;
+        }
+        return n;
+    }
+
+    /**
+     * @return the time requests for the given mode spent waiting, in total
+     */
+    public long getTotalWaitNanos(LockManager.LockMode mode) {
+        return waitNanos.get(mode.ordinal());
+    }
+
+    /**
+     * @param n the maximum number of pages to return
+     * @return the pages lock requests waited for most often, with the number
+     * of waits, most contended first
+     */
+    public List<Map.Entry<PageId, Long>> getMostContendedPages(int n) {
+        ArrayList<Map.Entry<PageId, Long>> pages = new ArrayList<>();
+        for (Map.Entry<PageId, AtomicLong> entry : pageWaits.entrySet()) {
+            pages.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue().get()));
+        }
+        pages.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        return pages.size() > n ? new ArrayList<>(pages.subList(0, n)) : pages;
+    }
+
+    /**
+     * Registers an MXBean with the platform MBean server that reports the
+     * metrics of the lock manager of {@link Database#getBufferPool()}, under
+     * {@link #MBEAN_NAME}. It follows the buffer pool when the database is
+     * reset. Does nothing if it is registered already.
+     */
+    public static synchronized void registerMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(MBEAN_NAME);
+        if (!server.isRegistered(name)) {
+            server.registerMBean(new MXBeanImpl(), name);
+        }
+    }
+
+    /**
+     * JMX view of the lock manager of the current Database.
+     */
+    public interface LockManagerMXBean {
+        long getDeadlockVictimCount();
+
+        long getTimeoutCount();
+
+        long getEscalationCount();
+
+        int getWaitingRequestCount();
+
+        int getMaxQueueLength();
+
+        /** waits by lock mode */
+        Map<String, Long> getWaitCounts();
+
+        /** mean wait time in microseconds by lock mode */
+        Map<String, Double> getMeanWaitMicros();
+
+        /** wait time histograms by lock mode */
+        Map<String, long[]> getWaitHistograms();
+
+        /** the ten most contended pages, with their number of waits */
+        Map<String, Long> getMostContendedPages();
+    }
+
+    private static class MXBeanImpl implements LockManagerMXBean {
+        private static final int TOP_PAGES = 10;
+
+        private static LockManager lockManager() {
+            return Database.getBufferPool().getLockManager();
+        }
+
+        public long getDeadlockVictimCount() {
+            return lockManager().getDeadlockVictimCount();
+        }
+
+        public long getTimeoutCount() {
+            return lockManager().getTimeoutCount();
+        }
+
+        public long getEscalationCount() {
+            return lockManager().getEscalationCount();
+        }
+
+        public int getWaitingRequestCount() {
+            return lockManager().getWaitingRequestCount();
+        }
+
+        public int getMaxQueueLength() {
+            return lockManager().getMaxQueueLength();
+        }
+
+        public Map<String, Long> getWaitCounts() {
+            LockMetrics metrics = lockManager().getMetrics();
+            LinkedHashMap<String, Long> counts = new LinkedHashMap<>();
+            for (LockManager.LockMode mode : LockManager.LockMode.values()) {
+                counts.put(mode.toString(), metrics.getWaitCount(mode));
+            }
+            return counts;
+        }
+
+        public Map<String, Double> getMeanWaitMicros() {
+            LockMetrics metrics = lockManager().getMetrics();
+            LinkedHashMap<String, Double> means = new LinkedHashMap<>();
+            for (LockManager.LockMode mode : LockManager.LockMode.values()) {
+                long n = metrics.getWaitCount(mode);
+                means.put(mode.toString(), n == 0 ? 0 : metrics.getTotalWaitNanos(mode) / 1e3 / n);
+            }
+            return means;
+        }
+
+        public Map<String, long[]> getWaitHistograms() {
+            LockMetrics metrics = lockManager().getMetrics();
+            LinkedHashMap<String, long[]> histograms = new LinkedHashMap<>();
+            for (LockManager.LockMode mode : LockManager.LockMode.values()) {
+                histograms.put(mode.toString(), metrics.getWaitHistogram(mode));
+            }
+            return histograms;
+        }
+
+        public Map<String, Long> getMostContendedPages() {
+            LinkedHashMap<String, Long> pages = new LinkedHashMap<>();
+            for (Map.Entry<PageId, Long> page : lockManager().getMetrics().getMostContendedPages(TOP_PAGES)) {
+                pages.put(page.getKey().toString(), page.getValue());
+            }
+            return pages;
+        }
+    }
+}
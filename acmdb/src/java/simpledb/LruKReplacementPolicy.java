@@ -0,0 +1,132 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum). The victim is the page with
+ * the largest backward K-distance, i.e. the one whose K-th most recent access
+ * lies furthest in the past. Pages referenced fewer than K times have an
+ * infinite distance and go first, in LRU order, which is what keeps a single
+ * sequential scan from pushing out pages that are hit repeatedly.
+ * <p>
+ * The access history of recently evicted pages is retained (bounded by the
+ * pool capacity) so a page that comes back quickly is recognised as hot.
+ *
+ * @see ReplacementPolicy
+ */
+public class LruKReplacementPolicy implements ReplacementPolicy {
+
+    public static final int DEFAULT_K = 2;
+
+    private static class History {
+        final PageId pid;
+        final long[] times; // circular buffer with the last K access times
+        int count;
+        int next;
+        long seq;
+
+        History(PageId pid, int k) {
+            this.pid = pid;
+            this.times = new long[k];
+        }
+
+        void record(long now) {
+            times[next] = now;
+            next = (next + 1) % times.length;
+            if (count < times.length) {
+                count++;
+            }
+        }
+
+        long last() {
+            return times[(next - 1 + times.length) % times.length];
+        }
+
+        /** time of the K-th most recent access, or -1 if there were fewer than K */
+        long kth() {
+            return count < times.length ? -1 : times[next];
+        }
+    }
+
+    private final int k;
+    private final HashMap<PageId, History> resident;
+    private final TreeSet<History> order;
+    private final LinkedHashMap<PageId, History> retained;
+    private long clock;
+
+    public LruKReplacementPolicy(int capacity, int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("K must be positive");
+        }
+        final int retainedCapacity = Math.max(1, capacity);
+        this.k = k;
+        this.resident = new HashMap<>();
+        this.order = new TreeSet<>((a, b) -> {
+            int c = Long.compare(a.kth(), b.kth());
+            if (c == 0) c = Long.compare(a.last(), b.last());
+            if (c == 0) c = Long.compare(a.seq, b.seq);
+            return c;
+        });
+        this.retained = new LinkedHashMap<PageId, History>() {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<PageId, History> eldest) {
+                return size() > retainedCapacity;
+            }
+        };
+        this.clock = 0;
+    }
+
+    public void pageAdded(PageId pid) {
+        if (resident.containsKey(pid)) {
+            pageAccessed(pid);
+            return;
+        }
+        History h = retained.remove(pid);
+        if (h == null) {
+            h = new History(pid, k);
+        }
+        h.record(++clock);
+        h.seq = clock;
+        resident.put(pid, h);
+        order.add(h);
+    }
+
+    public void pageAccessed(PageId pid) {
+        History h = resident.get(pid);
+        if (h == null) {
+            return;
+        }
+        order.remove(h);
+        h.record(++clock);
+        order.add(h);
+    }
+
+    public void pageRemoved(PageId pid) {
+        History h = resident.remove(pid);
+        if (h != null) {
+            order.remove(h);
+            retained.put(pid, h);
+        }
+    }
+
+    public PageId chooseVictim(Predicate<PageId> evictable) {
+        Iterator<History> it = order.iterator();
+        while (it.hasNext()) {
+            History h = it.next();
+            if (evictable.test(h.pid)) {
+                return h.pid;
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return resident.size();
+    }
+}
@@ -0,0 +1,196 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * OptimisticConcurrency keeps the state of the transactions of a BufferPool
+ * that run optimistically, and validates them.
+ * <p>
+ * An optimistic transaction takes no locks while it runs. It reads the
+ * committed state of each page into a private copy the first time it
+ * reads it, and changes these copies only; the pages are its read set, the
+ * ones it changes its write set. When it commits, it is validated against
+ * the write sets of the transactions that committed since it started,
+ * optimistic or not (backward validation): if any of them wrote a page it
+ * read, it aborts. Otherwise its copies replace the pages in the pool
+ * before the next transaction is validated. Until it has completed, the
+ * committed state of these pages others read is still the old one, so the
+ * transactions starting meanwhile are validated against it as well.
+ * <p>
+ * Committed write sets are only kept while optimistic transactions that
+ * started before them are running.
+ *
+ * @Threadsafe
+ */
+public class OptimisticConcurrency {
+
+    /**
+     * The read and write set of a running optimistic transaction. Only
+     * used by the transaction itself, until it is validated.
+     */
+    static class Workspace {
+        // the number of the last commit before the transaction started
+        final long start;
+        // the copies of the pages the transaction read; includes those it wrote
+        final ConcurrentHashMap<PageId, Page> reads = new ConcurrentHashMap<>();
+        // the copies of the pages the transaction wrote
+        final ConcurrentHashMap<PageId, Page> writes = new ConcurrentHashMap<>();
+        // set once the copies have replaced the pages in the pool
+        volatile boolean validated = false;
+        // the number of its commit, once validated
+        long commit;
+
+        Workspace(long start) {
+            this.start = start;
+        }
+    }
+
+    /**
+     * The pages, and the tables as a whole, a committed transaction wrote.
+     */
+    private static class WriteSet {
+        final long commit;
+        final Collection<PageId> pages;
+        final Collection<Integer> tables;
+
+        WriteSet(long commit, Collection<PageId> pages, Collection<Integer> tables) {
+            this.commit = commit;
+            this.pages = pages;
+            this.tables = tables;
+        }
+    }
+
+    private final ConcurrentHashMap<TransactionId, Workspace> running = new ConcurrentHashMap<>();
+    private final AtomicLong validations = new AtomicLong(0);
+    private final AtomicLong failures = new AtomicLong(0);
+
+    // guarded by this object's monitor, which validation holds throughout
+    private final ArrayDeque<WriteSet> committed = new ArrayDeque<>();
+    // the commits of validated transactions that have not completed yet
+    private final TreeSet<Long> completing = new TreeSet<>();
+    private long lastCommit = 0;
+
+    /**
+     * Starts running a transaction optimistically.
+     */
+    public synchronized void begin(TransactionId tid) {
+        long start = completing.isEmpty() ? lastCommit : completing.first() - 1;
+        running.put(tid, new Workspace(start));
+    }
+
+    /**
+     * @return whether the transaction runs optimistically
+     */
+    public boolean isOptimistic(TransactionId tid) {
+        return !running.isEmpty() && running.containsKey(tid);
+    }
+
+    /**
+     * @return whether any optimistic transactions are running
+     */
+    boolean hasRunning() {
+        return !running.isEmpty();
+    }
+
+    /**
+     * @return the workspace of the transaction, or null if it does not run
+     * optimistically
+     */
+    Workspace workspace(TransactionId tid) {
+        return running.isEmpty() ? null : running.get(tid);
+    }
+
+    /**
+     * @return the number of optimistic transactions validated
+     */
+    public long getValidationCount() {
+        return validations.get();
+    }
+
+    /**
+     * @return the number of optimistic transactions that failed validation
+     */
+    public long getValidationFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * Checks that no transaction that committed since the workspace's
+     * transaction started wrote a page it read. Called with this object's
+     * monitor held, which must be kept until the transaction's write set has
+     * been logged with {@link #validated}.
+     *
+     * @throws TransactionAbortedException if validation fails
+     */
+    void validate(Workspace workspace) throws TransactionAbortedException {
+        validations.incrementAndGet();
+        for (WriteSet writes : committed) {
+            if (writes.commit <= workspace.start) {
+                continue;
+            }
+            boolean conflict = false;
+            for (PageId pid : writes.pages) {
+                conflict |= workspace.reads.containsKey(pid);
+            }
+            for (int tableId : writes.tables) {
+                for (PageId pid : workspace.reads.keySet()) {
+                    conflict |= pid.getTableId() == tableId;
+                }
+            }
+            if (conflict) {
+                failures.incrementAndGet();
+                throw new TransactionAbortedException(TransactionAbortedException.Reason.VALIDATION);
+            }
+        }
+    }
+
+    /**
+     * Logs the write set of a committing transaction, for the validation of
+     * the optimistic transactions running now.
+     *
+     * @param pages  the pages the transaction wrote
+     * @param tables the tables it wrote as a whole
+     */
+    synchronized void logCommit(Collection<PageId> pages, Collection<Integer> tables) {
+        lastCommit++;
+        if (!running.isEmpty()) {
+            committed.addLast(new WriteSet(lastCommit, new ArrayList<>(pages), new ArrayList<>(tables)));
+        }
+    }
+
+    /**
+     * Logs the write set of an optimistic transaction that passed
+     * validation. Called with this object's monitor held.
+     */
+    void validated(Workspace workspace) {
+        logCommit(workspace.writes.keySet(), Collections.<Integer>emptyList());
+        workspace.commit = lastCommit;
+        completing.add(lastCommit);
+        workspace.validated = true;
+    }
+
+    /**
+     * Forgets a transaction, if it ran optimistically, and the write sets
+     * no running transaction has to be validated against any more.
+     */
+    void complete(TransactionId tid) {
+        Workspace done = running.isEmpty() ? null : running.remove(tid);
+        if (done == null) {
+            return;
+        }
+        synchronized (this) {
+            if (done.validated) {
+                completing.remove(done.commit);
+            }
+            long oldest = Long.MAX_VALUE;
+            for (Workspace workspace : running.values()) {
+                oldest = Math.min(oldest, workspace.start);
+            }
+            while (!committed.isEmpty() && committed.peekFirst().commit <= oldest) {
+                committed.pollFirst();
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Page I/O for a single table file. Keeps one FileChannel open for the
+ * lifetime of the DbFile and reads and writes with positional I/O, which
+ * needs no seek and is safe to use from many threads at once.
+ * <p>
+ * An interrupted thread must not close the channel for everybody else (a
+ * FileChannel is closed when a thread blocked in it is interrupted), so I/O
+ * runs with the interrupt status cleared and a channel closed by another
+ * thread's interrupt is reopened.
+ * <p>
+ * Only writes create the file. Until then it reads like an empty file.
+ * A file that can only be read is opened read-only; writes to it fail with
+ * an AccessDeniedException.
+ *
+ * @Threadsafe
+ */
+public class PageStore {
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final File file;
+    private FileChannel channel;
+    private boolean readOnly;
+
+    public PageStore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return the file this store reads and writes
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @param write whether the caller writes; creates the file if it does
+     *              not exist yet
+     * @throws NoSuchFileException   if the file does not exist and write is
+     *                               false
+     * @throws AccessDeniedException if write is true and the file can only
+     *                               be read
+     */
+    private synchronized FileChannel channel(boolean write) throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            try {
+                if (write) {
+                    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                            StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+                } else {
+                    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                            StandardOpenOption.WRITE);
+                }
+                readOnly = false;
+            } catch (AccessDeniedException e) {
+                if (write) {
+                    throw e;
+                }
+                // read-only tables can still be queried
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                readOnly = true;
+            }
+        }
+        if (write && readOnly) {
+            throw new AccessDeniedException(file.getPath(), null, "opened read-only");
+        }
+        return channel;
+    }
+
+    private interface ChannelOp<T> {
+        T run(FileChannel ch) throws IOException;
+    }
+
+    private <T> T withChannel(boolean write, ChannelOp<T> op) throws IOException {
+        boolean interrupted = Thread.interrupted();
+        try {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    return op.run(channel(write));
+                } catch (ClosedChannelException e) {
+                    // closed under us by an interrupt of another thread
+                    if (attempt == MAX_ATTEMPTS) {
+                        throw e;
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Reads from the given position until buf is full or the end of the
+     * file is reached.
+     *
+     * @param position the offset in the file to read from
+     * @param buf      the buffer to fill
+     * @return the number of bytes read, or -1 if position is at or past
+     * the end of the file, or the file does not exist
+     */
+    public int read(long position, byte[] buf) throws IOException {
+        try {
+            return withChannel(false, ch -> {
+                ByteBuffer bb = ByteBuffer.wrap(buf);
+                while (bb.hasRemaining()) {
+                    int n = ch.read(bb, position + bb.position());
+                    if (n < 0) {
+                        break;
+                    }
+                }
+                return bb.position() == 0 && buf.length > 0 ? -1 : bb.position();
+            });
+        } catch (NoSuchFileException e) {
+            return buf.length > 0 ? -1 : 0;
+        }
+    }
+
+    /**
+     * Writes all of data at the given position, growing the file if needed.
+     *
+     * @param position the offset in the file to write to
+     * @param data     the bytes to write
+     * @throws AccessDeniedException if the file can only be read
+     */
+    public void write(long position, byte[] data) throws IOException {
+        withChannel(true, ch -> {
+            ByteBuffer bb = ByteBuffer.wrap(data);
+            while (bb.hasRemaining()) {
+                ch.write(bb, position + bb.position());
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Writes data at the end of the file. Callers that need to know where
+     * it went must make sure nobody else appends at the same time.
+     *
+     * @param data the bytes to write
+     * @throws AccessDeniedException if the file can only be read
+     */
+    public void append(byte[] data) throws IOException {
+        write(size(), data);
+    }
+
+    /**
+     * @return the current size of the file in bytes, 0 if it does not exist
+     */
+    public long size() throws IOException {
+        try {
+            return withChannel(false, FileChannel::size);
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Maps a region of the file read-only. The mapping stays valid after the
+     * channel is closed and sees later writes to the region.
+     *
+     * @param position the offset in the file the region starts at
+     * @param length   the length of the region, at most Integer.MAX_VALUE
+     * @throws NoSuchFileException if the file does not exist
+     */
+    public MappedByteBuffer map(long position, long length) throws IOException {
+        return withChannel(false, ch -> ch.map(FileChannel.MapMode.READ_ONLY, position, length));
+    }
+
+    /**
+     * Closes the channel; it is reopened on the next access.
+     */
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
@@ -2,8 +2,9 @@ package simpledb;
 
 /**
  * Class representing requested permissions to a relation/file.
- * Private constructor with two static objects READ_ONLY and READ_WRITE that
- * represent the two levels of permission.
+ * Private constructor with static objects READ_ONLY and READ_WRITE that
+ * represent the two levels of permission, and READ_FOR_UPDATE for reading
+ * something that is likely to be written next.
  */
 public class Permissions {
   int permLevel;
@@ -17,10 +18,18 @@ public class Permissions {
       return "READ_ONLY";
     if (permLevel == 1)
       return "READ_WRITE";
+    if (permLevel == 2)
+      return "READ_FOR_UPDATE";
     return "UNKNOWN";
   }
 
   public static final Permissions READ_ONLY = new Permissions(0);
   public static final Permissions READ_WRITE = new Permissions(1);
+  /**
+   * Read access that excludes other writers and updaters but not readers,
+   * and can be upgraded to READ_WRITE without the risk of deadlocking with
+   * another transaction doing the same.
+   */
+  public static final Permissions READ_FOR_UPDATE = new Permissions(2);
 
 }
@@ -0,0 +1,102 @@
+package simpledb;
+
+/**
+ * Read-ahead state of one sequential scan. Each time the scan moves on to a
+ * new page it reports so here, and the pages that follow are read into the
+ * BufferPool in the background, so that they are cached by the time the
+ * scan gets there.
+ * <p>
+ * The prefetch depth adapts to the scan: it is the number of pages the scan
+ * consumes while one page is read from disk, so a fast consumer reads
+ * further ahead than a slow one. It never exceeds {@link #MAX_DEPTH} or a
+ * quarter of the pool, so that prefetched pages are not evicted again
+ * before they are used.
+ */
+public class ReadAhead {
+
+    public static final int MAX_DEPTH = 16;
+
+    /** Weight of the newest sample in the consumption interval average */
+    private static final double SMOOTHING = 0.25;
+
+    private final BufferPool pool;
+    private final int maxDepth;
+    private long lastAdvance = -1;
+    private double avgInterval = -1;
+    // highest heap page number a read was issued for
+    private int issuedUpTo = -1;
+
+    public ReadAhead(BufferPool pool) {
+        this.pool = pool;
+        this.maxDepth = Math.min(MAX_DEPTH, pool.getNumPages() / 4);
+    }
+
+    /**
+     * @return whether the pool is large enough for reading ahead
+     */
+    public boolean isEnabled() {
+        return maxDepth > 0;
+    }
+
+    /**
+     * The heap scan moved on to page pageNo of a table with numPages pages.
+     */
+    public void advance(int tableId, int pageNo, int numPages) {
+        if (!isEnabled()) {
+            return;
+        }
+        pageConsumed(System.nanoTime());
+        int last = Math.min(numPages - 1, pageNo + depth());
+        for (int p = Math.max(issuedUpTo + 1, pageNo + 1); p <= last; p++) {
+            pool.prefetchPage(new HeapPageId(tableId, p));
+        }
+        issuedUpTo = Math.max(issuedUpTo, last);
+    }
+
+    /**
+     * The B+ tree scan moved on to the given leaf; its right siblings are
+     * read ahead.
+     */
+    public void advance(BTreeLeafPage leaf) {
+        if (!isEnabled() || leaf == null) {
+            return;
+        }
+        pageConsumed(System.nanoTime());
+        BTreePageId next = leaf.getRightSiblingId();
+        if (next != null) {
+            pool.prefetchChain(next, depth(), p ->
+                    p instanceof BTreeLeafPage ? ((BTreeLeafPage) p).getRightSiblingId() : null);
+        }
+    }
+
+    void pageConsumed(long now) {
+        if (lastAdvance >= 0) {
+            long interval = now - lastAdvance;
+            avgInterval = avgInterval < 0 ? interval : avgInterval + SMOOTHING * (interval - avgInterval);
+        }
+        lastAdvance = now;
+    }
+
+    /**
+     * @return the number of pages to keep reading ahead
+     */
+    public int depth() {
+        return depthFor(pool.getAverageReadNanos(), avgInterval, maxDepth);
+    }
+
+    /**
+     * @param readNanos     average time of a disk read, negative if unknown
+     * @param intervalNanos average time the scan spends on a page, negative if unknown
+     * @param maxDepth      upper bound of the result
+     */
+    static int depthFor(double readNanos, double intervalNanos, int maxDepth) {
+        if (maxDepth <= 0) {
+            return 0;
+        }
+        if (readNanos < 0 || intervalNanos < 0) {
+            return 1;
+        }
+        double depth = Math.ceil(readNanos / Math.max(1.0, intervalNanos));
+        return (int) Math.max(1, Math.min(maxDepth, depth));
+    }
+}
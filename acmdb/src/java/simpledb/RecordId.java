@@ -67,7 +67,7 @@ public class RecordId implements Serializable {
     @Override
     public int hashCode() {
         // some code goes here
-        return (String.valueOf(tuple_number) + String.valueOf(pid)).hashCode();
+        return 31 * pid.hashCode() + tuple_number;
     }
 
 }
@@ -0,0 +1,79 @@
+package simpledb;
+
+import java.util.function.Predicate;
+
+/**
+ * ReplacementPolicy decides which resident page the BufferPool gives up when
+ * it needs a free frame. The BufferPool reports every page that enters,
+ * gets hit in, or leaves the cache; the policy keeps whatever history it needs
+ * and answers {@link #chooseVictim} on demand.
+ * <p>
+ * Implementations are not thread-safe; the BufferPool serializes all calls
+ * to a given policy instance.
+ *
+ * @see BufferPool
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * The policies that can be selected when a BufferPool is built.
+     */
+    enum Type {
+        /** Second-chance CLOCK: one reference bit per frame. */
+        CLOCK {
+            public ReplacementPolicy create(int capacity) {
+                return new ClockReplacementPolicy(capacity);
+            }
+        },
+        /** LRU-2: evicts the page whose second most recent access is the oldest. */
+        LRU_K {
+            public ReplacementPolicy create(int capacity) {
+                return new LruKReplacementPolicy(capacity, LruKReplacementPolicy.DEFAULT_K);
+            }
+        },
+        /** Full 2Q: a FIFO probation queue, a ghost queue and a main LRU queue. */
+        TWO_Q {
+            public ReplacementPolicy create(int capacity) {
+                return new TwoQReplacementPolicy(capacity);
+            }
+        };
+
+        /**
+         * Create a fresh policy instance for a pool of the given size.
+         *
+         * @param capacity the number of frames the policy will manage
+         */
+        public abstract ReplacementPolicy create(int capacity);
+    }
+
+    /**
+     * Called when a page becomes resident in the buffer pool.
+     */
+    void pageAdded(PageId pid);
+
+    /**
+     * Called on every buffer pool hit on a resident page.
+     */
+    void pageAccessed(PageId pid);
+
+    /**
+     * Called when a page leaves the buffer pool, whether it was chosen by
+     * this policy or discarded explicitly.
+     */
+    void pageRemoved(PageId pid);
+
+    /**
+     * Pick the next page to evict. The policy does not forget the page until
+     * {@link #pageRemoved} is called for it.
+     *
+     * @param evictable filter for pages the pool is allowed to give up (for
+     *                  example, it rejects dirty pages under NO STEAL)
+     * @return the victim, or null if no resident page passes the filter
+     */
+    PageId chooseVictim(Predicate<PageId> evictable);
+
+    /**
+     * @return the number of pages this policy currently tracks as resident
+     */
+    int size();
+}
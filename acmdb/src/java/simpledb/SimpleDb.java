@@ -68,6 +68,11 @@ public class SimpleDb {
             }
         }
         else if (args[0].equals("parser")) {
+            try {
+                LockMetrics.registerMBean();
+            } catch (javax.management.JMException e) {
+                System.err.println("Lock metrics are not available over JMX: " + e);
+            }
             // Strip the first argument and call the parser
             String[] newargs = new String[args.length-1];
             for (int i = 1; i < args.length; ++i) {
@@ -1,5 +1,6 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -100,7 +101,10 @@ public class TableStats {
         this.tupleDesc = table.getTupleDesc();
         int numFields = tupleDesc.numFields();
 
-        SeqScan scan = new SeqScan(new TransactionId(), tableid);
+        // large tables are scanned through a private buffer ring (see
+        // HeapFileIterator), so computing statistics does not flush the pool
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, tableid);
 
         for (int i = 0; i < numFields; i++) {
             MinVal.put(tupleDesc.getFieldName(i), Integer.MAX_VALUE);
@@ -152,8 +156,15 @@ public class TableStats {
                     }
                 }
             }
+            scan.close();
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            try {
+                Database.getBufferPool().transactionComplete(tid);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
 
     }
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Transaction encapsulates information about the state of
@@ -9,15 +10,32 @@ import java.io.*;
 
 public class Transaction {
     private final TransactionId tid;
+    private final boolean readOnly;
+    private boolean optimistic = false;
     volatile boolean started = false;
 
     public Transaction() {
+        this(false);
+    }
+
+    /**
+     * @param readOnly whether the transaction only reads; it then reads a
+     *                 snapshot of the database as of its start, without
+     *                 taking locks
+     */
+    public Transaction(boolean readOnly) {
         tid = new TransactionId();
+        this.readOnly = readOnly;
     }
 
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (readOnly) {
+            Database.getBufferPool().beginSnapshot(tid);
+        } else if (optimistic) {
+            Database.getBufferPool().beginOptimistic(tid);
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -29,8 +47,75 @@ public class Transaction {
         return tid;
     }
 
-    /** Finish the transaction */
-    public void commit() throws IOException {
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Makes the transaction run optimistically: it takes no locks, and is
+     * validated when it commits instead. Call before {@link #start}.
+     *
+     * @see BufferPool#beginOptimistic
+     */
+    public void setOptimistic(boolean optimistic) {
+        this.optimistic = optimistic;
+    }
+
+    public boolean isOptimistic() {
+        return optimistic;
+    }
+
+    /**
+     * Sets the isolation level of the transaction, SERIALIZABLE by default.
+     *
+     * @see TransactionId#setIsolationLevel
+     */
+    public void setIsolationLevel(IsolationLevel isolation) {
+        tid.setIsolationLevel(isolation);
+    }
+
+    public IsolationLevel getIsolationLevel() {
+        return tid.getIsolationLevel();
+    }
+
+    /**
+     * Makes the transaction abort rather than wait longer than this for any
+     * one lock.
+     *
+     * @param millis the timeout, or 0 to wait as long as it takes
+     */
+    public void setLockTimeout(long millis) {
+        Database.getBufferPool().getLockManager().setLockTimeout(tid, millis);
+    }
+
+    /**
+     * Gives the transaction a deadline millis from now. Once it has passed,
+     * the transaction aborts at its next lock request, or while it waits
+     * for a lock.
+     */
+    public void setTimeout(long millis) {
+        Database.getBufferPool().getLockManager().setDeadline(tid,
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    /**
+     * Finish the transaction
+     *
+     * @throws TransactionAbortedException if the transaction runs
+     *                                     optimistically and fails validation; it is aborted then
+     */
+    public void commit() throws IOException, TransactionAbortedException {
+        if (started && optimistic) {
+            try {
+                Database.getBufferPool().validate(tid);
+            } catch (TransactionAbortedException e) {
+                transactionComplete(true);
+                throw e;
+            } catch (DbException e) {
+                transactionComplete(true);
+                throw new IOException("transaction " + tid.getId() + " could not commit", e);
+            }
+        }
         transactionComplete(false);
     }
 
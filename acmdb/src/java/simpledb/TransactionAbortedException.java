@@ -6,6 +6,36 @@ import java.lang.Exception;
 public class TransactionAbortedException extends Exception {
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Why a transaction was aborted.
+     */
+    public enum Reason {
+        /** No reason was given */
+        UNKNOWN,
+        /** Chosen as victim to break or prevent a deadlock */
+        DEADLOCK,
+        /** Waited longer for a lock than its lock timeout allows */
+        LOCK_TIMEOUT,
+        /** Its deadline passed */
+        DEADLINE,
+        /** The thread was interrupted while waiting for a lock */
+        INTERRUPTED,
+        /** An optimistic transaction read data another one changed meanwhile */
+        VALIDATION
+    }
+
+    private final Reason reason;
+
     public TransactionAbortedException() {
+        this(Reason.UNKNOWN);
+    }
+
+    public TransactionAbortedException(Reason reason) {
+        super(reason == Reason.UNKNOWN ? null : reason.toString());
+        this.reason = reason;
+    }
+
+    public Reason getReason() {
+        return reason;
     }
 }
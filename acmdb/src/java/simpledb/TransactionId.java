@@ -12,6 +12,10 @@ public class TransactionId implements Serializable {
 
     static AtomicLong counter = new AtomicLong(0);
     final long myid;
+    // the locks of this transaction in the lock manager that last looked
+    // them up, so it need not search its shared table for them again
+    transient volatile LockManager.TransactionLocks locks;
+    private volatile IsolationLevel isolation = IsolationLevel.SERIALIZABLE;
 
     public TransactionId() {
         myid = counter.getAndIncrement();
@@ -21,6 +25,18 @@ public class TransactionId implements Serializable {
         return myid;
     }
 
+    public IsolationLevel getIsolationLevel() {
+        return isolation;
+    }
+
+    /**
+     * Sets the isolation level of the transaction; SERIALIZABLE unless set.
+     * Applies to the pages it reads from now on.
+     */
+    public void setIsolationLevel(IsolationLevel isolation) {
+        this.isolation = isolation;
+    }
+
     @Override
 	public boolean equals(Object obj) {
 		if (this == obj)
@@ -0,0 +1,97 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.function.Predicate;
+
+/**
+ * Full 2Q replacement (Johnson and Shasha). A page seen for the first time
+ * enters the FIFO probation queue A1in. When it is evicted from there, only
+ * its id is remembered in the ghost queue A1out; a page that is requested
+ * again while still in A1out is promoted straight into the main LRU queue Am.
+ * Pages that are touched once, such as those of a large scan, therefore never
+ * displace the hot set in Am.
+ *
+ * @see ReplacementPolicy
+ */
+public class TwoQReplacementPolicy implements ReplacementPolicy {
+
+    /** Share of the frames reserved for the probation queue A1in */
+    private static final double KIN_RATIO = 0.25;
+    /** Number of ghost entries, relative to the number of frames */
+    private static final double KOUT_RATIO = 0.5;
+
+    private final int kin;
+    private final int kout;
+    private final LinkedHashSet<PageId> a1in;
+    private final LinkedHashSet<PageId> a1out;
+    private final LinkedHashSet<PageId> am;
+
+    public TwoQReplacementPolicy(int capacity) {
+        this.kin = Math.max(1, (int) (capacity * KIN_RATIO));
+        this.kout = Math.max(1, (int) (capacity * KOUT_RATIO));
+        this.a1in = new LinkedHashSet<>();
+        this.a1out = new LinkedHashSet<>();
+        this.am = new LinkedHashSet<>();
+    }
+
+    public void pageAdded(PageId pid) {
+        if (am.contains(pid) || a1in.contains(pid)) {
+            pageAccessed(pid);
+        } else if (a1out.remove(pid)) {
+            am.add(pid);
+        } else {
+            a1in.add(pid);
+        }
+    }
+
+    public void pageAccessed(PageId pid) {
+        // hits in A1in are deliberately ignored: they are usually correlated
+        // references to a page that was just loaded
+        if (am.remove(pid)) {
+            am.add(pid);
+        }
+    }
+
+    public void pageRemoved(PageId pid) {
+        if (a1in.remove(pid)) {
+            a1out.add(pid);
+            if (a1out.size() > kout) {
+                Iterator<PageId> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        } else {
+            am.remove(pid);
+        }
+    }
+
+    public PageId chooseVictim(Predicate<PageId> evictable) {
+        PageId victim = null;
+        if (a1in.size() > kin || am.isEmpty()) {
+            victim = firstEvictable(a1in, evictable);
+            if (victim == null) {
+                victim = firstEvictable(am, evictable);
+            }
+        } else {
+            victim = firstEvictable(am, evictable);
+            if (victim == null) {
+                victim = firstEvictable(a1in, evictable);
+            }
+        }
+        return victim;
+    }
+
+    private static PageId firstEvictable(LinkedHashSet<PageId> queue, Predicate<PageId> evictable) {
+        for (PageId pid : queue) {
+            if (evictable.test(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return a1in.size() + am.size();
+    }
+}
@@ -0,0 +1,189 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * VersionStore keeps the old versions of pages that snapshot transactions
+ * may still need, so that read-only transactions can read the database as
+ * of their start without taking locks.
+ * <p>
+ * Commits are numbered in the order they complete. A snapshot sees the
+ * commits up to the last one that had completed when it started. Before a
+ * page is written out with changes of a transaction, its committed state
+ * (the page's before image) is kept as a version of the page; once the
+ * transaction completes, the version gets the transaction's commit number
+ * and is visible to the snapshots older than it. A snapshot reads the
+ * oldest version of a page that is newer than the snapshot, if there is
+ * one, and the committed state of the page otherwise.
+ * <p>
+ * Versions are dropped as soon as no running snapshot can read them, and
+ * right away when there are no snapshots at all.
+ *
+ * @Threadsafe
+ */
+public class VersionStore {
+
+    // commit number of versions whose writer has not completed yet
+    private static final long PENDING = Long.MAX_VALUE;
+
+    /**
+     * The state of a page before a commit.
+     */
+    private static class Version {
+        final PageId pid;
+        final Page page;
+        // the commit that replaced this state, PENDING until it completes
+        long commit = PENDING;
+
+        Version(PageId pid, Page page) {
+            this.pid = pid;
+            this.page = page;
+        }
+    }
+
+    // the commit number of each running snapshot; read without the monitor
+    // so that transactions that are no snapshots are told apart quickly
+    private final ConcurrentHashMap<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+
+    // all fields below are guarded by this object's monitor
+
+    // the versions of each page, oldest first
+    private final HashMap<PageId, ArrayList<Version>> chains = new HashMap<>();
+    // the versions kept for transactions that have not completed yet
+    private final HashMap<TransactionId, ArrayList<Version>> pending = new HashMap<>();
+    // the versions of completed commits, in commit order
+    private final ArrayDeque<Version> committed = new ArrayDeque<>();
+    private long lastCommit = 0;
+
+    /**
+     * Starts a snapshot for a transaction: from now on it reads the
+     * database as it is right now, committed changes only.
+     *
+     * @param tid the transaction, which must not write anything
+     */
+    public synchronized void beginSnapshot(TransactionId tid) {
+        snapshots.put(tid, lastCommit);
+    }
+
+    /**
+     * @return whether the transaction reads from a snapshot
+     */
+    public boolean isSnapshot(TransactionId tid) {
+        return !snapshots.isEmpty() && snapshots.containsKey(tid);
+    }
+
+    /**
+     * @return the number of running snapshots
+     */
+    public int getSnapshotCount() {
+        return snapshots.size();
+    }
+
+    /**
+     * @return the number of old page versions kept
+     */
+    public synchronized int getVersionCount() {
+        int n = 0;
+        for (ArrayList<Version> chain : chains.values()) {
+            n += chain.size();
+        }
+        return n;
+    }
+
+    /**
+     * Keeps the committed state of a page before it is written out with the
+     * changes of a transaction. Called with the page's monitor held, before
+     * its before image is replaced.
+     *
+     * @param tid  the transaction whose changes are written
+     * @param page the page, whose before image is its committed state
+     */
+    synchronized void install(TransactionId tid, Page page) {
+        Version version = new Version(page.getId(), page.getBeforeImage());
+        chains.computeIfAbsent(version.pid, k -> new ArrayList<>()).add(version);
+        pending.computeIfAbsent(tid, k -> new ArrayList<>()).add(version);
+    }
+
+    /**
+     * Completes a transaction: numbers the commit of the changes it wrote
+     * out, if any, and ends its snapshot, if it had one.
+     */
+    synchronized void complete(TransactionId tid) {
+        ArrayList<Version> versions = pending.remove(tid);
+        boolean snapshot = snapshots.remove(tid) != null;
+        if (versions == null && !snapshot) {
+            return;
+        }
+        if (versions != null) {
+            lastCommit++;
+            for (Version version : versions) {
+                version.commit = lastCommit;
+                committed.addLast(version);
+            }
+        }
+        collect();
+    }
+
+    /**
+     * Drops the committed versions no snapshot can read any more, i.e. those
+     * of commits every running snapshot sees already.
+     */
+    private void collect() {
+        long oldest = Long.MAX_VALUE;
+        for (long snapshot : snapshots.values()) {
+            oldest = Math.min(oldest, snapshot);
+        }
+        while (!committed.isEmpty() && committed.peekFirst().commit <= oldest) {
+            Version version = committed.pollFirst();
+            ArrayList<Version> chain = chains.get(version.pid);
+            chain.remove(version);
+            if (chain.isEmpty()) {
+                chains.remove(version.pid);
+            }
+        }
+    }
+
+    /**
+     * @return the oldest version of the page newer than the snapshot, or
+     * null if the snapshot sees the page's committed state
+     */
+    private Version visible(PageId pid, long snapshot) {
+        ArrayList<Version> chain = chains.get(pid);
+        if (chain != null) {
+            for (Version version : chain) {
+                if (version.commit > snapshot) {
+                    return version;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads a page as a snapshot transaction sees it.
+     *
+     * @param tid       the snapshot transaction
+     * @param pid       the page to read
+     * @param current returns the committed state of the page, as of now or
+     *                later
+     * @return the page, which must not be changed
+     */
+    Page read(TransactionId tid, PageId pid, Supplier<Page> current) {
+        long snapshot = snapshots.get(tid);
+        synchronized (this) {
+            Version version = visible(pid, snapshot);
+            if (version != null) {
+                return version.page;
+            }
+        }
+        // parsed without the monitor: if a newer commit replaces the state
+        // meanwhile, its version is found below
+        Page page = current.get();
+        synchronized (this) {
+            Version version = visible(pid, snapshot);
+            return version != null ? version.page : page;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.Predicate.Op;
+
+public class BTreeKeyRangeLockTest extends TestUtil.CreateBTreeFile {
+    // how long a writer waits for a key before it gives up
+    private static final long TIMEOUT_MILLIS = 200;
+
+    // the smallest and the largest key on the left-most leaf
+    private Field first;
+    private Field last;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        TransactionId tid = new TransactionId();
+        BTreeLeafPage leaf = bf.findLeafPage(tid, Permissions.READ_ONLY, null);
+        first = leaf.iterator().next().getField(0);
+        last = leaf.reverseIterator().next().getField(0);
+        bp.transactionComplete(tid);
+        assertTrue(first.compare(Op.LESS_THAN, last));
+    }
+
+    private ArrayList<Tuple> scan(TransactionId tid, Op op, Field key) throws Exception {
+        DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(op, key));
+        it.open();
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        while (it.hasNext()) {
+            tuples.add(it.next());
+        }
+        it.close();
+        return tuples;
+    }
+
+    private TransactionId writer() {
+        TransactionId tid = new TransactionId();
+        lm.setLockTimeout(tid, TIMEOUT_MILLIS);
+        return tid;
+    }
+
+    private void insert(TransactionId tid, int key) throws Exception {
+        bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[]{key, 0}));
+    }
+
+    /**
+     * @return the first key above the given one in the index
+     */
+    private Field nextKey(Field key) throws Exception {
+        TransactionId tid = new TransactionId();
+        tid.setIsolationLevel(IsolationLevel.READ_COMMITTED);
+        Field next = scan(tid, Op.GREATER_THAN, key).get(0).getField(0);
+        bp.transactionComplete(tid);
+        return next;
+    }
+
+    /**
+     * A range scan locks the keys it returns and the one after them, and
+     * none of the leaves it read.
+     */
+    @Test public void scanLocksKeysNotPages() throws Exception {
+        TransactionId tid = new TransactionId();
+        ArrayList<Tuple> tuples = scan(tid, Op.LESS_THAN_OR_EQ, last);
+        assertTrue(tuples.size() > 0);
+        assertEquals(0, lm.getPageLockCount(tid));
+        for (Tuple t : tuples) {
+            assertEquals(LockManager.LockMode.SHARED, lm.getKeyLockMode(tid, bf.getId(), t.getField(0)));
+        }
+        assertEquals(LockManager.LockMode.SHARED, lm.getKeyLockMode(tid, bf.getId(), nextKey(last)));
+        bp.transactionComplete(tid);
+
+        // up to the end of the index
+        tid = new TransactionId();
+        scan(tid, Op.GREATER_THAN, last);
+        assertEquals(0, lm.getPageLockCount(tid));
+        assertEquals(LockManager.LockMode.SHARED, lm.getKeyLockMode(tid, bf.getId(), null));
+        bp.transactionComplete(tid);
+
+        // scans at READ COMMITTED lock no keys
+        tid = new TransactionId();
+        tid.setIsolationLevel(IsolationLevel.READ_COMMITTED);
+        scan(tid, Op.LESS_THAN_OR_EQ, last);
+        assertNull(lm.getKeyLockMode(tid, bf.getId(), last));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Inserts and deletes outside a range that is being scanned go ahead,
+     * those in the range wait for the scan to complete.
+     */
+    @Test public void writersInRangeWait() throws Exception {
+        TransactionId scanner = new TransactionId();
+        int count = scan(scanner, Op.LESS_THAN_OR_EQ, last).size();
+
+        // above the range, on the same leaf and further right
+        TransactionId tid = writer();
+        insert(tid, ((IntField) nextKey(last)).getValue() + 1);
+        insert(tid, BTreeUtility.MAX_RAND_VALUE);
+        bp.transactionComplete(tid);
+
+        tid = writer();
+        try {
+            insert(tid, ((IntField) last).getValue());
+            fail("inserted into a range being scanned");
+        } catch (TransactionAbortedException e) {
+            bp.transactionComplete(tid, false);
+        }
+        tid = writer();
+        try {
+            bp.deleteTuple(tid, scan(tid, Op.EQUALS, first).get(0));
+            fail("deleted from a range being scanned");
+        } catch (TransactionAbortedException e) {
+            bp.transactionComplete(tid, false);
+        }
+
+        assertEquals(count, scan(scanner, Op.LESS_THAN_OR_EQ, last).size());
+        bp.transactionComplete(scanner);
+
+        tid = writer();
+        insert(tid, ((IntField) last).getValue());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Tuples a scan returned may be moved by inserts of others before the
+     * scan's transaction deletes them, and are still found.
+     */
+    @Test public void deleteMovedTuple() throws Exception {
+        TransactionId scanner = new TransactionId();
+        ArrayList<Tuple> tuples = scan(scanner, Op.EQUALS, last);
+        Tuple t = tuples.get(0);
+
+        // fill the left-most leaf until it splits, below the scanned key
+        TransactionId tid = writer();
+        int free = bf.findLeafPage(tid, Permissions.READ_ONLY, null).getNumEmptySlots();
+        for (int i = 0; i <= free; i++) {
+            insert(tid, -1);
+        }
+        bp.transactionComplete(tid);
+
+        bp.deleteTuple(scanner, t);
+        ArrayList<Tuple> left = scan(scanner, Op.EQUALS, last);
+        assertEquals(tuples.size() - 1, left.size());
+        Iterator<Tuple> it = left.iterator();
+        while (it.hasNext()) {
+            assertEquals(last, it.next().getField(0));
+        }
+        assertEquals(free + 1, scan(scanner, Op.LESS_THAN, first).size());
+        bp.transactionComplete(scanner);
+    }
+
+    /**
+     * A scan moving on to the next leaf holds on to the leaf it leaves until
+     * it has locked the first key of the next one. An insert above every key
+     * of the left leaf checks that key, so it waits for the scan rather than
+     * adding a phantom to the range behind it.
+     */
+    @Test(timeout = 20000) public void insertAtLeafBoundaryWaits() throws Exception {
+        final Field next = nextKey(last);
+        // above every key on the left leaf, or another copy of the largest
+        // one if there is no room above it
+        int key = ((IntField) last).getValue() + 1;
+        if (key >= ((IntField) next).getValue()) {
+            key = ((IntField) last).getValue();
+        }
+        // room on the left leaf, so the insert does not split it
+        TransactionId tid = new TransactionId();
+        bp.deleteTuple(tid, scan(tid, Op.EQUALS, first).get(0));
+        final PageId leftLeaf = bf.findLeafPage(tid, Permissions.READ_ONLY, null).getId();
+        bp.transactionComplete(tid);
+
+        // the scan stops right after it let go of the left leaf
+        final TransactionId scanner = new TransactionId();
+        final CountDownLatch leftBehind = new CountDownLatch(1);
+        final CountDownLatch resume = new CountDownLatch(1);
+        bp = Database.setBufferPool(new BufferPool(BufferPool.DEFAULT_PAGES) {
+            public void leaveKeyLockedPage(TransactionId tid, PageId pid) {
+                super.leaveKeyLockedPage(tid, pid);
+                if (tid.equals(scanner) && pid.equals(leftLeaf)) {
+                    leftBehind.countDown();
+                    try {
+                        resume.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        });
+        lm = bp.getLockManager();
+
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread scan = new Thread() {
+            public void run() {
+                try {
+                    scan(scanner, Op.LESS_THAN_OR_EQ, next);
+                } catch (Throwable e) {
+                    error.set(e);
+                    leftBehind.countDown();
+                }
+            }
+        };
+        scan.start();
+        leftBehind.await();
+
+        tid = writer();
+        try {
+            insert(tid, key);
+            fail("inserted behind a scan moving on to the next leaf");
+        } catch (TransactionAbortedException e) {
+            bp.transactionComplete(tid, false);
+        } finally {
+            resume.countDown();
+        }
+        scan.join();
+        assertNull(error.get());
+        bp.transactionComplete(scanner);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BTreeKeyRangeLockTest.class);
+    }
+}
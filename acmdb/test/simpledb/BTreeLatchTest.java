@@ -0,0 +1,153 @@
+package simpledb;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.locks.StampedLock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeLatchTest extends TestUtil.CreateBTreeFile {
+    private BTreePageId rootPtrId;
+    private BTreePageId rootId;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        rootPtrId = BTreeRootPtrPage.getId(bf.getId());
+        TransactionId tid = new TransactionId();
+        rootId = ((BTreeRootPtrPage) bp.getPage(tid, rootPtrId, Permissions.READ_ONLY)).getRootId();
+        bp.transactionComplete(tid);
+        assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+    }
+
+    @After public void tearDown() throws Exception {
+        BufferPool.resetPageSize();
+        Database.reset();
+    }
+
+    private BTreeInternalPage root(TransactionId tid) throws Exception {
+        return (BTreeInternalPage) bp.getPage(tid, rootId, Permissions.READ_ONLY);
+    }
+
+    /**
+     * Lookups lock the leaf they end up at only, and take no latches.
+     */
+    @Test public void lookupsLockLeavesOnly() throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(0)));
+        it.open();
+        assertEquals(1, lm.getPageLockCount(tid));
+        assertFalse(bp.holdsLock(tid, rootPtrId));
+        assertFalse(bp.holdsLock(tid, rootId));
+        assertFalse(bp.getLatch(rootId).isReadLocked());
+        it.hasNext();
+        it.close();
+
+        BTreeLeafPage leaf = bf.findLeafPage(tid, Permissions.READ_WRITE, new IntField(0));
+        assertTrue(lm.getExclusivelyLockedPages(tid).contains(leaf.getId()));
+        assertFalse(bp.holdsLock(tid, rootId));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A transaction that has read the tree does not keep others from
+     * changing the pages above the leaves.
+     */
+    @Test public void readersDoNotBlockSplits() throws Exception {
+        TransactionId reader = new TransactionId();
+        DbFileIterator it = bf.iterator(reader);
+        it.open();
+        assertTrue(it.hasNext());
+
+        TransactionId writer = new TransactionId();
+        assertTrue(lm.tryAcquireLock(writer, rootPtrId, Permissions.READ_WRITE));
+        assertTrue(lm.tryAcquireLock(writer, rootId, Permissions.READ_WRITE));
+        bp.transactionComplete(writer);
+
+        it.close();
+        bp.transactionComplete(reader);
+    }
+
+    /**
+     * Internal pages are changed on copies, and the pages in the buffer pool
+     * take the changes over when the insert is done.
+     */
+    @Test public void internalPagesChangedOnCopies() throws Exception {
+        TransactionId tid = new TransactionId();
+        HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+        Page cached = bp.getPage(tid, rootId, Permissions.READ_ONLY);
+        StampedLock latch = bp.getLatch(rootId);
+        long version = latch.tryOptimisticRead();
+        Page copy = bf.getPage(tid, dirtypages, rootId, Permissions.READ_WRITE);
+        assertNotSame(cached, copy);
+        assertSame(copy, dirtypages.get(rootId));
+        assertSame(cached, bp.getPage(tid, rootId, Permissions.READ_WRITE));
+        assertTrue(latch.validate(version));
+        bp.transactionComplete(tid, false);
+
+        // fill the left-most leaf up until it splits
+        tid = new TransactionId();
+        BTreeLeafPage leaf = bf.findLeafPage(tid, Permissions.READ_ONLY, null);
+        int free = leaf.getNumEmptySlots();
+        int entries = root(tid).getNumEntries();
+        for (int i = 0; i <= free; i++) {
+            bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[]{-1, i}));
+        }
+        BTreeInternalPage root = root(tid);
+        assertSame(cached, root);
+        assertEquals(entries + 1, root.getNumEntries());
+        assertEquals(tid, root.isDirty());
+        // searches that read the root before notice it changed
+        assertFalse(latch.validate(version));
+        bp.transactionComplete(tid, false);
+
+        // the split is rolled back with the transaction
+        tid = new TransactionId();
+        assertEquals(entries, root(tid).getNumEntries());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A search that gets to an internal page after it was split, but before
+     * its parent has an entry for the new page, goes on to the new page.
+     */
+    @Test public void searchesFollowRightLinks() throws Exception {
+        // three levels, with 125 children per internal page
+        BufferPool.setPageSize(1024);
+        bf = BTreeUtility.createRandomBTreeFile(2, 31125, null, null, 0);
+        bp = Database.resetBufferPool(500);
+        TransactionId tid = new TransactionId();
+        rootPtrId = BTreeRootPtrPage.getId(bf.getId());
+        rootId = ((BTreeRootPtrPage) bp.getPage(tid, rootPtrId, Permissions.READ_ONLY)).getRootId();
+        BTreePageId pid = root(tid).iterator().next().getLeftChild();
+        assertEquals(BTreePageId.INTERNAL, pid.pgcateg());
+
+        HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+        BTreeInternalPage page = (BTreeInternalPage) bf.getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+        Field key = page.reverseIterator().next().getKey();
+        BTreeInternalPage right = bf.splitInternalPage(tid, dirtypages, page, key);
+        assertEquals(right.getId(), page.getRightLink());
+        assertEquals(null, right.getRightLink());
+
+        // put the split pages in place, but not the root
+        bp.installPages(tid, Arrays.<Page>asList(page, right), (c, p) ->
+                ((BTreeInternalPage) p).copyFrom((BTreeInternalPage) c));
+        BTreeLeafPage leaf = bf.findLeafPage(tid, Permissions.READ_ONLY, key);
+        assertEquals(right.getId(), leaf.getParentId());
+        bp.transactionComplete(tid, false);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BTreeLatchTest.class);
+    }
+}
@@ -0,0 +1,326 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferPoolTest extends SimpleDbTestBase {
+    private static final int PAGES = 20;
+    private static final int THREADS = 8;
+
+    private HeapFile hf;
+    private TransactionId tid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * PAGES, null, null);
+        assertEquals(PAGES, hf.numPages());
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private HeapPageId pid(int n) {
+        return new HeapPageId(hf.getId(), n);
+    }
+
+    /**
+     * The shards share the capacity of the pool, and the pool never caches
+     * more than numPages pages in total.
+     */
+    @Test public void shardedCapacity() throws Exception {
+        BufferPool bp = new BufferPool(10, 3, ReplacementPolicy.Type.CLOCK);
+        assertEquals(3, bp.getNumShards());
+        assertEquals(10, bp.getNumPages());
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < PAGES; i++) {
+                bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+                assertTrue(bp.getNumCachedPages() <= 10);
+            }
+        }
+        assertEquals(3 * PAGES, bp.getHitCount() + bp.getMissCount());
+    }
+
+    /**
+     * Many threads hitting the same pages of a sharded pool all get the
+     * cached instance, and every page is read at most once.
+     */
+    @Test public void concurrentGetPage() throws Exception {
+        final BufferPool bp = new BufferPool(PAGES * 2, 4, ReplacementPolicy.Type.TWO_Q);
+        final ConcurrentHashMap<PageId, Page> seen = new ConcurrentHashMap<PageId, Page>();
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            final TransactionId reader = new TransactionId();
+            Thread th = new Thread() {
+                public void run() {
+                    try {
+                        for (int round = 0; round < 50; round++) {
+                            for (int i = 0; i < PAGES; i++) {
+                                Page p = bp.getPage(reader, pid(i), Permissions.READ_ONLY);
+                                Page first = seen.putIfAbsent(p.getId(), p);
+                                if (first != null && first != p) {
+                                    throw new AssertionError("two copies of " + p.getId());
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }
+            };
+            threads.add(th);
+            th.start();
+        }
+        for (Thread th : threads) {
+            th.join();
+        }
+        assertNull(error.get());
+        assertEquals(PAGES, bp.getNumCachedPages());
+        assertEquals(THREADS * 50 * PAGES, bp.getHitCount() + bp.getMissCount());
+    }
+
+    /**
+     * Pinned pages stay resident however many other pages pass through the
+     * pool, and become evictable once every pin is released.
+     */
+    @Test public void pinnedPageIsNotEvicted() throws Exception {
+        BufferPool bp = new BufferPool(3, 1, ReplacementPolicy.Type.CLOCK);
+        Page pinned = bp.getPinnedPage(tid, pid(0), Permissions.READ_ONLY);
+        bp.pinPage(tid, pid(0));
+        assertEquals(2, bp.getPinCount(pid(0)));
+        assertEquals(1, bp.getPinnedPageCount());
+
+        for (int i = 1; i < PAGES; i++) {
+            bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+        }
+        assertSame(pinned, bp.getPage(tid, pid(0), Permissions.READ_ONLY));
+
+        bp.unpinPage(tid, pid(0));
+        assertEquals(1, bp.getPinCount(pid(0)));
+        bp.unpinPage(tid, pid(0));
+        bp.unpinPage(tid, pid(0)); // extra unpins are ignored
+        assertEquals(0, bp.getPinCount(pid(0)));
+        assertEquals(0, bp.getPinnedPageCount());
+        long misses = bp.getMissCount();
+        for (int i = 1; i < PAGES; i++) {
+            bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+        }
+        bp.getPage(tid, pid(0), Permissions.READ_ONLY);
+        assertEquals(misses + PAGES, bp.getMissCount());
+    }
+
+    /**
+     * Eviction fails rather than stealing a frame when every page is pinned;
+     * completing the transaction releases its pins.
+     */
+    @Test public void allPagesPinned() throws Exception {
+        BufferPool bp = new BufferPool(2, 1, ReplacementPolicy.Type.LRU_K);
+        TransactionId holder = new TransactionId();
+        bp.getPinnedPage(holder, pid(0), Permissions.READ_ONLY);
+        bp.getPinnedPage(holder, pid(1), Permissions.READ_ONLY);
+        try {
+            bp.getPage(tid, pid(2), Permissions.READ_ONLY);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        bp.transactionComplete(holder);
+        assertEquals(0, bp.getPinnedPageCount());
+        assertNotNull(bp.getPage(tid, pid(2), Permissions.READ_ONLY));
+    }
+
+    /**
+     * A scan keeps only the page it is positioned on pinned, and releases it
+     * at the end of the table and on close.
+     */
+    @Test public void iteratorPinsCurrentPage() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        it.next();
+        assertEquals(1, bp.getPinnedPageCount());
+        assertEquals(1, bp.getPinCount(pid(0)));
+        for (int i = 0; i < 504; i++) {
+            it.next();
+        }
+        assertEquals(0, bp.getPinCount(pid(0)));
+        assertEquals(1, bp.getPinCount(pid(1)));
+        it.close();
+        assertEquals(0, bp.getPinnedPageCount());
+
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+        }
+        assertEquals(0, bp.getPinnedPageCount());
+        it.close();
+    }
+
+    private static int countTuples(DbFileIterator it) throws Exception {
+        int n = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /**
+     * A scan of a table larger than the bulk read threshold goes through a
+     * buffer ring and leaves the pages cached in the pool alone, while
+     * still using the pool's copies of the pages it has.
+     */
+    @Test public void largeScanUsesBufferRing() throws Exception {
+        assertFalse(new BufferPool(7).useBulkRead(PAGES));
+        BufferPool bp = Database.resetBufferPool(16);
+        assertTrue(bp.useBulkRead(PAGES));
+        for (int i = 0; i < 3; i++) {
+            bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+        }
+        long misses = bp.getMissCount();
+
+        assertEquals(504 * PAGES, countTuples(hf.iterator(tid)));
+        assertEquals(3, bp.getNumCachedPages());
+        assertEquals(PAGES - 3, bp.getBulkReadCount());
+        assertEquals(misses, bp.getMissCount());
+        assertEquals(0, bp.getPinnedPageCount());
+
+        // with a higher threshold the same scan goes through the pool
+        bp.setBulkReadFraction(PAGES);
+        assertFalse(bp.useBulkRead(PAGES));
+        assertEquals(504 * PAGES, countTuples(hf.iterator(tid)));
+        assertEquals(16, bp.getNumCachedPages());
+        assertEquals(PAGES - 3, bp.getBulkReadCount());
+    }
+
+    /**
+     * A HeapFile whose reads are slow and counted, so that concurrent misses
+     * on the same page overlap.
+     */
+    private static class SlowHeapFile extends HeapFile {
+        final AtomicInteger reads = new AtomicInteger(0);
+        volatile boolean fail = false;
+
+        SlowHeapFile(HeapFile hf) {
+            super(hf.getFile(), hf.getTupleDesc());
+        }
+
+        public Page readPage(PageId pid) {
+            reads.incrementAndGet();
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            if (fail) {
+                throw new IllegalArgumentException("simulated read failure");
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    /**
+     * Runs THREADS threads that all request the same page at once, and
+     * collects what each one got back.
+     */
+    private static ArrayList<Object> getPageConcurrently(final BufferPool bp, final PageId pid)
+            throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final ArrayList<Object> results = new ArrayList<Object>();
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            final TransactionId reader = new TransactionId();
+            Thread th = new Thread() {
+                public void run() {
+                    Object result;
+                    try {
+                        start.await();
+                        result = bp.getPage(reader, pid, Permissions.READ_ONLY);
+                    } catch (Throwable e) {
+                        result = e;
+                    }
+                    synchronized (results) {
+                        results.add(result);
+                    }
+                }
+            };
+            threads.add(th);
+            th.start();
+        }
+        start.countDown();
+        for (Thread th : threads) {
+            th.join();
+        }
+        return results;
+    }
+
+    /**
+     * Concurrent misses on one page issue a single disk read; the other
+     * threads wait for it and get the same page instance.
+     */
+    @Test public void singleFlightLoad() throws Exception {
+        SlowHeapFile slow = new SlowHeapFile(hf);
+        Database.getCatalog().addTable(slow, "slow");
+        BufferPool bp = new BufferPool(PAGES, 1, ReplacementPolicy.Type.TWO_Q);
+
+        ArrayList<Object> results = getPageConcurrently(bp, pid(0));
+        assertEquals(THREADS, results.size());
+        for (Object r : results) {
+            assertTrue(r instanceof Page);
+            assertSame(results.get(0), r);
+        }
+        assertEquals(1, slow.reads.get());
+        assertEquals(1, bp.getMissCount());
+        assertEquals(THREADS - 1, bp.getDeduplicatedReadCount());
+        assertEquals(THREADS - 1, bp.getHitCount());
+        assertEquals(1, bp.getNumCachedPages());
+    }
+
+    /**
+     * A failed read is reported to every waiting thread and leaves nothing
+     * behind, so the next request reads the page again.
+     */
+    @Test public void singleFlightLoadFailure() throws Exception {
+        SlowHeapFile slow = new SlowHeapFile(hf);
+        Database.getCatalog().addTable(slow, "slow");
+        BufferPool bp = new BufferPool(PAGES, 1, ReplacementPolicy.Type.TWO_Q);
+
+        slow.fail = true;
+        for (Object r : getPageConcurrently(bp, pid(1))) {
+            assertTrue(r instanceof IllegalArgumentException);
+        }
+        assertEquals(1, slow.reads.get());
+        assertEquals(0, bp.getNumCachedPages());
+
+        slow.fail = false;
+        assertNotNull(bp.getPage(tid, pid(1), Permissions.READ_ONLY));
+        assertEquals(2, slow.reads.get());
+        assertEquals(1, bp.getNumCachedPages());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolTest.class);
+    }
+}
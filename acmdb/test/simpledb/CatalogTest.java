@@ -1,6 +1,11 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
 
 import java.util.NoSuchElementException;
 import java.util.Random;
@@ -93,6 +98,32 @@ public class CatalogTest extends SimpleDbTestBase {
     	assertEquals(f, Database.getCatalog().getDatabaseFile(id2));
     }
 
+    /**
+     * Tables marked mapped in a schema file are read through a mapping
+     */
+    @Test public void loadSchemaOptions() throws Exception {
+        File dir = File.createTempFile("catalog", "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        File schema = new File(dir, "catalog.txt");
+        schema.deleteOnExit();
+        FileWriter w = new FileWriter(schema);
+        w.write("plain (a int, b string)\n");
+        w.write("reference (id int pk, name string) mapped\n");
+        w.close();
+
+        Database.getCatalog().loadSchema(schema.getAbsolutePath());
+        HeapFile plain = (HeapFile) Database.getCatalog().getDatabaseFile(
+                Database.getCatalog().getTableId("plain"));
+        HeapFile reference = (HeapFile) Database.getCatalog().getDatabaseFile(
+                Database.getCatalog().getTableId("reference"));
+        assertFalse(plain.isMapped());
+        assertTrue(reference.isMapped());
+        assertEquals("id", Database.getCatalog().getPrimaryKey(reference.getId()));
+        assertEquals(2, reference.getTupleDesc().numFields());
+    }
+
     /**
      * JUnit suite target
      */
@@ -77,6 +77,36 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() in mapped mode: the pages are the
+     * same as those read through the file, and writes are seen.
+     */
+    @Test
+    public void readMappedPage() throws Exception {
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        HeapFile mapped = new HeapFile(big.getFile(), big.getTupleDesc(), true);
+        assertTrue(mapped.isMapped());
+        assertFalse(big.isMapped());
+        for (int i = 0; i < 3; i++) {
+            HeapPageId pid = new HeapPageId(big.getId(), i);
+            assertArrayEquals(big.readPage(pid).getPageData(), mapped.readPage(pid).getPageData());
+        }
+
+        HeapPageId pid = new HeapPageId(big.getId(), 1);
+        HeapPage page = (HeapPage) mapped.readPage(pid);
+        page.deleteTuple(page.iterator().next());
+        mapped.writePage(page);
+        assertArrayEquals(page.getPageData(), mapped.readPage(pid).getPageData());
+
+        // appended pages are picked up
+        HeapPageId next = new HeapPageId(big.getId(), 3);
+        HeapPage empty = new HeapPage(next, HeapPage.createEmptyPageData());
+        mapped.writePage(empty);
+        assertEquals(4, mapped.numPages());
+        assertEquals(HeapPage.createEmptyPageData().length, mapped.readPage(next).getPageData().length);
+        assertEquals(((HeapPage) mapped.readPage(next)).getNumEmptySlots(), empty.getNumEmptySlots());
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -121,6 +151,30 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * A scan locks the table once instead of every page it reads.
+     */
+    @Test
+    public void iteratorLocksTable() throws Exception {
+        HeapFile twoPageFile = SystemTestUtil.createRandomHeapFile(2, 520,
+                null, null);
+
+        DbFileIterator it = twoPageFile.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count += 1;
+        }
+        it.close();
+        assertEquals(520, count);
+
+        LockManager lm = Database.getBufferPool().getLockManager();
+        assertEquals(LockManager.LockMode.SHARED, lm.getTableLockMode(tid, twoPageFile.getId()));
+        assertEquals(0, lm.getPageLockCount(tid));
+        assertTrue(Database.getBufferPool().holdsLock(tid, new HeapPageId(twoPageFile.getId(), 1)));
+    }
+
     /**
      * JUnit suite target
      */
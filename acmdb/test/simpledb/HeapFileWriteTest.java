@@ -1,5 +1,7 @@
 package simpledb;
 
+import java.util.ArrayList;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -43,6 +45,142 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * The file grows by whole extents, new pages are created in the buffer
+     * pool without being read, and only pages in use count.
+     */
+    @Test public void extentPreallocation() throws Exception {
+        empty.setExtentPages(4);
+        // page 0 exists already, page 1 starts the first extent
+        for (int i = 0; i < 505; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(2, empty.numPages());
+        assertEquals(5 * BufferPool.getPageSize(), empty.getFile().length());
+        assertEquals(1, Database.getBufferPool().getMissCount());
+        assertEquals(1, Database.getBufferPool().getCreatedPageCount());
+
+        // the next extent is only added once the first one is used up
+        for (int i = 0; i < 504 * 4; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(6, empty.numPages());
+        assertEquals(9 * BufferPool.getPageSize(), empty.getFile().length());
+        assertEquals(1, Database.getBufferPool().getMissCount());
+
+        // the preallocated pages read back as empty pages
+        HeapPage unused = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), 8));
+        assertEquals(504, unused.getNumEmptySlots());
+    }
+
+    /**
+     * Inserts go straight to a page the free-space map says has room, also
+     * after the map has been reloaded from disk.
+     */
+    @Test public void insertUsesFreeSpaceMap() throws Exception {
+        for (int i = 0; i < 1009; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(3, empty.numPages());
+        FreeSpaceMap fsm = empty.getFreeSpaceMap();
+        assertEquals(0, fsm.getCategory(0));
+        assertEquals(0, fsm.getCategory(1));
+        assertTrue(fsm.getCategory(2) > 0);
+        Database.getBufferPool().transactionComplete(tid);
+
+        // a fresh HeapFile on the same file only reads the last page
+        HeapFile reopened = new HeapFile(empty.getFile(), empty.getTupleDesc());
+        Database.getCatalog().addTable(reopened, "reopened");
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+        ArrayList<Page> dirty = reopened.insertTuple(tid, Utility.getHeapTuple(0, 2));
+        assertEquals(2, dirty.get(0).getId().pageNumber());
+        assertEquals(1, bp.getMissCount());
+    }
+
+    /**
+     * A delete gives the page back to inserts.
+     */
+    @Test public void deleteUpdatesFreeSpaceMap() throws Exception {
+        Tuple first = null;
+        for (int i = 0; i < 1008; ++i) {
+            ArrayList<Page> dirty = empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+            if (first == null) {
+                first = ((HeapPage) dirty.get(0)).iterator().next();
+            }
+        }
+        assertEquals(0, empty.getFreeSpaceMap().getCategory(0));
+        empty.deleteTuple(tid, first);
+        assertEquals(1, empty.getFreeSpaceMap().getCategory(0));
+
+        ArrayList<Page> dirty = empty.insertTuple(tid, Utility.getHeapTuple(0, 2));
+        assertEquals(0, dirty.get(0).getId().pageNumber());
+        assertEquals(2, empty.numPages());
+    }
+
+    /**
+     * A page an aborted insert filled gets its room back in the map.
+     */
+    @Test public void abortRestoresFreeSpaceMap() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        for (int i = 0; i < 504; ++i) {
+            bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(0, empty.getFreeSpaceMap().getCategory(0));
+        bp.transactionComplete(tid, false);
+        assertEquals(FreeSpaceMap.CATEGORIES - 1, empty.getFreeSpaceMap().getCategory(0));
+
+        tid = new TransactionId();
+        ArrayList<Page> dirty = empty.insertTuple(tid, Utility.getHeapTuple(0, 2));
+        assertEquals(0, dirty.get(0).getId().pageNumber());
+        assertEquals(1, empty.numPages());
+    }
+
+    /**
+     * Only full pages are in category 0.
+     */
+    @Test public void freeSpaceCategories() {
+        assertEquals(0, FreeSpaceMap.category(0, 504));
+        assertEquals(1, FreeSpaceMap.category(1, 504));
+        assertEquals(FreeSpaceMap.CATEGORIES - 1, FreeSpaceMap.category(504, 504));
+    }
+
+    /**
+     * With record locking, transactions insert into and delete from the same
+     * page at once. A commit only writes its own changes, an abort only
+     * takes back its own.
+     */
+    @Test(timeout = 20000) public void recordLocking() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        bp.setRecordLocking(true);
+        TransactionId other = new TransactionId();
+        Tuple mine = Utility.getHeapTuple(1, 2);
+        Tuple theirs = Utility.getHeapTuple(2, 2);
+        bp.insertTuple(tid, empty.getId(), mine);
+        bp.insertTuple(other, empty.getId(), theirs);
+        HeapPageId pid = new HeapPageId(empty.getId(), 0);
+        assertEquals(pid, mine.getRecordId().getPageId());
+        assertEquals(pid, theirs.getRecordId().getPageId());
+        HeapPage page = (HeapPage) bp.getPageForRecords(other, pid, Permissions.READ_ONLY);
+        assertEquals(502, page.getNumEmptySlots());
+
+        bp.transactionComplete(tid, true);
+        HeapPage onDisk = (HeapPage) empty.readPage(pid);
+        assertEquals(503, onDisk.getNumEmptySlots());
+        assertTrue(onDisk.isSlotUsed(mine.getRecordId().tupleno()));
+        assertEquals(other, page.isDirty());
+
+        // the committed tuple comes back when its delete is rolled back
+        bp.deleteTuple(other, mine);
+        assertEquals(503, page.getNumEmptySlots());
+        bp.transactionComplete(other, false);
+        assertEquals(503, page.getNumEmptySlots());
+        assertTrue(page.isSlotUsed(mine.getRecordId().tupleno()));
+        assertFalse(page.isSlotUsed(theirs.getRecordId().tupleno()));
+        assertNull(page.isDirty());
+        tid = new TransactionId();
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,477 @@
+package simpledb;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LockManagerTest {
+    private static final long TIMEOUT = 5000;
+
+    private LockManager lm;
+    private PageId p0, p1;
+    private TransactionId tid1, tid2, tid3;
+
+    @Before public void setUp() {
+        lm = LockManager.GetLockManager();
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+        tid3 = new TransactionId();
+    }
+
+    /**
+     * Acquires a lock in the background.
+     */
+    private static class Acquirer extends Thread {
+        final LockManager lm;
+        final TransactionId tid;
+        final PageId pid;
+        final int tableId;
+        final Permissions perm;
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        volatile boolean acquired = false;
+
+        Acquirer(LockManager lm, TransactionId tid, PageId pid, Permissions perm) {
+            this(lm, tid, pid, -1, perm);
+        }
+
+        /**
+         * Acquires a lock on the whole table.
+         */
+        Acquirer(LockManager lm, TransactionId tid, int tableId, Permissions perm) {
+            this(lm, tid, null, tableId, perm);
+        }
+
+        private Acquirer(LockManager lm, TransactionId tid, PageId pid, int tableId, Permissions perm) {
+            this.lm = lm;
+            this.tid = tid;
+            this.pid = pid;
+            this.tableId = tableId;
+            this.perm = perm;
+            setDaemon(true);
+            start();
+        }
+
+        public void run() {
+            try {
+                if (pid == null) {
+                    lm.acquireTableLock(tid, tableId, perm);
+                } else {
+                    lm.acquireLock(tid, pid, perm);
+                }
+                acquired = true;
+            } catch (Throwable e) {
+                error.set(e);
+            }
+        }
+    }
+
+    /**
+     * Waits until the given number of requests is queued on the page.
+     */
+    private void awaitQueueLength(PageId pid, int length) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (lm.getQueueLength(pid) != length) {
+            assertTrue("queue length never got to " + length, System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * A blocked request parks its thread instead of spinning, and is granted
+     * when the conflicting lock is released.
+     */
+    @Test public void waiterIsGrantedOnRelease() throws Exception {
+        lm.acquireLock(tid1, p0, Permissions.READ_WRITE);
+        Acquirer a = new Acquirer(lm, tid2, p0, Permissions.READ_ONLY);
+        awaitQueueLength(p0, 1);
+        assertEquals(Thread.State.WAITING, a.getState());
+        assertFalse(a.acquired);
+
+        lm.releasePage(tid1, p0);
+        a.join(TIMEOUT);
+        assertTrue(a.acquired);
+        assertTrue(lm.holdsLock(tid2, p0));
+        assertEquals(0, lm.getQueueLength(p0));
+    }
+
+    /**
+     * Shared requests do not overtake a waiting exclusive one.
+     */
+    @Test public void waitersAreGrantedInOrder() throws Exception {
+        lm.acquireLock(tid1, p0, Permissions.READ_ONLY);
+        Acquirer writer = new Acquirer(lm, tid2, p0, Permissions.READ_WRITE);
+        awaitQueueLength(p0, 1);
+        Acquirer reader = new Acquirer(lm, tid3, p0, Permissions.READ_ONLY);
+        awaitQueueLength(p0, 2);
+
+        lm.releasePage(tid1, p0);
+        writer.join(TIMEOUT);
+        assertTrue(writer.acquired);
+        assertFalse(reader.acquired);
+
+        lm.releasePages(tid2);
+        reader.join(TIMEOUT);
+        assertTrue(reader.acquired);
+    }
+
+    /**
+     * An upgrade waits for the other readers only, not for the queue.
+     */
+    @Test public void upgradeGoesFirst() throws Exception {
+        lm.acquireLock(tid1, p0, Permissions.READ_ONLY);
+        lm.acquireLock(tid2, p0, Permissions.READ_ONLY);
+        Acquirer writer = new Acquirer(lm, tid3, p0, Permissions.READ_WRITE);
+        awaitQueueLength(p0, 1);
+        Acquirer upgrade = new Acquirer(lm, tid1, p0, Permissions.READ_WRITE);
+        awaitQueueLength(p0, 2);
+
+        lm.releasePage(tid2, p0);
+        upgrade.join(TIMEOUT);
+        assertTrue(upgrade.acquired);
+        assertFalse(writer.acquired);
+        assertEquals(1, lm.getExclusivelyLockedPages(tid1).size());
+    }
+
+    /**
+     * The detector breaks a deadlock by aborting its youngest transaction,
+     * whichever request closed the cycle.
+     */
+    @Test public void youngestIsVictim() throws Exception {
+        lm.acquireLock(tid1, p0, Permissions.READ_WRITE);
+        lm.acquireLock(tid2, p1, Permissions.READ_WRITE);
+        Acquirer young = new Acquirer(lm, tid2, p0, Permissions.READ_WRITE);
+        awaitQueueLength(p0, 1);
+        Acquirer old = new Acquirer(lm, tid1, p1, Permissions.READ_WRITE);
+
+        young.join(TIMEOUT);
+        assertTrue(young.error.get() instanceof TransactionAbortedException);
+        assertEquals(1, lm.getDeadlockVictimCount());
+        assertFalse(old.acquired);
+
+        lm.releasePages(tid2);
+        old.join(TIMEOUT);
+        assertTrue(old.acquired);
+        assertNull(old.error.get());
+    }
+
+    /**
+     * Under wait-die, only older transactions wait.
+     */
+    @Test public void waitDie() throws Exception {
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WAIT_DIE);
+        lm.acquireLock(tid1, p0, Permissions.READ_WRITE);
+        lm.acquireLock(tid2, p1, Permissions.READ_WRITE);
+        try {
+            lm.acquireLock(tid2, p0, Permissions.READ_ONLY);
+            fail("a younger transaction must not wait for an older one");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        Acquirer old = new Acquirer(lm, tid1, p1, Permissions.READ_ONLY);
+        awaitQueueLength(p1, 1);
+        lm.releasePages(tid2);
+        old.join(TIMEOUT);
+        assertTrue(old.acquired);
+        assertEquals(1, lm.getDeadlockVictimCount());
+    }
+
+    /**
+     * Under wound-wait, an older transaction aborts the younger one it would
+     * have to wait for.
+     */
+    @Test public void woundWait() throws Exception {
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WOUND_WAIT);
+        lm.acquireLock(tid1, p1, Permissions.READ_WRITE);
+        lm.acquireLock(tid2, p0, Permissions.READ_WRITE);
+        Acquirer young = new Acquirer(lm, tid2, p1, Permissions.READ_WRITE);
+        awaitQueueLength(p1, 1);
+        Acquirer old = new Acquirer(lm, tid1, p0, Permissions.READ_WRITE);
+
+        young.join(TIMEOUT);
+        assertTrue(young.error.get() instanceof TransactionAbortedException);
+        lm.releasePages(tid2);
+        old.join(TIMEOUT);
+        assertTrue(old.acquired);
+        assertEquals(1, lm.getDeadlockVictimCount());
+    }
+
+    /**
+     * A lock wait is given up after the lock timeout, and a transaction
+     * past its deadline gets no more locks.
+     */
+    @Test public void timeouts() throws Exception {
+        lm.acquireLock(tid1, p0, Permissions.READ_WRITE);
+        lm.setLockTimeout(tid2, 100);
+        long start = System.currentTimeMillis();
+        try {
+            lm.acquireLock(tid2, p0, Permissions.READ_ONLY);
+            fail("the lock wait should have timed out");
+        } catch (TransactionAbortedException e) {
+            assertEquals(TransactionAbortedException.Reason.LOCK_TIMEOUT, e.getReason());
+        }
+        assertTrue(System.currentTimeMillis() - start >= 100);
+        assertEquals(0, lm.getQueueLength(p0));
+
+        // the deadline cuts the wait short
+        lm.setDefaultLockTimeout(TIMEOUT);
+        lm.setDeadline(tid3, System.nanoTime() + 100 * 1000000L);
+        try {
+            lm.acquireLock(tid3, p0, Permissions.READ_ONLY);
+            fail("the deadline should have passed");
+        } catch (TransactionAbortedException e) {
+            assertEquals(TransactionAbortedException.Reason.DEADLINE, e.getReason());
+        }
+        try {
+            lm.acquireLock(tid3, p1, Permissions.READ_ONLY);
+            fail("the deadline has passed");
+        } catch (TransactionAbortedException e) {
+            assertEquals(TransactionAbortedException.Reason.DEADLINE, e.getReason());
+        }
+        assertEquals(3, lm.getTimeoutCount());
+        assertEquals(0, lm.getDeadlockVictimCount());
+
+        lm.releasePages(tid3);
+        lm.releasePages(tid1);
+        lm.acquireLock(tid3, p1, Permissions.READ_ONLY);
+    }
+
+    /**
+     * Page locks come with an intention lock on the table, which keeps out
+     * transactions that want the whole table.
+     */
+    @Test public void locksOfTwoLockManagers() throws Exception {
+        LockManager other = LockManager.GetLockManager();
+        lm.acquireLock(tid1, p0, Permissions.READ_WRITE);
+        other.acquireLock(tid1, p1, Permissions.READ_ONLY);
+        assertTrue(lm.holdsLock(tid1, p0));
+        assertFalse(lm.holdsLock(tid1, p1));
+        assertTrue(other.holdsLock(tid1, p1));
+        assertFalse(other.holdsLock(tid1, p0));
+
+        // locks taken after releasing all are not forgotten
+        lm.releasePages(tid1);
+        assertFalse(lm.holdsLock(tid1, p0));
+        assertTrue(other.holdsLock(tid1, p1));
+        lm.acquireLock(tid1, p1, Permissions.READ_WRITE);
+        assertEquals(1, lm.getPageLockCount(tid1));
+        lm.releasePages(tid1);
+        assertEquals(0, lm.getPageLockCount(tid1));
+        lm.acquireLock(tid2, p1, Permissions.READ_WRITE);
+        other.releasePages(tid1);
+        assertFalse(other.holdsLock(tid1, p1));
+    }
+
+    @Test public void intentionLocks() throws Exception {
+        lm.acquireLock(tid1, p0, Permissions.READ_ONLY);
+        assertEquals(LockManager.LockMode.INTENTION_SHARED, lm.getTableLockMode(tid1, 1));
+        lm.acquireTableLock(tid2, 1, Permissions.READ_ONLY);
+
+        Acquirer writer = new Acquirer(lm, tid3, 1, Permissions.READ_WRITE);
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (lm.getTableQueueLength(1) != 1) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        lm.releasePages(tid1);
+        lm.releasePages(tid2);
+        writer.join(TIMEOUT);
+        assertTrue(writer.acquired);
+        assertEquals(LockManager.LockMode.EXCLUSIVE, lm.getTableLockMode(tid3, 1));
+    }
+
+    /**
+     * A table lock covers the pages of the table, and a shared one becomes
+     * SIX when the transaction writes a page.
+     */
+    @Test public void tableLockCoversPages() throws Exception {
+        lm.acquireTableLock(tid1, 1, Permissions.READ_ONLY);
+        lm.acquireLock(tid1, p0, Permissions.READ_ONLY);
+        assertTrue(lm.holdsLock(tid1, p1));
+        assertEquals(0, lm.getPageLockCount(tid1));
+
+        Acquirer writer = new Acquirer(lm, tid2, p1, Permissions.READ_WRITE);
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (lm.getTableQueueLength(1) != 1) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+
+        lm.acquireLock(tid1, p0, Permissions.READ_WRITE);
+        assertEquals(LockManager.LockMode.SHARED_INTENTION_EXCLUSIVE, lm.getTableLockMode(tid1, 1));
+        assertEquals(1, lm.getPageLockCount(tid1));
+        assertFalse(writer.acquired);
+
+        lm.releasePages(tid1);
+        writer.join(TIMEOUT);
+        assertTrue(writer.acquired);
+    }
+
+    /**
+     * Page locks beyond the threshold turn into one table lock, as soon as
+     * nobody else is in the way.
+     */
+    @Test public void lockEscalation() throws Exception {
+        lm.setEscalationThreshold(3);
+        lm.acquireLock(tid2, new HeapPageId(1, 9), Permissions.READ_ONLY);
+        for (int i = 0; i < 4; i++) {
+            lm.acquireLock(tid1, new HeapPageId(1, i), i == 0 ? Permissions.READ_WRITE : Permissions.READ_ONLY);
+        }
+        // tid2's IS lock keeps X off the table
+        assertEquals(4, lm.getPageLockCount(tid1));
+        assertEquals(0, lm.getEscalationCount());
+
+        lm.releasePages(tid2);
+        lm.acquireLock(tid1, new HeapPageId(1, 4), Permissions.READ_ONLY);
+        assertEquals(1, lm.getEscalationCount());
+        assertEquals(0, lm.getPageLockCount(tid1));
+        assertEquals(LockManager.LockMode.EXCLUSIVE, lm.getTableLockMode(tid1, 1));
+        assertTrue(lm.holdsLock(tid1, new HeapPageId(1, 7)));
+
+        // reads only escalate to a shared table lock
+        for (int i = 0; i < 4; i++) {
+            lm.acquireLock(tid3, new HeapPageId(2, i), Permissions.READ_ONLY);
+        }
+        assertEquals(LockManager.LockMode.SHARED, lm.getTableLockMode(tid3, 2));
+        assertEquals(2, lm.getEscalationCount());
+    }
+
+    /**
+     * An update lock lets readers in but not a second updater, so it can be
+     * upgraded once the readers are gone, without a deadlock.
+     */
+    @Test public void updateLocks() throws Exception {
+        lm.acquireLock(tid1, p0, Permissions.READ_FOR_UPDATE);
+        lm.acquireLock(tid2, p0, Permissions.READ_ONLY);
+        Acquirer updater = new Acquirer(lm, tid3, p0, Permissions.READ_FOR_UPDATE);
+        awaitQueueLength(p0, 1);
+        Acquirer upgrade = new Acquirer(lm, tid1, p0, Permissions.READ_WRITE);
+        awaitQueueLength(p0, 2);
+        assertTrue(lm.holdsLock(tid1, p0));
+
+        lm.releasePages(tid2);
+        upgrade.join(TIMEOUT);
+        assertTrue(upgrade.acquired);
+        assertFalse(updater.acquired);
+
+        lm.releasePages(tid1);
+        updater.join(TIMEOUT);
+        assertTrue(updater.acquired);
+        assertEquals(0, lm.getDeadlockVictimCount());
+    }
+
+    /**
+     * Records of one page are locked independently, under intention locks
+     * on the page that keep out page locks.
+     */
+    @Test public void recordLocks() throws Exception {
+        RecordId r0 = new RecordId(p0, 0);
+        RecordId r1 = new RecordId(p0, 1);
+        lm.acquireRecordLock(tid1, r0, Permissions.READ_WRITE);
+        lm.acquireRecordLock(tid2, r1, Permissions.READ_WRITE);
+        assertTrue(lm.holdsRecordLock(tid1, r0));
+        assertFalse(lm.holdsRecordLock(tid1, r1));
+        assertEquals(LockManager.LockMode.INTENTION_EXCLUSIVE, lm.getTableLockMode(tid1, 1));
+        assertFalse(lm.tryRecordLock(tid2, r0));
+
+        Acquirer reader = new Acquirer(lm, tid3, p0, Permissions.READ_ONLY);
+        awaitQueueLength(p0, 1);
+        lm.releasePages(tid1);
+        assertTrue(lm.tryRecordLock(tid2, r0));
+        assertFalse(reader.acquired);
+
+        lm.releasePages(tid2);
+        reader.join(TIMEOUT);
+        assertTrue(reader.acquired);
+    }
+
+    /**
+     * Requests that wait are counted by mode and by page.
+     */
+    @Test public void metrics() throws Exception {
+        lm.acquireLock(tid1, p0, Permissions.READ_WRITE);
+        lm.acquireLock(tid1, p1, Permissions.READ_ONLY);
+        Acquirer reader = new Acquirer(lm, tid2, p0, Permissions.READ_ONLY);
+        awaitQueueLength(p0, 1);
+        Acquirer writer = new Acquirer(lm, tid3, p0, Permissions.READ_WRITE);
+        awaitQueueLength(p0, 2);
+        Acquirer other = new Acquirer(lm, tid2, p1, Permissions.READ_WRITE);
+        awaitQueueLength(p1, 1);
+        assertEquals(3, lm.getWaitingRequestCount());
+        assertEquals(2, lm.getMaxQueueLength());
+
+        lm.releasePages(tid1);
+        reader.join(TIMEOUT);
+        other.join(TIMEOUT);
+        lm.releasePages(tid2);
+        writer.join(TIMEOUT);
+        assertEquals(0, lm.getWaitingRequestCount());
+
+        LockMetrics metrics = lm.getMetrics();
+        assertEquals(1, metrics.getWaitCount(LockManager.LockMode.SHARED));
+        assertEquals(2, metrics.getWaitCount(LockManager.LockMode.EXCLUSIVE));
+        assertEquals(0, metrics.getWaitCount(LockManager.LockMode.INTENTION_SHARED));
+        assertTrue(metrics.getTotalWaitNanos(LockManager.LockMode.SHARED) > 0);
+        List<Map.Entry<PageId, Long>> hot = metrics.getMostContendedPages(1);
+        assertEquals(1, hot.size());
+        assertEquals(p0, hot.get(0).getKey());
+        assertEquals(2L, (long) hot.get(0).getValue());
+
+        assertEquals(0, LockMetrics.bucket(999));
+        assertEquals(1, LockMetrics.bucket(1000));
+        assertEquals(2, LockMetrics.bucket(3999));
+        assertEquals(LockMetrics.BUCKETS - 1, LockMetrics.bucket(Long.MAX_VALUE));
+    }
+
+    /**
+     * The metrics of the current lock manager can be read over JMX.
+     */
+    @Test public void metricsOverJmx() throws Exception {
+        LockMetrics.registerMBean();
+        LockMetrics.registerMBean();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(LockMetrics.MBEAN_NAME);
+        assertEquals(Database.getBufferPool().getLockManager().getDeadlockVictimCount(),
+                server.getAttribute(name, "DeadlockVictimCount"));
+        assertEquals(0, server.getAttribute(name, "WaitingRequestCount"));
+        assertNotNull(server.getAttribute(name, "WaitHistograms"));
+        assertNotNull(server.getAttribute(name, "MostContendedPages"));
+    }
+
+    /**
+     * The lock modes combine into the weakest mode that covers both.
+     */
+    @Test public void combineModes() {
+        LockManager.LockMode s = LockManager.LockMode.SHARED;
+        LockManager.LockMode ix = LockManager.LockMode.INTENTION_EXCLUSIVE;
+        LockManager.LockMode is = LockManager.LockMode.INTENTION_SHARED;
+        assertEquals(LockManager.LockMode.SHARED_INTENTION_EXCLUSIVE, s.combine(ix));
+        assertEquals(s, is.combine(s));
+        assertEquals(LockManager.LockMode.EXCLUSIVE, ix.combine(LockManager.LockMode.EXCLUSIVE));
+        assertTrue(is.compatibleWith(LockManager.LockMode.SHARED_INTENTION_EXCLUSIVE));
+        assertFalse(ix.compatibleWith(s));
+
+        LockManager.LockMode u = LockManager.LockMode.UPDATE;
+        assertEquals(u, s.combine(u));
+        assertEquals(LockManager.LockMode.SHARED_INTENTION_EXCLUSIVE, u.combine(ix));
+        assertTrue(u.compatibleWith(s));
+        assertFalse(u.compatibleWith(u));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
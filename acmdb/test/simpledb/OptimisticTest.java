@@ -0,0 +1,172 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+public class OptimisticTest extends TestUtil.CreateFilledHeapFile {
+    private PageId p0, p1;
+    private int full;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        p0 = new HeapPageId(empty.getId(), 0);
+        p1 = new HeapPageId(empty.getId(), 1);
+
+        TransactionId reader = new TransactionId();
+        full = count(reader, p0);
+        bp.transactionComplete(reader);
+    }
+
+    private int count(TransactionId tid, PageId pid) throws Exception {
+        int n = 0;
+        Iterator<Tuple> it = ((HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY)).iterator();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        return n;
+    }
+
+    private void deleteFirst(TransactionId tid, PageId pid) throws Exception {
+        bp.deleteTuple(tid, ((HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY)).iterator().next());
+    }
+
+    private Transaction optimistic() {
+        Transaction t = new Transaction();
+        t.setOptimistic(true);
+        t.start();
+        return t;
+    }
+
+    /**
+     * An optimistic transaction takes no locks, and others do not see its
+     * changes before it commits.
+     */
+    @Test(timeout = 20000) public void noLocksAndPrivateChanges() throws Exception {
+        TransactionId writer = new TransactionId();
+        bp.getPage(writer, p0, Permissions.READ_WRITE);
+
+        TransactionId tid = new TransactionId();
+        bp.beginOptimistic(tid);
+        assertEquals(full, count(tid, p0));
+        deleteFirst(tid, p1);
+        assertEquals(full - 1, count(tid, p1));
+        assertEquals(0, bp.getLockManager().getPageLockCount(tid));
+        assertFalse(bp.holdsLock(tid, p1));
+
+        TransactionId other = new TransactionId();
+        assertEquals(full, count(other, p1));
+        bp.transactionComplete(other);
+
+        bp.transactionComplete(tid, true);
+        bp.transactionComplete(writer, true);
+        TransactionId after = new TransactionId();
+        assertEquals(full - 1, count(after, p1));
+        bp.transactionComplete(after);
+    }
+
+    /**
+     * A transaction fails validation if another one committed a change to
+     * a page it read since it started.
+     */
+    @Test public void readWriteConflict() throws Exception {
+        Transaction t1 = optimistic();
+        assertEquals(full, count(t1.getId(), p0));
+
+        Transaction t2 = optimistic();
+        deleteFirst(t2.getId(), p0);
+        t2.commit();
+
+        deleteFirst(t1.getId(), p1);
+        try {
+            t1.commit();
+            fail("t1 read a page t2 changed");
+        } catch (TransactionAbortedException e) {
+            assertEquals(TransactionAbortedException.Reason.VALIDATION, e.getReason());
+        }
+        assertEquals(2, bp.getOptimisticConcurrency().getValidationCount());
+        assertEquals(1, bp.getOptimisticConcurrency().getValidationFailureCount());
+
+        TransactionId after = new TransactionId();
+        assertEquals(full - 1, count(after, p0));
+        assertEquals(full, count(after, p1));
+        bp.transactionComplete(after);
+    }
+
+    /**
+     * Commits of transactions that lock pages count as well.
+     */
+    @Test public void lockingCommitInvalidates() throws Exception {
+        Transaction t = optimistic();
+        assertEquals(full, count(t.getId(), p0));
+
+        TransactionId writer = new TransactionId();
+        deleteFirst(writer, p0);
+        bp.transactionComplete(writer, true);
+
+        deleteFirst(t.getId(), p1);
+        try {
+            bp.transactionComplete(t.getId(), true);
+            fail("t read a page the writer changed");
+        } catch (IOException e) {
+            assertEquals(TransactionAbortedException.class, e.getCause().getClass());
+        }
+    }
+
+    /**
+     * Transactions that start while a validated one completes may read the
+     * state of its pages before it, and are validated against it.
+     */
+    @Test public void startDuringCompletion() throws Exception {
+        TransactionId t1 = new TransactionId();
+        bp.beginOptimistic(t1);
+        deleteFirst(t1, p0);
+        bp.validate(t1);
+
+        TransactionId t2 = new TransactionId();
+        bp.beginOptimistic(t2);
+        assertEquals(full, count(t2, p0));
+        deleteFirst(t2, p1);
+        bp.transactionComplete(t1, true);
+        try {
+            bp.validate(t2);
+            fail("t2 read the page t1 changed before t1 completed");
+        } catch (TransactionAbortedException e) {
+        }
+        bp.transactionComplete(t2, false);
+    }
+
+    /**
+     * Pages others hold locks on are not replaced.
+     */
+    @Test public void lockedPagesAbortValidation() throws Exception {
+        TransactionId reader = new TransactionId();
+        assertEquals(full, count(reader, p0));
+
+        TransactionId tid = new TransactionId();
+        bp.beginOptimistic(tid);
+        deleteFirst(tid, p0);
+        try {
+            bp.validate(tid);
+            fail("the reader holds a lock on the page");
+        } catch (TransactionAbortedException e) {
+        }
+        bp.transactionComplete(tid, false);
+        assertEquals(full, count(reader, p0));
+        bp.transactionComplete(reader);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OptimisticTest.class);
+    }
+}
@@ -0,0 +1,184 @@
+package simpledb;
+
+import java.io.File;
+import java.nio.file.AccessDeniedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class PageStoreTest {
+    private static final int SIZE = 4096;
+
+    private File file;
+    private PageStore store;
+
+    @Before public void setUp() throws Exception {
+        file = File.createTempFile("pagestore", ".dat");
+        file.deleteOnExit();
+        store = new PageStore(file);
+    }
+
+    @After public void tearDown() throws Exception {
+        store.close();
+        file.delete();
+    }
+
+    private static byte[] page(int fill) {
+        byte[] data = new byte[SIZE];
+        Arrays.fill(data, (byte) fill);
+        return data;
+    }
+
+    /**
+     * Positional writes land where they are asked to, in any order, and
+     * reads see them.
+     */
+    @Test public void readWrite() throws Exception {
+        store.write(2 * SIZE, page(3));
+        store.write(0, page(1));
+        store.append(page(4));
+        assertEquals(4 * SIZE, store.size());
+        assertEquals(4 * SIZE, file.length());
+
+        byte[] buf = new byte[SIZE];
+        for (int i : new int[]{3, 0, 2}) {
+            assertEquals(SIZE, store.read((long) i * SIZE, buf));
+            assertArrayEquals(page(i == 0 ? 1 : i + 1), buf);
+        }
+        // the gap reads back as zeros
+        assertEquals(SIZE, store.read(SIZE, buf));
+        assertArrayEquals(page(0), buf);
+    }
+
+    /**
+     * Reads at the end of the file report it, reads across it are short.
+     */
+    @Test public void readPastEnd() throws Exception {
+        store.write(0, page(7));
+        byte[] buf = new byte[SIZE];
+        assertEquals(-1, store.read(SIZE, buf));
+        assertEquals(SIZE / 2, store.read(SIZE / 2, buf));
+    }
+
+    /**
+     * A missing file reads like an empty one and is only created by a write.
+     */
+    @Test public void missingFile() throws Exception {
+        assertTrue(file.delete());
+        byte[] buf = new byte[SIZE];
+        assertEquals(-1, store.read(0, buf));
+        assertEquals(0, store.size());
+        assertFalse(file.exists());
+
+        store.write(0, page(2));
+        assertTrue(file.exists());
+        assertEquals(SIZE, store.read(0, buf));
+        assertArrayEquals(page(2), buf);
+    }
+
+    /**
+     * A file that can only be read is still readable, and writes to it fail
+     * with an IOException, also once the channel is open.
+     */
+    @Test public void readOnlyFile() throws Exception {
+        store.write(0, page(8));
+        store.close();
+        assertTrue(file.setWritable(false));
+        // root may write anyway
+        Assume.assumeTrue(!file.canWrite());
+
+        byte[] buf = new byte[SIZE];
+        for (int i = 0; i < 2; i++) {
+            try {
+                store.write(SIZE, page(9));
+                fail("wrote to a read-only file");
+            } catch (AccessDeniedException e) {
+                // expected
+            }
+            try {
+                store.append(page(9));
+                fail("appended to a read-only file");
+            } catch (AccessDeniedException e) {
+                // expected
+            }
+            assertEquals(SIZE, store.read(0, buf));
+            assertArrayEquals(page(8), buf);
+            assertEquals(SIZE, store.size());
+        }
+    }
+
+    /**
+     * An interrupted caller neither fails nor closes the channel for the
+     * others, and keeps its interrupt status.
+     */
+    @Test public void interruptedCaller() throws Exception {
+        store.write(0, page(5));
+        byte[] buf = new byte[SIZE];
+        Thread.currentThread().interrupt();
+        try {
+            assertEquals(SIZE, store.read(0, buf));
+            store.write(SIZE, page(6));
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+        assertEquals(SIZE, store.read(SIZE, buf));
+        assertArrayEquals(page(6), buf);
+    }
+
+    /**
+     * Many threads can read and write distinct pages through one store.
+     */
+    @Test public void concurrentAccess() throws Exception {
+        final int pages = 64;
+        for (int i = 0; i < pages; i++) {
+            store.write((long) i * SIZE, page(i));
+        }
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final int me = t;
+            Thread th = new Thread() {
+                public void run() {
+                    Random rand = new Random(me);
+                    byte[] buf = new byte[SIZE];
+                    try {
+                        for (int i = 0; i < 2000; i++) {
+                            int p = rand.nextInt(pages);
+                            if (p % 4 == me) {
+                                store.write((long) p * SIZE, page(p));
+                            } else {
+                                assertEquals(SIZE, store.read((long) p * SIZE, buf));
+                                assertArrayEquals(page(p), buf);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }
+            };
+            threads.add(th);
+            th.start();
+        }
+        for (Thread th : threads) {
+            th.join();
+        }
+        assertNull(error.get());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageStoreTest.class);
+    }
+}
@@ -0,0 +1,136 @@
+package simpledb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+    private static final int PAGES = 20;
+
+    private HeapFile hf;
+    private TransactionId tid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * PAGES, null, null);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static void waitForCachedPages(BufferPool bp, int n) throws InterruptedException {
+        for (int i = 0; i < 500 && bp.getNumCachedPages() < n; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * The depth covers the read latency with pages the scan consumes, within
+     * the bounds.
+     */
+    @Test public void depthFollowsScanRate() {
+        assertEquals(1, ReadAhead.depthFor(-1, -1, 16));
+        assertEquals(1, ReadAhead.depthFor(100000, -1, 16));
+        assertEquals(0, ReadAhead.depthFor(100000, 1000, 0));
+        // slow consumer: one page ahead is plenty
+        assertEquals(1, ReadAhead.depthFor(100000, 1000000, 16));
+        assertEquals(4, ReadAhead.depthFor(100000, 25000, 16));
+        assertEquals(5, ReadAhead.depthFor(100000, 24000, 16));
+        // fast consumer: capped
+        assertEquals(16, ReadAhead.depthFor(100000, 10, 16));
+        assertEquals(16, ReadAhead.depthFor(100000, 0, 16));
+    }
+
+    /**
+     * Small pools do not read ahead at all.
+     */
+    @Test public void disabledForSmallPools() {
+        assertFalse(new ReadAhead(new BufferPool(3)).isEnabled());
+        ReadAhead ra = new ReadAhead(new BufferPool(4));
+        assertTrue(ra.isEnabled());
+        ra.pageConsumed(0);
+        ra.pageConsumed(1);
+        assertEquals(1, ra.depth());
+    }
+
+    /**
+     * A prefetched page is cached without a lock, and a later getPage is a
+     * hit.
+     */
+    @Test public void prefetchPage() throws Exception {
+        BufferPool bp = Database.resetBufferPool(PAGES);
+        HeapPageId pid = new HeapPageId(hf.getId(), 5);
+        bp.prefetchPage(pid);
+        waitForCachedPages(bp, 1);
+        assertEquals(1, bp.getNumCachedPages());
+        assertEquals(1, bp.getPrefetchCount());
+        assertEquals(0, bp.getMissCount());
+        assertFalse(bp.holdsLock(tid, pid));
+
+        // prefetching a cached page does nothing
+        bp.prefetchPage(pid);
+        bp.getPage(tid, pid, Permissions.READ_ONLY);
+        assertEquals(1, bp.getHitCount());
+        assertEquals(1, bp.getPrefetchCount());
+    }
+
+    /**
+     * Leaves are followed through their right sibling pointers.
+     */
+    @Test public void prefetchChain() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 20000, null, null, 0);
+        BufferPool bp = Database.resetBufferPool(500);
+        BTreeLeafPage first = bf.findLeafPage(tid, Permissions.READ_ONLY, null);
+        int cached = bp.getNumCachedPages();
+
+        bp.prefetchChain(first.getRightSiblingId(), 3, p ->
+                ((BTreeLeafPage) p).getRightSiblingId());
+        waitForCachedPages(bp, cached + 3);
+        assertEquals(3, bp.getPrefetchCount());
+
+        long misses = bp.getMissCount();
+        BTreePageId next = first.getRightSiblingId();
+        for (int i = 0; i < 3; i++) {
+            BTreeLeafPage leaf = (BTreeLeafPage) bp.getPage(tid, next, Permissions.READ_ONLY);
+            next = leaf.getRightSiblingId();
+        }
+        assertEquals(misses, bp.getMissCount());
+    }
+
+    /**
+     * A scan reads every page exactly once, either itself or through the
+     * prefetcher.
+     */
+    @Test public void heapScanReadsAhead() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2 * PAGES);
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        assertEquals(504 * PAGES, n);
+        waitForCachedPages(bp, PAGES);
+        assertEquals(PAGES, bp.getNumCachedPages());
+        assertEquals(PAGES, bp.getMissCount() + bp.getPrefetchCount());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
@@ -0,0 +1,133 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+public class ReadCommittedTest extends TestUtil.CreateFilledHeapFile {
+    private PageId p0;
+    private LockManager lm;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        p0 = new HeapPageId(empty.getId(), 0);
+        lm = bp.getLockManager();
+    }
+
+    private static TransactionId readCommitted() {
+        TransactionId tid = new TransactionId();
+        tid.setIsolationLevel(IsolationLevel.READ_COMMITTED);
+        return tid;
+    }
+
+    private static int scanAll(DbFileIterator it) throws Exception {
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * A scan at READ COMMITTED holds a lock on the page it reads only, and
+     * writers can change the pages it has moved past.
+     */
+    @Test public void scanLetsGoOfPages() throws Exception {
+        TransactionId tid = readCommitted();
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        Tuple t = it.next();
+        assertEquals(p0, t.getRecordId().getPageId());
+        assertTrue(bp.holdsLock(tid, p0));
+        // only an intention lock on the table, which writers can share
+        assertEquals(LockManager.LockMode.INTENTION_SHARED, lm.getTableLockMode(tid, empty.getId()));
+        while (t.getRecordId().getPageId().equals(p0)) {
+            t = it.next();
+        }
+        assertFalse(bp.holdsLock(tid, p0));
+        assertEquals(1, lm.getPageLockCount(tid));
+
+        TransactionId writer = new TransactionId();
+        assertTrue(lm.tryAcquireLock(writer, p0, Permissions.READ_WRITE));
+        assertFalse(lm.tryAcquireLock(writer, t.getRecordId().getPageId(), Permissions.READ_WRITE));
+        bp.transactionComplete(writer, true);
+
+        while (it.hasNext()) {
+            it.next();
+        }
+        assertEquals(0, lm.getPageLockCount(tid));
+        it.close();
+        bp.transactionComplete(tid, true);
+    }
+
+    /**
+     * By default, a scan holds the whole table until its transaction
+     * completes.
+     */
+    @Test public void serializableKeepsLocks() throws Exception {
+        TransactionId tid = new TransactionId();
+        assertEquals(IsolationLevel.SERIALIZABLE, tid.getIsolationLevel());
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        assertEquals(TUPLES, scanAll(it));
+        it.close();
+        assertEquals(LockManager.LockMode.SHARED, lm.getTableLockMode(tid, empty.getId()));
+        bp.transactionComplete(tid, true);
+    }
+
+    /**
+     * Pages a transaction changed stay locked when its scans move on.
+     */
+    @Test public void changedPagesStayLocked() throws Exception {
+        TransactionId tid = readCommitted();
+        HeapPage page = (HeapPage) bp.getPage(tid, p0, Permissions.READ_WRITE);
+        bp.deleteTuple(tid, page.iterator().next());
+
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        assertEquals(TUPLES - 1, scanAll(it));
+        it.close();
+        assertEquals(1, lm.getPageLockCount(tid));
+        assertTrue(lm.getExclusivelyLockedPages(tid).contains(p0));
+        bp.transactionComplete(tid, false);
+    }
+
+    /**
+     * B+ tree scans hold a lock on the current leaf only, and none on the
+     * pages above it.
+     */
+    @Test public void treeScansLetGoOfPages() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 5000, null, null, 0);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        lm = bp.getLockManager();
+
+        TransactionId tid = readCommitted();
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        it.next();
+        assertEquals(1, lm.getPageLockCount(tid));
+        assertEquals(4999, scanAll(it));
+        assertEquals(0, lm.getPageLockCount(tid));
+        it.close();
+
+        it = bf.indexIterator(tid, new IndexPredicate(Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0)));
+        it.open();
+        it.next();
+        assertEquals(1, lm.getPageLockCount(tid));
+        scanAll(it);
+        assertEquals(0, lm.getPageLockCount(tid));
+        it.close();
+        bp.transactionComplete(tid, true);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadCommittedTest.class);
+    }
+}
@@ -0,0 +1,197 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ReplacementPolicyTest {
+
+    private static final int TABLE_ID = 1;
+    public static final int CAPACITY = 100;
+    private static final int HOT_PAGES = 1000;
+    private static final int TRACE_LENGTH = 200000;
+
+    private static PageId page(int n) {
+        return new HeapPageId(TABLE_ID, n);
+    }
+
+    /**
+     * Draws page numbers in [0, n) following a Zipfian distribution with
+     * exponent theta, so that page 0 is the hottest one.
+     */
+    private static class ZipfGenerator {
+        private final double[] cdf;
+        private final Random rand;
+
+        ZipfGenerator(int n, double theta, long seed) {
+            cdf = new double[n];
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += 1.0 / Math.pow(i + 1, theta);
+                cdf[i] = sum;
+            }
+            for (int i = 0; i < n; i++) {
+                cdf[i] /= sum;
+            }
+            rand = new Random(seed);
+        }
+
+        int next() {
+            int idx = Arrays.binarySearch(cdf, rand.nextDouble());
+            return idx >= 0 ? idx : Math.min(-idx - 1, cdf.length - 1);
+        }
+    }
+
+    /**
+     * @return a trace of Zipfian point accesses with exponent theta
+     */
+    public static ArrayList<PageId> zipfTrace(double theta) {
+        ZipfGenerator gen = new ZipfGenerator(HOT_PAGES, theta, 42);
+        ArrayList<PageId> trace = new ArrayList<PageId>(TRACE_LENGTH);
+        for (int i = 0; i < TRACE_LENGTH; i++) {
+            trace.add(page(gen.next()));
+        }
+        return trace;
+    }
+
+    /**
+     * Zipfian point accesses interleaved with full sequential scans over a
+     * cold range of pages that is several times larger than the cache.
+     */
+    public static ArrayList<PageId> zipfWithScansTrace(double theta) {
+        ZipfGenerator gen = new ZipfGenerator(HOT_PAGES, theta, 7);
+        ArrayList<PageId> trace = new ArrayList<PageId>(TRACE_LENGTH);
+        int scanPages = 4 * CAPACITY;
+        int nextCold = HOT_PAGES;
+        while (trace.size() < TRACE_LENGTH) {
+            for (int i = 0; i < 20000 && trace.size() < TRACE_LENGTH; i++) {
+                trace.add(page(gen.next()));
+            }
+            for (int i = 0; i < scanPages && trace.size() < TRACE_LENGTH; i++) {
+                trace.add(page(nextCold++));
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * Replays a trace against a policy the same way BufferPool drives it and
+     * returns the hit ratio. The cache holds {@link #CAPACITY} pages.
+     */
+    public static double hitRatio(ReplacementPolicy.Type type, ArrayList<PageId> trace) {
+        ReplacementPolicy policy = type.create(CAPACITY);
+        HashSet<PageId> resident = new HashSet<PageId>();
+        long hits = 0;
+        for (PageId pid : trace) {
+            if (resident.contains(pid)) {
+                hits++;
+                policy.pageAccessed(pid);
+                continue;
+            }
+            if (resident.size() >= CAPACITY) {
+                PageId victim = policy.chooseVictim(p -> true);
+                assertNotNull(victim);
+                assertTrue(resident.remove(victim));
+                policy.pageRemoved(victim);
+            }
+            resident.add(pid);
+            policy.pageAdded(pid);
+            assertEquals(resident.size(), policy.size());
+        }
+        return (double) hits / trace.size();
+    }
+
+    /**
+     * Every policy reaches the given hit ratio, and the ones that track
+     * re-references do at least as well as CLOCK.
+     */
+    private static void compare(ArrayList<PageId> trace, double minRatio) {
+        double clock = hitRatio(ReplacementPolicy.Type.CLOCK, trace);
+        double lruk = hitRatio(ReplacementPolicy.Type.LRU_K, trace);
+        double twoq = hitRatio(ReplacementPolicy.Type.TWO_Q, trace);
+        assertTrue(clock > minRatio);
+        assertTrue(lruk >= clock);
+        assertTrue(twoq >= clock);
+    }
+
+    /**
+     * Hit ratio comparison on a plain Zipfian trace.
+     */
+    @Test public void zipfianHitRatio() {
+        compare(zipfTrace(0.99), 0.4);
+    }
+
+    /**
+     * Hit ratio comparison on a Zipfian trace polluted by large scans; the
+     * scan-resistant policies have to keep their edge over CLOCK.
+     */
+    @Test public void zipfianWithScansHitRatio() {
+        ArrayList<PageId> trace = zipfWithScansTrace(0.99);
+        compare(trace, 0.3);
+        double clock = hitRatio(ReplacementPolicy.Type.CLOCK, trace);
+        assertTrue(hitRatio(ReplacementPolicy.Type.LRU_K, trace) > clock);
+        assertTrue(hitRatio(ReplacementPolicy.Type.TWO_Q, trace) > clock);
+    }
+
+    /**
+     * Victims must pass the evictable filter, and no victim is returned when
+     * nothing does.
+     */
+    @Test public void respectsEvictableFilter() {
+        for (ReplacementPolicy.Type type : ReplacementPolicy.Type.values()) {
+            ReplacementPolicy policy = type.create(4);
+            for (int i = 0; i < 4; i++) {
+                policy.pageAdded(page(i));
+            }
+            assertEquals(page(3), policy.chooseVictim(p -> p.pageNumber() == 3));
+            assertNull(policy.chooseVictim(p -> false));
+            policy.pageRemoved(page(3));
+            assertEquals(3, policy.size());
+            assertNull(policy.chooseVictim(p -> p.pageNumber() == 3));
+        }
+    }
+
+    /**
+     * A page referenced repeatedly must outlive pages that were touched once.
+     */
+    @Test public void keepsRepeatedlyUsedPage() {
+        for (ReplacementPolicy.Type type : new ReplacementPolicy.Type[]{
+                ReplacementPolicy.Type.LRU_K, ReplacementPolicy.Type.TWO_Q}) {
+            ReplacementPolicy policy = type.create(4);
+            HashSet<PageId> resident = new HashSet<PageId>();
+            PageId hot = page(0);
+            policy.pageAdded(hot);
+            resident.add(hot);
+            // make the hot page known to the policy as re-referenced
+            policy.pageRemoved(hot);
+            resident.remove(hot);
+            policy.pageAdded(hot);
+            resident.add(hot);
+            policy.pageAccessed(hot);
+            for (int i = 1; i < 50; i++) {
+                if (resident.size() >= 4) {
+                    PageId victim = policy.chooseVictim(p -> true);
+                    assertFalse(hot.equals(victim));
+                    policy.pageRemoved(victim);
+                    resident.remove(victim);
+                }
+                policy.pageAdded(page(i));
+                resident.add(page(i));
+            }
+            assertTrue(resident.contains(hot));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
@@ -0,0 +1,141 @@
+package simpledb;
+
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+public class SnapshotTest extends TestUtil.CreateFilledHeapFile {
+    private PageId p0;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        p0 = new HeapPageId(empty.getId(), 0);
+    }
+
+    private static int count(Page page) {
+        int n = 0;
+        Iterator<Tuple> it = ((HeapPage) page).iterator();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        return n;
+    }
+
+    private Tuple firstTuple(TransactionId tid, PageId pid) throws Exception {
+        return ((HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY)).iterator().next();
+    }
+
+    /**
+     * A snapshot reads pages writers hold exclusively, and sees what was
+     * committed when it started, before and after the writers commit.
+     */
+    @Test public void readsCommittedStateAsOfStart() throws Exception {
+        TransactionId writer = new TransactionId();
+        int before = count(bp.getPage(writer, p0, Permissions.READ_ONLY));
+        bp.deleteTuple(writer, firstTuple(writer, p0));
+
+        TransactionId snapshot = new TransactionId();
+        bp.beginSnapshot(snapshot);
+        assertEquals(before, count(bp.getPage(snapshot, p0, Permissions.READ_ONLY)));
+        assertEquals(0, bp.getVersionStore().getVersionCount());
+
+        bp.transactionComplete(writer, true);
+        assertEquals(before, count(bp.getPage(snapshot, p0, Permissions.READ_ONLY)));
+        assertEquals(1, bp.getVersionStore().getVersionCount());
+
+        TransactionId later = new TransactionId();
+        bp.beginSnapshot(later);
+        assertEquals(before - 1, count(bp.getPage(later, p0, Permissions.READ_ONLY)));
+
+        // only the first snapshot needed the old version
+        bp.transactionComplete(snapshot, true);
+        assertEquals(0, bp.getVersionStore().getVersionCount());
+        bp.transactionComplete(later, true);
+        assertEquals(0, bp.getVersionStore().getSnapshotCount());
+    }
+
+    /**
+     * Changes written out before their transaction completes stay invisible
+     * to snapshots until it does.
+     */
+    @Test public void flushedChangesOfRunningTransactions() throws Exception {
+        TransactionId writer = new TransactionId();
+        int before = count(bp.getPage(writer, p0, Permissions.READ_ONLY));
+        bp.deleteTuple(writer, firstTuple(writer, p0));
+        bp.flushPages(writer);
+
+        TransactionId snapshot = new TransactionId();
+        bp.beginSnapshot(snapshot);
+        assertEquals(before, count(bp.getPage(snapshot, p0, Permissions.READ_ONLY)));
+        bp.transactionComplete(writer, true);
+        assertEquals(before, count(bp.getPage(snapshot, p0, Permissions.READ_ONLY)));
+        bp.transactionComplete(snapshot, true);
+
+        // nobody needs the old version any more
+        TransactionId after = new TransactionId();
+        bp.beginSnapshot(after);
+        assertEquals(before - 1, count(bp.getPage(after, p0, Permissions.READ_ONLY)));
+        assertEquals(0, bp.getVersionStore().getVersionCount());
+        bp.transactionComplete(after, true);
+    }
+
+    /**
+     * Snapshots are read-only.
+     */
+    @Test public void snapshotsDoNotWrite() throws Exception {
+        TransactionId snapshot = new TransactionId();
+        bp.beginSnapshot(snapshot);
+        try {
+            bp.getPage(snapshot, p0, Permissions.READ_WRITE);
+            fail("a snapshot must not write");
+        } catch (DbException expected) {
+        }
+        try {
+            bp.insertTuple(snapshot, empty.getId(), Utility.getHeapTuple(-1, 2));
+            fail("a snapshot must not write");
+        } catch (DbException expected) {
+        }
+        bp.transactionComplete(snapshot, true);
+    }
+
+    /**
+     * A read-only Transaction scans a table another transaction is changing
+     * without waiting for it.
+     */
+    @Test(timeout = 20000) public void readOnlyTransactionScans() throws Exception {
+        TransactionId writer = new TransactionId();
+        for (int i = 0; i < 3; i++) {
+            PageId pid = new HeapPageId(empty.getId(), i);
+            bp.deleteTuple(writer, firstTuple(writer, pid));
+        }
+
+        Transaction reader = new Transaction(true);
+        reader.start();
+        SeqScan scan = new SeqScan(reader.getId(), empty.getId(), "");
+        scan.open();
+        int n = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        scan.close();
+        assertEquals(TUPLES, n);
+        reader.commit();
+
+        bp.transactionComplete(writer, false);
+        assertEquals(0, bp.getVersionStore().getSnapshotCount());
+        assertEquals(0, bp.getVersionStore().getVersionCount());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotTest.class);
+    }
+}
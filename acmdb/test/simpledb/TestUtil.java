@@ -5,6 +5,8 @@ import java.util.*;
 
 import static org.junit.Assert.*;
 
+import simpledb.systemtest.SimpleDbTestBase;
+
 public class TestUtil {
     /**
      * @return an IntField with value n
@@ -394,4 +396,48 @@ public class TestUtil {
         protected HeapFile empty;
         private final File emptyFile;
     }
+
+    /**
+     * A heap file with three pages of tuples, written to disk, and a fresh
+     * buffer pool that has none of them cached.
+     */
+    public static abstract class CreateFilledHeapFile extends CreateHeapFile {
+        /** Number of tuples in the file, one more than fit on two pages */
+        protected static final int TUPLES = 1025;
+
+        protected void setUp() throws Exception {
+            super.setUp();
+            bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+            TransactionId tid = new TransactionId();
+            for (int i = 0; i < TUPLES; ++i) {
+                empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+            }
+            assertEquals(3, empty.numPages());
+            for (int i = 0; i < 3; i++) {
+                bp.getPage(tid, new HeapPageId(empty.getId(), i), Permissions.READ_WRITE).markDirty(true, tid);
+            }
+            bp.flushAllPages();
+            bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        }
+
+        protected BufferPool bp;
+    }
+
+    /**
+     * A B+ tree file of ten leaves under an internal root, and a fresh
+     * buffer pool that has none of its pages cached.
+     */
+    public static abstract class CreateBTreeFile extends SimpleDbTestBase {
+        public void setUp() throws Exception {
+            super.setUp();
+            bf = BTreeUtility.createRandomBTreeFile(2, 5000, null, null, 0);
+            bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            lm = bp.getLockManager();
+        }
+
+        protected BTreeFile bf;
+        protected BufferPool bp;
+        protected LockManager lm;
+    }
 }
@@ -0,0 +1,258 @@
+package simpledb.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+import static org.junit.Assert.assertTrue;
+
+import simpledb.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+/**
+ * Concurrent insert throughput on a single B+ tree, with a growing number
+ * of threads, each committing one insert of a random key at a time. Then
+ * the same with readers running alongside that look keys up and keep
+ * their transactions open for a while, which must not hold up the splits
+ * of the writers. Then a stress test of writers and lookups running
+ * side by side, which checks that no committed key got lost. Last, writers
+ * next to serializable range scans of small key ranges, which must only
+ * hold up the inserts into their ranges. Not part of the regular test
+ * suites; run it with
+ * <pre>ant runtest -Dtest=benchmark.BTreeBenchmark</pre>
+ */
+public class BTreeBenchmark extends SimpleDbTestBase {
+    private static final int ROWS = 20000;
+    private static final int POOL_PAGES = 2000;
+    private static final long RUN_MILLIS = 3000;
+    private static final int READERS = 4;
+    private static final long READER_HOLD_MILLIS = 5;
+
+    private static final int STRESS_WRITERS = 4;
+    private static final int STRESS_LOOKUPS = 4;
+    private static final int SCANNERS = 4;
+    // each scan reads about ten keys, a small part of one leaf, and holds them a while
+    private static final int SCAN_WIDTH = BTreeUtility.MAX_RAND_VALUE / 2000;
+    private static final long SCAN_HOLD_MILLIS = 20;
+
+    /**
+     * @param committed collects the key and the second field of each tuple
+     *                  committed, if not null
+     */
+    private static Thread writer(final BTreeFile bf, final long seed, final long until,
+                                 final AtomicLong inserts, final AtomicLong aborts,
+                                 final List<int[]> committed) {
+        return new Thread() {
+            public void run() {
+                Random rand = new Random(seed);
+                BufferPool bp = Database.getBufferPool();
+                try {
+                    while (System.currentTimeMillis() < until) {
+                        TransactionId tid = new TransactionId();
+                        int[] tuple = {rand.nextInt(BTreeUtility.MAX_RAND_VALUE), rand.nextInt()};
+                        try {
+                            bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(tuple));
+                            bp.transactionComplete(tid, true);
+                            inserts.incrementAndGet();
+                            if (committed != null) {
+                                committed.add(tuple);
+                            }
+                        } catch (TransactionAbortedException e) {
+                            bp.transactionComplete(tid, false);
+                            aborts.incrementAndGet();
+                        }
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return whether a tuple with the key and second field is in the tree
+     */
+    private static boolean lookup(BTreeFile bf, TransactionId tid, int key, int value) throws Exception {
+        DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+        it.open();
+        boolean found = false;
+        while (it.hasNext()) {
+            found |= ((IntField) it.next().getField(1)).getValue() == value;
+        }
+        it.close();
+        return found;
+    }
+
+    /**
+     * @param holdMillis how long a reader keeps its transaction open after a lookup
+     */
+    private static Thread reader(final BTreeFile bf, final long seed, final long until,
+                                 final long holdMillis, final AtomicLong lookups) {
+        return new Thread() {
+            public void run() {
+                Random rand = new Random(seed);
+                BufferPool bp = Database.getBufferPool();
+                try {
+                    while (System.currentTimeMillis() < until) {
+                        TransactionId tid = new TransactionId();
+                        try {
+                            lookup(bf, tid, rand.nextInt(BTreeUtility.MAX_RAND_VALUE), 0);
+                            if (holdMillis > 0) {
+                                Thread.sleep(holdMillis);
+                            }
+                            bp.transactionComplete(tid, true);
+                            lookups.incrementAndGet();
+                        } catch (TransactionAbortedException e) {
+                            bp.transactionComplete(tid, false);
+                        }
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * A thread that scans random key ranges, one per transaction, and keeps
+     * the transaction open for a while after each scan.
+     */
+    private static Thread scanner(final BTreeFile bf, final long seed, final long until,
+                                  final AtomicLong scans) {
+        return new Thread() {
+            public void run() {
+                Random rand = new Random(seed);
+                BufferPool bp = Database.getBufferPool();
+                try {
+                    while (System.currentTimeMillis() < until) {
+                        TransactionId tid = new TransactionId();
+                        int low = rand.nextInt(BTreeUtility.MAX_RAND_VALUE - SCAN_WIDTH);
+                        try {
+                            DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(
+                                    Predicate.Op.GREATER_THAN_OR_EQ, new IntField(low)));
+                            it.open();
+                            while (it.hasNext()) {
+                                if (((IntField) it.next().getField(0)).getValue() >= low + SCAN_WIDTH) {
+                                    break;
+                                }
+                            }
+                            it.close();
+                            Thread.sleep(SCAN_HOLD_MILLIS);
+                            bp.transactionComplete(tid, true);
+                            scans.incrementAndGet();
+                        } catch (TransactionAbortedException e) {
+                            bp.transactionComplete(tid, false);
+                        }
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the inserts per second the writers commit, and their aborts
+     */
+    private static long[] run(int writers, int readers) throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, ROWS, null, null, 0);
+        Database.resetBufferPool(POOL_PAGES);
+        AtomicLong inserts = new AtomicLong(0);
+        AtomicLong aborts = new AtomicLong(0);
+        long until = System.currentTimeMillis() + RUN_MILLIS;
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < writers; i++) {
+            threads.add(writer(bf, i, until, inserts, aborts, null));
+        }
+        for (int i = 0; i < readers; i++) {
+            threads.add(reader(bf, 100 + i, until, READER_HOLD_MILLIS, new AtomicLong(0)));
+        }
+        long start = System.nanoTime();
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+        long elapsed = System.nanoTime() - start;
+        return new long[]{(long) (inserts.get() / (elapsed / 1e9)), aborts.get()};
+    }
+
+    @Test public void insertScaling() throws Exception {
+        System.out.println("writers\treaders\tinserts/s\taborts");
+        for (int readers = 0; readers <= READERS; readers += READERS) {
+            for (int writers = 1; writers <= 8; writers *= 2) {
+                long[] result = run(writers, readers);
+                System.out.println(writers + "\t" + readers + "\t" + result[0] + "\t" + result[1]);
+            }
+        }
+    }
+
+    /**
+     * Writers and lookups with no pause between them on the same tree.
+     * Every key a writer committed must be found afterwards, and the tree
+     * must still be a valid B+ tree. Reports how often searches had to read
+     * a page again because it changed under them.
+     */
+    @Test public void insertLookupStress() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, ROWS, null, null, 0);
+        Database.resetBufferPool(POOL_PAGES);
+        AtomicLong inserts = new AtomicLong(0);
+        AtomicLong aborts = new AtomicLong(0);
+        AtomicLong lookups = new AtomicLong(0);
+        List<int[]> committed = Collections.synchronizedList(new ArrayList<int[]>());
+        long until = System.currentTimeMillis() + RUN_MILLIS;
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < STRESS_WRITERS; i++) {
+            threads.add(writer(bf, i, until, inserts, aborts, committed));
+        }
+        for (int i = 0; i < STRESS_LOOKUPS; i++) {
+            threads.add(reader(bf, 100 + i, until, 0, lookups));
+        }
+        long start = System.nanoTime();
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        TransactionId tid = new TransactionId();
+        for (int[] tuple : committed) {
+            assertTrue(lookup(bf, tid, tuple[0], tuple[1]));
+        }
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+        Database.getBufferPool().transactionComplete(tid);
+
+        System.out.println("writers\tlookups\tinserts/s\tlookups/s\taborts\trestarts");
+        System.out.println(STRESS_WRITERS + "\t" + STRESS_LOOKUPS + "\t" + (long) (inserts.get() / seconds)
+                + "\t" + (long) (lookups.get() / seconds) + "\t" + aborts.get() + "\t" + bf.getRestartCount());
+    }
+
+    /**
+     * Writers next to threads that scan small key ranges at SERIALIZABLE.
+     * Only the inserts into a range being scanned, or the gap next to it,
+     * have to wait for the scan.
+     */
+    @Test public void rangeScansAndInserts() throws Exception {
+        System.out.println("writers\tscanners\tinserts/s\tscans/s\taborts");
+        for (int writers = 1; writers <= 4; writers *= 2) {
+            BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, ROWS, null, null, 0);
+            Database.resetBufferPool(POOL_PAGES);
+            AtomicLong inserts = new AtomicLong(0);
+            AtomicLong aborts = new AtomicLong(0);
+            AtomicLong scans = new AtomicLong(0);
+            long until = System.currentTimeMillis() + RUN_MILLIS;
+            ArrayList<Thread> threads = new ArrayList<Thread>();
+            for (int i = 0; i < writers; i++) {
+                threads.add(writer(bf, i, until, inserts, aborts, null));
+            }
+            for (int i = 0; i < SCANNERS; i++) {
+                threads.add(scanner(bf, 100 + i, until, scans));
+            }
+            long start = System.nanoTime();
+            for (Thread t : threads) t.start();
+            for (Thread t : threads) t.join();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(writers + "\t" + SCANNERS + "\t" + (long) (inserts.get() / seconds)
+                    + "\t" + (long) (scans.get() / seconds) + "\t" + aborts.get());
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package simpledb.benchmark;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures BufferPool.getPage throughput with a growing number of threads.
+ * Not part of the regular test suites; run it with
+ * <pre>ant runtest -Dtest=benchmark.BufferPoolBenchmark</pre>
+ */
+public class BufferPoolBenchmark extends SimpleDbTestBase {
+    private static final int PAGES = 256;
+    private static final int OPS_PER_THREAD = 200000;
+
+    private static double throughput(final BufferPool bp, final HeapFile hf, int threads)
+            throws InterruptedException {
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            workers.add(new Thread() {
+                public void run() {
+                    Random rand = new Random(seed);
+                    TransactionId tid = new TransactionId();
+                    try {
+                        for (int i = 0; i < OPS_PER_THREAD; i++) {
+                            HeapPageId pid = new HeapPageId(hf.getId(), rand.nextInt(PAGES));
+                            bp.getPage(tid, pid, Permissions.READ_ONLY);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread w : workers) w.start();
+        for (Thread w : workers) w.join();
+        long elapsed = System.nanoTime() - start;
+        return (double) threads * OPS_PER_THREAD / (elapsed / 1e9);
+    }
+
+    /**
+     * Hot-path getPage throughput of a single-shard pool against a sharded
+     * pool of the same size, for 1 up to 2x the available cores.
+     */
+    @Test public void getPageScaling() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * PAGES, null, null);
+        int cores = Runtime.getRuntime().availableProcessors();
+        int numShards = Math.max(4, cores);
+        System.out.println("threads\t1 shard (ops/s)\t" + numShards + " shards (ops/s)");
+        for (int threads = 1; threads <= 2 * cores; threads *= 2) {
+            BufferPool single = new BufferPool(PAGES, 1, BufferPool.DEFAULT_POLICY);
+            BufferPool sharded = new BufferPool(PAGES, numShards, BufferPool.DEFAULT_POLICY);
+            // warm both pools so the measurement covers the hit path
+            throughput(single, hf, 1);
+            throughput(sharded, hf, 1);
+            System.out.println(String.format("%d\t%.0f\t%.0f", threads,
+                    throughput(single, hf, threads), throughput(sharded, hf, threads)));
+        }
+    }
+}
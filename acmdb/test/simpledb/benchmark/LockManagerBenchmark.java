@@ -0,0 +1,229 @@
+package simpledb.benchmark;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+/**
+ * Lock grant latency of LockManager with many waiters around. One
+ * transaction holds a page each of a growing number of waiters is blocked
+ * on; another one then measures acquiring and releasing a free page, and
+ * handing a contended page over to its waiter. Neither should get slower
+ * as the number of waiters grows. Also counts the aborts of transactions
+ * that read a page and then write it, when they first lock it shared
+ * rather than for update, and times re-acquiring locks a transaction
+ * holds already while other threads do the same on the same pages. Not
+ * part of the regular test suites; run it with
+ * <pre>ant runtest -Dtest=benchmark.LockManagerBenchmark</pre>
+ */
+public class LockManagerBenchmark extends SimpleDbTestBase {
+    private static final int[] WAITERS = {10, 100, 500};
+    private static final int GRANTS = 20000;
+    private static final int TABLE = 42;
+    private static final int WRITERS = 8;
+    private static final int WRITES = 2000;
+    private static final int SCANNED_PAGES = 1000;
+    private static final int SCANS = 2000;
+
+    private static double grantMicros(LockManager lm, int waiters) throws Exception {
+        TransactionId holder = new TransactionId();
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < waiters; i++) {
+            lm.acquireLock(holder, new HeapPageId(TABLE, i), Permissions.READ_WRITE);
+        }
+        for (int i = 0; i < waiters; i++) {
+            final PageId pid = new HeapPageId(TABLE, i);
+            Thread t = new Thread() {
+                public void run() {
+                    TransactionId tid = new TransactionId();
+                    try {
+                        lm.acquireLock(tid, pid, Permissions.READ_ONLY);
+                    } catch (TransactionAbortedException e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        lm.releasePages(tid);
+                    }
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+        for (int i = 0; i < waiters; i++) {
+            while (lm.getQueueLength(new HeapPageId(TABLE, i)) == 0) {
+                Thread.sleep(1);
+            }
+        }
+
+        // uncontended grants next to all those waiters
+        TransactionId tid = new TransactionId();
+        PageId free = new HeapPageId(TABLE, waiters);
+        long start = System.nanoTime();
+        for (int i = 0; i < GRANTS; i++) {
+            lm.acquireLock(tid, free, Permissions.READ_WRITE);
+            lm.releasePage(tid, free);
+        }
+        double micros = (System.nanoTime() - start) / 1e3 / GRANTS;
+
+        lm.releasePages(holder);
+        for (Thread t : threads) {
+            t.join();
+        }
+        return micros;
+    }
+
+    private static double handOverMicros(LockManager lm, int waiters) throws Exception {
+        TransactionId holder = new TransactionId();
+        for (int i = 0; i < waiters; i++) {
+            lm.acquireLock(holder, new HeapPageId(TABLE, i), Permissions.READ_WRITE);
+        }
+        final long[] grantedAt = new long[waiters];
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < waiters; i++) {
+            final int me = i;
+            Thread t = new Thread() {
+                public void run() {
+                    TransactionId tid = new TransactionId();
+                    try {
+                        lm.acquireLock(tid, new HeapPageId(TABLE, me), Permissions.READ_WRITE);
+                        grantedAt[me] = System.nanoTime();
+                    } catch (TransactionAbortedException e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        lm.releasePages(tid);
+                    }
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+        for (int i = 0; i < waiters; i++) {
+            while (lm.getQueueLength(new HeapPageId(TABLE, i)) == 0) {
+                Thread.sleep(1);
+            }
+        }
+
+        // release one page at a time and wait for its waiter to get it
+        long total = 0;
+        for (int i = 0; i < waiters; i++) {
+            long start = System.nanoTime();
+            lm.releasePage(holder, new HeapPageId(TABLE, i));
+            threads.get(i).join();
+            total += grantedAt[i] - start;
+        }
+        return total / 1e3 / waiters;
+    }
+
+    /**
+     * @return the number of aborts while WRITERS threads each commit WRITES
+     * read-then-write transactions on the same page
+     */
+    private static long conversionAborts(LockManager lm, Permissions readPerm) throws Exception {
+        final AtomicLong aborts = new AtomicLong(0);
+        final PageId pid = new HeapPageId(TABLE, 0);
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < WRITERS; i++) {
+            Thread t = new Thread() {
+                public void run() {
+                    for (int done = 0; done < WRITES; ) {
+                        TransactionId tid = new TransactionId();
+                        try {
+                            lm.acquireLock(tid, pid, readPerm);
+                            lm.acquireLock(tid, pid, Permissions.READ_WRITE);
+                            done++;
+                        } catch (TransactionAbortedException e) {
+                            aborts.incrementAndGet();
+                        } finally {
+                            lm.releasePages(tid);
+                        }
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        return aborts.get();
+    }
+
+    /**
+     * @return the mean time in ns a transaction takes to lock a page it has
+     * locked already, while each of the given number of threads scans the
+     * same SCANNED_PAGES pages again and again in a transaction of its own
+     */
+    private static double reacquireNanos(LockManager lm, int threads) throws Exception {
+        final PageId[] pages = new PageId[SCANNED_PAGES];
+        for (int i = 0; i < SCANNED_PAGES; i++) {
+            pages[i] = new HeapPageId(TABLE, i);
+        }
+        final AtomicLong nanos = new AtomicLong(0);
+        ArrayList<Thread> scanners = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread() {
+                public void run() {
+                    TransactionId tid = new TransactionId();
+                    try {
+                        for (PageId pid : pages) {
+                            lm.acquireLock(tid, pid, Permissions.READ_ONLY);
+                        }
+                        long start = System.nanoTime();
+                        for (int scan = 0; scan < SCANS; scan++) {
+                            for (PageId pid : pages) {
+                                lm.acquireLock(tid, pid, Permissions.READ_ONLY);
+                            }
+                        }
+                        nanos.addAndGet(System.nanoTime() - start);
+                    } catch (TransactionAbortedException e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        lm.releasePages(tid);
+                    }
+                }
+            };
+            t.start();
+            scanners.add(t);
+        }
+        for (Thread t : scanners) {
+            t.join();
+        }
+        return (double) nanos.get() / threads / SCANS / SCANNED_PAGES;
+    }
+
+    @Test public void upgradeAborts() throws Exception {
+        System.out.println("read lock	aborts per " + WRITERS * WRITES + " commits");
+        for (Permissions perm : new Permissions[]{Permissions.READ_ONLY, Permissions.READ_FOR_UPDATE}) {
+            LockManager lm = LockManager.GetLockManager();
+            lm.setDetectionInterval(1);
+            System.out.println(perm + "\t" + conversionAborts(lm, perm));
+        }
+    }
+
+    @Test public void grantLatency() throws Exception {
+        System.out.println("waiters\tfree grant+release (us)\thand-over (us)");
+        for (int round = 0; round < 2; round++) {
+            for (int waiters : WAITERS) {
+                LockManager lm = LockManager.GetLockManager();
+                double grant = grantMicros(lm, waiters);
+                double handOver = handOverMicros(lm, waiters);
+                System.out.println(String.format("%d\t%.2f\t%.1f", waiters, grant, handOver));
+            }
+        }
+    }
+
+    @Test public void reacquireLatency() throws Exception {
+        System.out.println("threads\tre-acquire of a held lock (ns)");
+        for (int round = 0; round < 2; round++) {
+            for (int threads : new int[]{1, 4}) {
+                LockManager lm = LockManager.GetLockManager();
+                System.out.println(String.format("%d\t%.1f", threads, reacquireNanos(lm, threads)));
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package simpledb.benchmark;
+
+import java.util.Iterator;
+
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Full scans of a HeapFile through the FileChannel read path against the
+ * memory mapped one. A cold scan uses a fresh HeapFile, so it pays for
+ * opening the channel or setting up the mapping; a warm scan repeats it on
+ * the same instance. The OS page cache is warm in both cases. Not part of
+ * the regular test suites; run it with
+ * <pre>ant runtest -Dtest=benchmark.MappedHeapFileBenchmark</pre>
+ */
+public class MappedHeapFileBenchmark extends SimpleDbTestBase {
+    private static final int PAGES = 2000;
+    private static final int WARM_ROUNDS = 5;
+
+    private static double scanMillis(HeapFile hf) {
+        long start = System.nanoTime();
+        long tuples = 0;
+        for (int i = 0; i < PAGES; i++) {
+            HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), i));
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext()) {
+                it.next();
+                tuples++;
+            }
+        }
+        if (tuples != 504L * PAGES) {
+            throw new AssertionError("scanned " + tuples + " tuples");
+        }
+        return (System.nanoTime() - start) / 1e6;
+    }
+
+    @Test public void scans() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * PAGES, null, null);
+        System.out.println("mode\tcold (ms)\twarm (ms)");
+        for (boolean mapped : new boolean[]{false, true, false, true}) {
+            HeapFile f = new HeapFile(hf.getFile(), hf.getTupleDesc(), mapped);
+            double cold = scanMillis(f);
+            double warm = Double.MAX_VALUE;
+            for (int i = 0; i < WARM_ROUNDS; i++) {
+                warm = Math.min(warm, scanMillis(f));
+            }
+            System.out.println(String.format("%s\t%.1f\t%.1f",
+                    mapped ? "mapped" : "channel", cold, warm));
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package simpledb.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+/**
+ * Random page read latency of a large B+ tree file through BTreeFile (and
+ * thus PageStore), against the stream-and-skip reader BTreeFile used to
+ * have. Not part of the regular test suites; run it with
+ * <pre>ant runtest -Dtest=benchmark.PageStoreBenchmark</pre>
+ */
+public class PageStoreBenchmark extends SimpleDbTestBase {
+    private static final int ROWS = 200000;
+    private static final int READS = 5000;
+
+    /**
+     * The old way of reading a B+ tree page: open a stream on the file and
+     * skip to the page.
+     */
+    private static byte[] streamRead(File f, int pageNo) throws IOException {
+        byte[] buf = new byte[BufferPool.getPageSize()];
+        BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f));
+        try {
+            long offset = BTreeRootPtrPage.getPageSize() + (long) (pageNo - 1) * BufferPool.getPageSize();
+            if (bis.skip(offset) != offset) {
+                throw new IOException("unable to seek");
+            }
+            if (bis.read(buf, 0, buf.length) != buf.length) {
+                throw new IOException("short read");
+            }
+        } finally {
+            bis.close();
+        }
+        return buf;
+    }
+
+    private static double streamLatency(File f, int pages) throws IOException {
+        Random rand = new Random(0);
+        long start = System.nanoTime();
+        for (int i = 0; i < READS; i++) {
+            streamRead(f, 1 + rand.nextInt(pages));
+        }
+        return (System.nanoTime() - start) / 1e3 / READS;
+    }
+
+    private static double storeLatency(PageStore store, int pages) throws IOException {
+        Random rand = new Random(0);
+        byte[] buf = new byte[BufferPool.getPageSize()];
+        long start = System.nanoTime();
+        for (int i = 0; i < READS; i++) {
+            long offset = BTreeRootPtrPage.getPageSize() + (long) rand.nextInt(pages) * buf.length;
+            store.read(offset, buf);
+        }
+        return (System.nanoTime() - start) / 1e3 / READS;
+    }
+
+    @Test public void randomReads() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, ROWS, null, null, 0);
+        int pages = bf.numPages();
+        PageStore store = new PageStore(bf.getFile());
+        System.out.println("B+ tree file with " + pages + " pages");
+        try {
+            for (int round = 0; round < 3; round++) {
+                System.out.println(String.format("round %d: stream+skip %.1f us/read, PageStore %.1f us/read",
+                        round, streamLatency(bf.getFile(), pages), storeLatency(store, pages)));
+            }
+        } finally {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package simpledb.benchmark;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Reports the hit ratios of the page replacement policies on the traces
+ * of ReplacementPolicyTest, for a cache of
+ * {@link ReplacementPolicyTest#CAPACITY} pages. Not part of the regular
+ * test suites; run it with
+ * <pre>ant runtest -Dtest=benchmark.ReplacementPolicyBenchmark</pre>
+ */
+public class ReplacementPolicyBenchmark {
+
+    private static void report(String name, ArrayList<PageId> trace) {
+        StringBuilder line = new StringBuilder(name);
+        for (ReplacementPolicy.Type type : ReplacementPolicy.Type.values()) {
+            line.append(String.format("\t%.4f", ReplacementPolicyTest.hitRatio(type, trace)));
+        }
+        System.out.println(line);
+    }
+
+    @Test public void hitRatios() {
+        StringBuilder header = new StringBuilder("trace");
+        for (ReplacementPolicy.Type type : ReplacementPolicy.Type.values()) {
+            header.append("\t").append(type);
+        }
+        System.out.println(header);
+        report("zipf(0.99)", ReplacementPolicyTest.zipfTrace(0.99));
+        report("zipf(0.99)+scans", ReplacementPolicyTest.zipfWithScansTrace(0.99));
+    }
+}